@@ -0,0 +1,95 @@
+package benchmarks;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of sessions working in separate directories of one simulator,
+ * which only contend on the shared parts of the tree. Each thread commits its
+ * work as one batch per iteration, so journal syncs don't hide the locking.
+ * Run with -t 1, 2, 4 ... 64 to see how it scales.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class ConcurrencyBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Mounted {
+        Path dir;
+        Simulator fs;
+
+        @Setup(Level.Trial)
+        public void mount() throws Throwable {
+            dir = Trees.scratch();
+            fs = new Simulator(dir, 0);
+        }
+
+        @TearDown(Level.Trial)
+        public void unmount() throws Throwable {
+            fs.shutdown();
+            Trees.delete(dir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Worker {
+        private static int workers;
+
+        Simulator fs;
+        Simulator.Session session;
+        String home;
+        long counter;
+
+        @Setup(Level.Trial)
+        public void open(Mounted mounted) throws Throwable {
+            fs = mounted.fs;
+            home = "/home/w" + nextWorker();
+            session = fs.openSession();
+            try {
+                session.createDirectory("/home");
+            } catch (Exception e) {
+                // Another worker made it first.
+            }
+            session.createDirectory(home);
+        }
+
+        @Setup(Level.Iteration)
+        public void beginIteration() throws Throwable {
+            fs.beginBatch();
+        }
+
+        @TearDown(Level.Iteration)
+        public void endIteration() throws Throwable {
+            fs.endBatch();
+        }
+
+        private static synchronized int nextWorker() {
+            return workers++;
+        }
+    }
+
+    /** Creates a file in the worker's directory and looks it up again. */
+    @Benchmark
+    public void createAndResolve(Worker worker) throws Throwable {
+        String file = worker.home + "/f" + worker.counter++;
+        worker.session.createFile(file);
+        worker.session.changeDirectory(worker.home);
+    }
+}
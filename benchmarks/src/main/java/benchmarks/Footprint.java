@@ -0,0 +1,66 @@
+package benchmarks;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+
+/**
+ * Heap bytes per node and garbage collection time for a tree built in
+ * memory, then again once a checkpoint has let cold directories be paged
+ * out. Not a JMH benchmark: it measures space rather than time. Prints one
+ * JSON object, like the JMH results.
+ *
+ * <pre>
+ * java -cp benchmarks.jar benchmarks.Footprint [nodes] [wide|deep|balanced]
+ * </pre>
+ */
+public final class Footprint {
+    private Footprint() {
+    }
+
+    public static void main(String[] args) throws Throwable {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        String shape = args.length > 1 ? args[1] : "balanced";
+
+        Path dir = Trees.scratch();
+        try {
+            long empty = usedHeap();
+            long[] gcBefore = gc();
+
+            Simulator fs = new Simulator(dir, 0);
+            Trees.build(fs, shape, nodes);
+            long[] gcBuilt = gc();
+            long built = usedHeap() - empty;
+
+            fs.checkpoint();
+            // Paging out runs on the checkpointer thread after the checkpoint.
+            Thread.sleep(1000);
+            long saved = usedHeap() - empty;
+
+            System.out.printf("{\"shape\": \"%s\", \"nodes\": %d, \"bytesPerNode\": %.1f, "
+                    + "\"bytesPerNodeAfterCheckpoint\": %.1f, \"gcCount\": %d, \"gcMillis\": %d}%n",
+                    shape, nodes, (double) built / nodes, (double) saved / nodes,
+                    gcBuilt[0] - gcBefore[0], gcBuilt[1] - gcBefore[1]);
+            fs.shutdown();
+        } finally {
+            Trees.delete(dir);
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /** Collections so far and the milliseconds spent in them. */
+    private static long[] gc() {
+        long[] totals = new long[2];
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals[0] += Math.max(0, collector.getCollectionCount());
+            totals[1] += Math.max(0, collector.getCollectionTime());
+        }
+        return totals;
+    }
+}
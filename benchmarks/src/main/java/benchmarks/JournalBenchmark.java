@@ -0,0 +1,90 @@
+package benchmarks;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Durable mutations per second with concurrent writers, each committing on
+ * its own, for group commit intervals from none (sync as soon as the journal
+ * is idle) to 100 ms. The baseline, "per-frame", is a log without group
+ * commit: writers take turns, so every mutation is synced by itself.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class JournalBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Mounted {
+        /** "per-frame", or the group commit interval in milliseconds. */
+        @Param({ "per-frame", "0", "1", "10", "100" })
+        public String commit;
+
+        Path dir;
+        Simulator fs;
+        boolean perFrame;
+
+        @Setup(Level.Trial)
+        public void mount() throws Throwable {
+            dir = Trees.scratch();
+            perFrame = commit.equals("per-frame");
+            fs = new Simulator(dir, perFrame ? 0 : Long.parseLong(commit));
+        }
+
+        @TearDown(Level.Trial)
+        public void unmount() throws Throwable {
+            fs.shutdown();
+            Trees.delete(dir);
+        }
+    }
+
+    /** A writer with a directory of its own. */
+    @State(Scope.Thread)
+    public static class Writer {
+        private static int writers;
+
+        Simulator.Session session;
+        long counter;
+
+        @Setup(Level.Trial)
+        public void open(Mounted mounted) throws Throwable {
+            String home = "/w" + nextWriter();
+            session = mounted.fs.openSession();
+            session.createDirectory(home);
+            session.changeDirectory(home);
+        }
+
+        private static synchronized int nextWriter() {
+            return writers++;
+        }
+    }
+
+    @Benchmark
+    public void createFile(Mounted mounted, Writer writer) throws Throwable {
+        if (!mounted.perFrame) {
+            writer.session.createFile("f" + writer.counter++);
+            return;
+        }
+        // The journal is idle whenever a writer gets in, so the sync is its own.
+        synchronized (mounted) {
+            writer.session.createFile("f" + writer.counter++);
+        }
+    }
+}
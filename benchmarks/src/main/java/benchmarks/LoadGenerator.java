@@ -0,0 +1,192 @@
+package benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a running server (Shell -p <port>) from many connections at once
+ * and reports requests per second and latency percentiles. Each connection
+ * works in a directory of its own, creating, writing, reading and deleting
+ * files, and keeps {@code pipeline} requests in flight. All connections are
+ * opened before measuring starts. Not a JMH benchmark, since the load is
+ * external; prints one JSON object, like the JMH results.
+ *
+ * <pre>
+ * java -cp benchmarks.jar benchmarks.LoadGenerator [host:port] [connections] [seconds] [pipeline]
+ * </pre>
+ */
+public final class LoadGenerator {
+    private static final String[] CYCLE = { "touch f%d", "echo %d > f%d", "cat f%d", "rm f%d" };
+    private static final long STACK_SIZE = 256 * 1024;
+
+    private final InetSocketAddress server;
+    private final int pipeline;
+    private final CountDownLatch connected;
+    private final CountDownLatch start = new CountDownLatch(1);
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private volatile boolean measuring;
+    private volatile boolean stopped;
+    private final long[][] latencies;
+
+    private LoadGenerator(InetSocketAddress server, int connections, int pipeline) {
+        this.server = server;
+        this.pipeline = pipeline;
+        this.connected = new CountDownLatch(connections);
+        this.latencies = new long[connections][];
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] address = (args.length > 0 ? args[0] : "localhost:7070").split(":");
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        int pipeline = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+        LoadGenerator load = new LoadGenerator(new InetSocketAddress(address[0], Integer.parseInt(address[1])),
+                connections, pipeline);
+        ExecutorService clients = clientExecutor();
+        for (int i = 0; i < connections; i++) {
+            int client = i;
+            clients.execute(() -> load.run(client));
+        }
+
+        load.connected.await();
+        load.measuring = true;
+        load.start.countDown();
+        long began = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        load.measuring = false;
+        long elapsed = System.nanoTime() - began;
+        load.stopped = true;
+        clients.shutdown();
+        clients.awaitTermination(1, TimeUnit.MINUTES);
+
+        long[] all = load.merge();
+        System.out.printf("{\"connections\": %d, \"pipeline\": %d, \"failed\": %d, \"requests\": %d, "
+                + "\"requestsPerSecond\": %.0f, \"p50Micros\": %.1f, \"p99Micros\": %.1f, "
+                + "\"p999Micros\": %.1f, \"maxMicros\": %.1f}%n",
+                connections, pipeline, load.failed.get(), all.length, all.length * 1e9 / elapsed,
+                percentile(all, 50), percentile(all, 99), percentile(all, 99.9),
+                all.length == 0 ? 0 : all[all.length - 1] / 1000.0);
+    }
+
+    private void run(int client) {
+        long[] recorded = new long[1024];
+        int count = 0;
+        boolean counted = false;
+        try (Socket socket = new Socket()) {
+            socket.connect(server);
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream(), 2048);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 2048);
+            String home = "/load-" + client;
+            send(out, "mkdir " + home);
+            send(out, "cd " + home);
+            out.flush();
+            receive(in);
+            receive(in);
+
+            connected.countDown();
+            counted = true;
+            start.await();
+
+            long[] sent = new long[pipeline];
+            long step = 0;
+            while (!stopped) {
+                for (int i = 0; i < pipeline; i++, step++) {
+                    long file = step / CYCLE.length;
+                    send(out, String.format(CYCLE[(int) (step % CYCLE.length)], file, file));
+                    sent[i] = System.nanoTime();
+                }
+                out.flush();
+                for (int i = 0; i < pipeline; i++) {
+                    receive(in);
+                    if (!measuring)
+                        continue;
+                    if (count == recorded.length)
+                        recorded = Arrays.copyOf(recorded, count * 2);
+                    recorded[count++] = System.nanoTime() - sent[i];
+                }
+            }
+            send(out, "exit");
+            out.flush();
+        } catch (IOException | InterruptedException e) {
+            failed.incrementAndGet();
+        } finally {
+            if (!counted)
+                connected.countDown();
+            latencies[client] = Arrays.copyOf(recorded, count);
+            requests.addAndGet(count);
+        }
+    }
+
+    private static void send(OutputStream out, String request) throws IOException {
+        out.write((request + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Reads one response: its length line, then that many bytes. */
+    private static void receive(InputStream in) throws IOException {
+        int length = 0;
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1)
+                throw new IOException("Connection closed.");
+            length = length * 10 + (b - '0');
+        }
+        while (length > 0) {
+            long skipped = in.skip(length);
+            if (skipped <= 0) {
+                if (in.read() == -1)
+                    throw new IOException("Connection closed.");
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    private long[] merge() {
+        long[] all = new long[(int) requests.get()];
+        int at = 0;
+        for (long[] client : latencies) {
+            if (client == null)
+                continue;
+            System.arraycopy(client, 0, all, at, client.length);
+            at += client.length;
+        }
+        Arrays.sort(all, 0, at);
+        return Arrays.copyOf(all, at);
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0)
+            return 0;
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1000.0;
+    }
+
+    /** Virtual threads where the runtime has them, as the server uses. */
+    private static ExecutorService clientExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(null, r, "load-client", STACK_SIZE);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+}
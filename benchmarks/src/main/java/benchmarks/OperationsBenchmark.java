@@ -0,0 +1,111 @@
+package benchmarks;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of each operation on trees of different shapes and sizes. Paths
+ * are absolute, so every call resolves its way down to the working directory
+ * of the tree. Each iteration runs as one batch, so what is measured is the
+ * work on the tree rather than a journal sync per call; JournalBenchmark
+ * measures those.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OperationsBenchmark {
+    @Param({ "wide", "deep", "balanced" })
+    public String shape;
+
+    @Param({ "1000", "100000" })
+    public int size;
+
+    private Path dir;
+    private Simulator fs;
+    private String target;
+    private String subject;
+    private String renamed;
+    private long counter;
+
+    @Setup(Level.Trial)
+    public void mount() throws Throwable {
+        dir = Trees.scratch();
+        fs = new Simulator(dir, 0);
+        target = Trees.build(fs, shape, size);
+        subject = target + "/subject";
+        renamed = target + "/renamed";
+        fs.createFile(subject);
+    }
+
+    @Setup(Level.Iteration)
+    public void beginIteration() throws Throwable {
+        fs.beginBatch();
+    }
+
+    @TearDown(Level.Iteration)
+    public void endIteration() throws Throwable {
+        fs.endBatch();
+    }
+
+    @TearDown(Level.Trial)
+    public void unmount() throws Throwable {
+        fs.shutdown();
+        Trees.delete(dir);
+    }
+
+    @Benchmark
+    public void createFile() throws Throwable {
+        fs.createFile(target + "/f-" + counter++);
+    }
+
+    @Benchmark
+    public void createDirectory() throws Throwable {
+        fs.createDirectory(target + "/d-" + counter++);
+    }
+
+    @Benchmark
+    public void changeDirectory() throws Throwable {
+        fs.changeDirectory(target);
+    }
+
+    @Benchmark
+    public String listDirectory() throws Throwable {
+        return fs.listDirectory(target);
+    }
+
+    /** Renames a file and back, so every call finds the tree as it was. */
+    @Benchmark
+    public void rename() throws Throwable {
+        fs.rename(subject, renamed);
+        fs.rename(renamed, subject);
+    }
+
+    @Benchmark
+    public void copy() throws Throwable {
+        fs.copy(subject, target + "/c-" + counter++, false);
+    }
+
+    /** Creates a file and deletes it, so every call has one to delete. */
+    @Benchmark
+    public void delete() throws Throwable {
+        String path = target + "/x-" + counter++;
+        fs.createFile(path);
+        fs.delete(path);
+    }
+}
@@ -0,0 +1,66 @@
+package benchmarks;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resolving a long path, from the path cache and by walking it. A '..'
+ * segment keeps a path out of the cache, so it is walked every time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathResolutionBenchmark {
+    @Param({ "10", "50" })
+    public int depth;
+
+    private Path dir;
+    private Simulator fs;
+    private String path;
+    private String walked;
+
+    @Setup(Level.Trial)
+    public void mount() throws Throwable {
+        dir = Trees.scratch();
+        fs = new Simulator(dir, 0);
+        StringBuilder p = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            p.append("/segment-").append(i);
+            fs.createDirectory(p.toString());
+        }
+        path = p.toString();
+        walked = path + "/../segment-" + (depth - 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void unmount() throws Throwable {
+        fs.shutdown();
+        Trees.delete(dir);
+    }
+
+    @Benchmark
+    public void cached() throws Throwable {
+        fs.changeDirectory(path);
+    }
+
+    @Benchmark
+    public void walked() throws Throwable {
+        fs.changeDirectory(walked);
+    }
+}
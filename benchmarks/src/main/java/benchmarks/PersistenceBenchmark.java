@@ -0,0 +1,100 @@
+package benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Saving and loading filesystem.dat. A checkpoint writes the whole image;
+ * mounting reads only its root, so walking the tree afterwards is measured
+ * as well, paging every directory in. Each trial also prints the size of
+ * the image it works on as one JSON object, like {@link Footprint}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Tree {
+        @Param({ "wide", "balanced" })
+        public String shape;
+
+        @Param({ "10000", "100000", "1000000" })
+        public int size;
+
+        Path dir;
+        String target;
+
+        @Setup(Level.Trial)
+        public void build() throws Throwable {
+            dir = Trees.scratch();
+            Simulator fs = new Simulator(dir, 0);
+            target = Trees.build(fs, shape, size);
+            fs.shutdown();
+            long image = Files.size(dir.resolve("filesystem.dat"));
+            System.out.printf("{\"shape\": \"%s\", \"nodes\": %d, \"imageBytes\": %d, \"bytesPerNode\": %.1f}%n",
+                    shape, size, image, (double) image / size);
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() throws Throwable {
+            Trees.delete(dir);
+        }
+    }
+
+    /** The tree, mounted. */
+    @State(Scope.Benchmark)
+    public static class Mounted {
+        Simulator fs;
+        String target;
+        long counter;
+
+        @Setup(Level.Trial)
+        public void mount(Tree tree) throws Throwable {
+            fs = new Simulator(tree.dir, 0);
+            target = tree.target;
+            fs.diskUsage("/");
+        }
+
+        @TearDown(Level.Trial)
+        public void unmount() throws Throwable {
+            fs.shutdown();
+        }
+    }
+
+    /** Changes one file and checkpoints the whole tree. */
+    @Benchmark
+    public void checkpoint(Mounted mounted) throws Throwable {
+        mounted.fs.createFile(mounted.target + "/saved-" + mounted.counter++);
+        mounted.fs.checkpoint();
+    }
+
+    @Benchmark
+    public void mount(Tree tree) throws Throwable {
+        new Simulator(tree.dir, 0).shutdown();
+    }
+
+    @Benchmark
+    public long mountAndWalk(Tree tree) throws Throwable {
+        Simulator fs = new Simulator(tree.dir, 0);
+        long used = fs.diskUsage("/");
+        fs.shutdown();
+        return used;
+    }
+}
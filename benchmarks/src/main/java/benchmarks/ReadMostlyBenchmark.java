@@ -0,0 +1,126 @@
+package benchmarks;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of sessions listing and entering one shared directory while a
+ * few of their operations add and remove files in it. Readers take no locks,
+ * so they should scale with threads however often the directory changes.
+ * Each thread commits its writes as one batch per iteration, as in
+ * ConcurrencyBenchmark. Run with -t 1, 2, 4 ... 64 to see how it scales.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class ReadMostlyBenchmark {
+    private static final String SHARED = "/shared";
+
+    @State(Scope.Benchmark)
+    public static class Mounted {
+        /** Percent of operations that only read. */
+        @Param({ "95", "99" })
+        int readPercent;
+
+        /** Subdirectories of the shared directory. */
+        @Param({ "8", "1000" })
+        int entries;
+
+        Path dir;
+        Simulator fs;
+
+        @Setup(Level.Trial)
+        public void mount() throws Throwable {
+            dir = Trees.scratch();
+            fs = new Simulator(dir, 0);
+            fs.beginBatch();
+            fs.createDirectory(SHARED);
+            for (int i = 0; i < entries; i++) {
+                fs.createDirectory(SHARED + "/d" + i);
+            }
+            fs.endBatch();
+        }
+
+        @TearDown(Level.Trial)
+        public void unmount() throws Throwable {
+            fs.shutdown();
+            Trees.delete(dir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Worker {
+        private static int workers;
+
+        Simulator fs;
+        Simulator.Session session;
+        int readPercent;
+        int entries;
+        String prefix;
+        long counter;
+        long written;
+
+        @Setup(Level.Trial)
+        public void open(Mounted mounted) throws Throwable {
+            fs = mounted.fs;
+            readPercent = mounted.readPercent;
+            entries = mounted.entries;
+            prefix = SHARED + "/w" + nextWorker() + "-";
+            session = fs.openSession();
+        }
+
+        @Setup(Level.Iteration)
+        public void beginIteration() throws Throwable {
+            fs.beginBatch();
+        }
+
+        @TearDown(Level.Iteration)
+        public void endIteration() throws Throwable {
+            fs.endBatch();
+        }
+
+        private static synchronized int nextWorker() {
+            return workers++;
+        }
+    }
+
+    /**
+     * Lists the shared directory or changes into one of its subdirectories;
+     * readPercent times in a hundred, otherwise creates a file of the worker's
+     * own in it or deletes the one created before.
+     */
+    @Benchmark
+    public Object mixed(Worker worker) throws Throwable {
+        long step = worker.counter++;
+        if (step % 100 < worker.readPercent) {
+            if ((step & 1) == 0)
+                return worker.fs.listDirectory(SHARED);
+            worker.session.changeDirectory(SHARED + "/d" + (step % worker.entries));
+            return null;
+        }
+        long file = worker.written++;
+        if ((file & 1) == 0) {
+            worker.session.createFile(worker.prefix + (file >> 1));
+        } else {
+            worker.session.delete(worker.prefix + (file >> 1));
+        }
+        return null;
+    }
+}
@@ -0,0 +1,88 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Path;
+
+/**
+ * Typed access to a shard router from the benchmarks, through method handles
+ * for the same reasons as {@link Simulator}.
+ */
+final class Router {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+    private static final Class<?> ROUTER = load("ShardRouter");
+    private static final Class<?> PARTITIONER = load("ShardRouter$Partitioner");
+
+    private static final MethodHandle LOCAL = local();
+    private static final MethodHandle HASH = hash();
+    private static final MethodHandle CREATE_FILE = method("createFile", void.class, String.class);
+    private static final MethodHandle CREATE_DIRECTORY = method("createDirectory", void.class, String.class);
+    private static final MethodHandle DELETE = method("delete", void.class, String.class);
+    private static final MethodHandle SHARD_OF = method("shardOf", int.class, String.class);
+    private static final MethodHandle CLOSE = method("close", void.class);
+
+    private final Object router;
+
+    /** Routes over {@code shards} simulators kept under {@code directory}, by hash. */
+    Router(Path directory, int shards) throws Throwable {
+        this.router = (Object) LOCAL.invokeExact(directory, shards, (Object) HASH.invokeExact());
+    }
+
+    void createFile(String path) throws Throwable {
+        CREATE_FILE.invokeExact(router, path);
+    }
+
+    void createDirectory(String path) throws Throwable {
+        CREATE_DIRECTORY.invokeExact(router, path);
+    }
+
+    void delete(String path) throws Throwable {
+        DELETE.invokeExact(router, path);
+    }
+
+    int shardOf(String path) throws Throwable {
+        return (int) SHARD_OF.invokeExact(router, path);
+    }
+
+    void close() throws Throwable {
+        CLOSE.invokeExact(router);
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle local() {
+        try {
+            MethodHandle handle = LOOKUP.findStatic(ROUTER, "local",
+                    MethodType.methodType(ROUTER, Path.class, int.class, PARTITIONER));
+            return handle.asType(MethodType.methodType(Object.class, Path.class, int.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle hash() {
+        try {
+            MethodHandle handle = LOOKUP.findStaticGetter(PARTITIONER, "HASH", PARTITIONER);
+            return handle.asType(MethodType.methodType(Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /** A handle taking the receiver as Object, so it can be invoked exactly. */
+    private static MethodHandle method(String name, Class<?> returns, Class<?>... parameters) {
+        try {
+            MethodHandle handle = LOOKUP.findVirtual(ROUTER, name, MethodType.methodType(returns, parameters));
+            return handle.asType(handle.type().changeParameterType(0, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package benchmarks;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Aggregate throughput of a namespace spread over 1, 2 and 4 shards. Each
+ * thread works under a top-level directory of its own, and the threads are
+ * spread evenly over the shards; every mutation syncs its shard's journal,
+ * so shards add throughput as long as they add independent journals.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class ShardBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Mounted {
+        @Param({"1", "2", "4"})
+        int shards;
+
+        Path dir;
+        Router router;
+        int workers;
+
+        @Setup(Level.Trial)
+        public void mount() throws Throwable {
+            dir = Trees.scratch();
+            router = new Router(dir, shards);
+        }
+
+        @TearDown(Level.Trial)
+        public void unmount() throws Throwable {
+            router.close();
+            Trees.delete(dir);
+        }
+
+        /** A new top-level directory on the shard after the last worker's. */
+        synchronized String home() throws Throwable {
+            int shard = workers++ % shards;
+            String home;
+            for (int i = 0; ; i++) {
+                home = "/w" + workers + "-" + i;
+                if (router.shardOf(home) == shard)
+                    break;
+            }
+            router.createDirectory(home);
+            return home;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Worker {
+        Router router;
+        String home;
+        long counter;
+
+        @Setup(Level.Trial)
+        public void open(Mounted mounted) throws Throwable {
+            router = mounted.router;
+            home = mounted.home();
+        }
+    }
+
+    /** Creates a file and deletes it again, so shards never run out of inodes. */
+    @Benchmark
+    public void createAndDelete(Worker worker) throws Throwable {
+        String file = worker.home + "/f" + worker.counter++;
+        worker.router.createFile(file);
+        worker.router.delete(file);
+    }
+}
@@ -0,0 +1,152 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Path;
+
+/**
+ * Typed access to the simulator from the benchmarks. Its classes are in the
+ * default package, which a named package can't import, and JMH only generates
+ * benchmarks for classes in a named package, so calls go through method handles
+ * looked up once. Held in static finals, they compile down to direct calls.
+ */
+final class Simulator {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+    private static final Class<?> FS = load("FileSystemSimulator");
+    private static final Class<?> SESSION = load("Session");
+
+    private static final MethodHandle NEW = constructor(FS, Path.class, long.class);
+    private static final MethodHandle CREATE_FILE = method(FS, "createFile", void.class, String.class);
+    private static final MethodHandle CREATE_DIRECTORY = method(FS, "createDirectory", void.class, String.class);
+    private static final MethodHandle CHANGE_DIRECTORY = method(FS, "changeDirectory", void.class, String.class);
+    private static final MethodHandle LIST_DIRECTORY = method(FS, "listDirectory", String.class, String.class);
+    private static final MethodHandle RENAME = method(FS, "rename", void.class, String.class, String.class);
+    private static final MethodHandle COPY = method(FS, "copy", void.class, String.class, String.class, boolean.class);
+    private static final MethodHandle DELETE = method(FS, "delete", void.class, String.class);
+    private static final MethodHandle DISK_USAGE = method(FS, "diskUsage", long.class, String.class);
+    private static final MethodHandle BEGIN_BATCH = method(FS, "beginBatch", void.class);
+    private static final MethodHandle END_BATCH = method(FS, "endBatch", void.class);
+    private static final MethodHandle CHECKPOINT = method(FS, "checkpoint", void.class);
+    private static final MethodHandle SHUTDOWN = method(FS, "shutdown", void.class);
+    private static final MethodHandle OPEN_SESSION = method(FS, "openSession", SESSION);
+
+    private static final MethodHandle SESSION_CREATE_FILE = method(SESSION, "createFile", void.class, String.class);
+    private static final MethodHandle SESSION_CREATE_DIRECTORY = method(SESSION, "createDirectory", void.class, String.class);
+    private static final MethodHandle SESSION_CHANGE_DIRECTORY = method(SESSION, "changeDirectory", void.class, String.class);
+    private static final MethodHandle SESSION_DELETE = method(SESSION, "delete", void.class, String.class);
+
+    private final Object fs;
+
+    /** Mounts the simulator kept in {@code directory}, formatting it if empty. */
+    Simulator(Path directory, long groupCommitMillis) throws Throwable {
+        this.fs = (Object) NEW.invokeExact(directory, groupCommitMillis);
+    }
+
+    void createFile(String path) throws Throwable {
+        CREATE_FILE.invokeExact(fs, path);
+    }
+
+    void createDirectory(String path) throws Throwable {
+        CREATE_DIRECTORY.invokeExact(fs, path);
+    }
+
+    void changeDirectory(String path) throws Throwable {
+        CHANGE_DIRECTORY.invokeExact(fs, path);
+    }
+
+    String listDirectory(String path) throws Throwable {
+        return (String) LIST_DIRECTORY.invokeExact(fs, path);
+    }
+
+    void rename(String from, String to) throws Throwable {
+        RENAME.invokeExact(fs, from, to);
+    }
+
+    void copy(String from, String to, boolean recursive) throws Throwable {
+        COPY.invokeExact(fs, from, to, recursive);
+    }
+
+    void delete(String path) throws Throwable {
+        DELETE.invokeExact(fs, path);
+    }
+
+    long diskUsage(String path) throws Throwable {
+        return (long) DISK_USAGE.invokeExact(fs, path);
+    }
+
+    void beginBatch() throws Throwable {
+        BEGIN_BATCH.invokeExact(fs);
+    }
+
+    void endBatch() throws Throwable {
+        END_BATCH.invokeExact(fs);
+    }
+
+    void checkpoint() throws Throwable {
+        CHECKPOINT.invokeExact(fs);
+    }
+
+    void shutdown() throws Throwable {
+        SHUTDOWN.invokeExact(fs);
+    }
+
+    Session openSession() throws Throwable {
+        return new Session((Object) OPEN_SESSION.invokeExact(fs));
+    }
+
+    /** A session with its own working directory, for one benchmark thread. */
+    static final class Session {
+        private final Object session;
+
+        private Session(Object session) {
+            this.session = session;
+        }
+
+        void createFile(String path) throws Throwable {
+            SESSION_CREATE_FILE.invokeExact(session, path);
+        }
+
+        void createDirectory(String path) throws Throwable {
+            SESSION_CREATE_DIRECTORY.invokeExact(session, path);
+        }
+
+        void changeDirectory(String path) throws Throwable {
+            SESSION_CHANGE_DIRECTORY.invokeExact(session, path);
+        }
+
+        void delete(String path) throws Throwable {
+            SESSION_DELETE.invokeExact(session, path);
+        }
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> owner, Class<?>... parameters) {
+        try {
+            MethodHandle handle = LOOKUP.findConstructor(owner, MethodType.methodType(void.class, parameters));
+            return handle.asType(handle.type().changeReturnType(Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /** A handle taking the receiver as Object, so it can be invoked exactly. */
+    private static MethodHandle method(Class<?> owner, String name, Class<?> returns, Class<?>... parameters) {
+        try {
+            MethodHandle handle = LOOKUP.findVirtual(owner, name, MethodType.methodType(returns, parameters));
+            MethodType erased = handle.type().changeParameterType(0, Object.class);
+            if (!returns.isPrimitive() && returns != String.class)
+                erased = erased.changeReturnType(Object.class);
+            return handle.asType(erased);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.stream.Stream;
+
+/** Synthetic trees and scratch directories for the benchmarks. */
+final class Trees {
+    private static final int FANOUT = 10;
+    // Every operation spells out the path of what it changes, so going deeper
+    // than this would make building the tree quadratic in its size.
+    private static final int MAX_DEPTH = 1000;
+    private static final int NODES_PER_BATCH = 10_000;
+
+    private Trees() {
+    }
+
+    /** A fresh directory for one simulator's image, journal and block device. */
+    static Path scratch() throws IOException {
+        return Files.createTempDirectory("fs-bench");
+    }
+
+    static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    /**
+     * Builds a tree of {@code size} nodes and returns the absolute path of the
+     * directory the benchmarks work in:
+     * <ul>
+     * <li>wide: one directory holding every node as a file; works in it</li>
+     * <li>deep: chains of up to {@value #MAX_DEPTH} nested directories side
+     * by side; works in the deepest directory of the last chain</li>
+     * <li>balanced: directories with {@value #FANOUT} children each, filled
+     * level by level; works in the last one made</li>
+     * </ul>
+     * Nodes are committed {@value #NODES_PER_BATCH} at a time.
+     */
+    static String build(Simulator fs, String shape, int size) throws Throwable {
+        fs.beginBatch();
+        try {
+            switch (shape) {
+                case "wide":
+                    return wide(fs, size);
+                case "deep":
+                    return deep(fs, size);
+                case "balanced":
+                    return balanced(fs, size);
+                default:
+                    throw new IllegalArgumentException("Unknown tree shape '" + shape + "'.");
+            }
+        } finally {
+            fs.endBatch();
+        }
+    }
+
+    private static String wide(Simulator fs, int size) throws Throwable {
+        fs.createDirectory("/wide");
+        for (int i = 1; i < size; i++) {
+            fs.createFile("/wide/f" + i);
+            split(fs, i);
+        }
+        return "/wide";
+    }
+
+    private static String deep(Simulator fs, int size) throws Throwable {
+        // Relative steps avoid resolving the whole chain for each new level.
+        String path = null;
+        for (int made = 0, chain = 0; made < size; chain++) {
+            StringBuilder p = new StringBuilder("/chain" + chain);
+            fs.createDirectory(p.toString());
+            fs.changeDirectory(p.toString());
+            split(fs, ++made);
+            for (int depth = 1; depth < MAX_DEPTH && made < size; depth++) {
+                fs.createDirectory("d");
+                fs.changeDirectory("d");
+                p.append("/d");
+                split(fs, ++made);
+            }
+            path = p.toString();
+        }
+        fs.changeDirectory("/");
+        return path;
+    }
+
+    private static String balanced(Simulator fs, int size) throws Throwable {
+        Deque<String> pending = new ArrayDeque<>();
+        fs.createDirectory("/balanced");
+        pending.add("/balanced");
+        String last = "/balanced";
+        int made = 1;
+        while (made < size) {
+            String parent = pending.poll();
+            for (int i = 0; i < FANOUT && made < size; i++, made++) {
+                String child = parent + "/n" + i;
+                fs.createDirectory(child);
+                pending.add(child);
+                last = child;
+                split(fs, made);
+            }
+        }
+        return last;
+    }
+
+    private static void split(Simulator fs, int made) throws Throwable {
+        if (made % NODES_PER_BATCH == 0) {
+            fs.endBatch();
+            fs.beginBatch();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package benchmarks;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A recursive walk (du) over a whole tree. Walks run on the common fork/join
+ * pool; compare core counts with
+ * -jvmArgsAppend -Djava.util.concurrent.ForkJoinPool.common.parallelism=N.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WalkBenchmark {
+    @Param({ "wide", "deep", "balanced" })
+    public String shape;
+
+    @Param({ "100000" })
+    public int size;
+
+    private Path dir;
+    private Simulator fs;
+
+    @Setup(Level.Trial)
+    public void mount() throws Throwable {
+        dir = Trees.scratch();
+        fs = new Simulator(dir, 0);
+        Trees.build(fs, shape, size);
+    }
+
+    @TearDown(Level.Trial)
+    public void unmount() throws Throwable {
+        fs.shutdown();
+        Trees.delete(dir);
+    }
+
+    @Benchmark
+    public long diskUsage() throws Throwable {
+        return fs.diskUsage("/");
+    }
+}
@@ -0,0 +1,788 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+/**
+ * Simulated block device backing file content. The image is mapped into
+ * memory and laid out as:
+ *
+ * <pre>
+ * | superblock | free-block bitmap | inode table | data blocks |
+ * </pre>
+ *
+ * The image grows when it runs out of blocks, doubling up to the 2 GB a
+ * mapping can hold; the bitmap is sized for that from the start, so no block
+ * ever moves. When the inode table is full, another as large is allocated
+ * among the data blocks, and the superblock lists where each part of the
+ * table lives.
+ *
+ * Each inode records the file size and the extents (runs of contiguous
+ * blocks) holding its bytes. The first extents live in the inode itself;
+ * longer lists spill into a chain of extent blocks. Reads hand out read-only
+ * views of the mapped region and writes copy straight into it, so file bytes
+ * never live on the heap.
+ *
+ * A copied inode shares its data blocks with the original. Each block keeps a
+ * count of the inodes holding it; a write to a shared block first moves the
+ * writer onto a private copy of it. The counts aren't stored in the image but
+ * recomputed from the extents when it is mounted.
+ *
+ * Blocks are also shared by content: after a write, each block it touched is
+ * hashed and, if another block already holds the same bytes, the inode is
+ * pointed at that one and its own is freed. Files only ever write to inodes
+ * created since the last checkpoint (see FileSystemSimulator), so remapping
+ * never touches blocks a checkpoint relies on. The content index only covers
+ * blocks written since the device was opened.
+ *
+ * Changes reach the image file through the page cache; {@link #force()} makes
+ * them durable.
+ */
+public class BlockDevice implements Closeable {
+    public static final int BLOCK_SIZE = 4096;
+
+    private static final int MAGIC = 0x46534244; // "FSBD"
+    private static final int VERSION = 2;
+    private static final int INODE_SIZE = 128;
+    private static final int INODE_HEADER = 24;
+    private static final int INLINE_EXTENTS = (INODE_SIZE - INODE_HEADER) / 8;
+    // The last slot of an extent block links to the next one.
+    private static final int EXTENTS_PER_BLOCK = BLOCK_SIZE / 8 - 1;
+    private static final int BLOCKS_PER_INODE = 4;
+    // Block offsets are ints, so a mapping holds at most this many blocks.
+    private static final int MAX_BLOCKS = Integer.MAX_VALUE / BLOCK_SIZE;
+    // The superblock lists the parts of the inode table as {first block, inodes}.
+    private static final int SEGMENTS_AT = 32;
+    private static final int MAX_SEGMENTS = (BLOCK_SIZE - SEGMENTS_AT) / 8;
+
+    private final FileChannel channel;
+    private MappedByteBuffer disk;
+    private int blockCount;
+    private final int maxBlocks;
+    private int inodeCount;
+    private final int bitmapStart;
+    private final int bitmapBlocks;
+    private final int dataStart;
+    // First block and first inode of each part of the inode table.
+    private int[] segmentBlocks = new int[1];
+    private int[] segmentInodes = new int[1];
+    private int segmentCount;
+
+    private final BitSet usedBlocks = new BitSet();
+    private final BitSet usedInodes = new BitSet();
+    private int[] refs;
+    // Content hash of each indexed block, and the block holding each hash.
+    private long[] hashes;
+    private final BitSet indexed = new BitSet();
+    private final Map<Long, Integer> contentIndex = new HashMap<>();
+    private final Map<Integer, Inode> inodes = new HashMap<>();
+    private int blockHint;
+
+    private static class Inode {
+        long size;
+        int[] starts = new int[INLINE_EXTENTS];
+        int[] lengths = new int[INLINE_EXTENTS];
+        int extentCount;
+        List<Integer> extentBlocks = new ArrayList<>();
+
+        long blocks() {
+            long total = 0;
+            for (int i = 0; i < extentCount; i++) {
+                total += lengths[i];
+            }
+            return total;
+        }
+
+        void addExtent(int start, int length) {
+            if (extentCount > 0 && starts[extentCount - 1] + lengths[extentCount - 1] == start) {
+                lengths[extentCount - 1] += length;
+                return;
+            }
+            if (extentCount == starts.length) {
+                starts = Arrays.copyOf(starts, extentCount * 2);
+                lengths = Arrays.copyOf(lengths, extentCount * 2);
+            }
+            starts[extentCount] = start;
+            lengths[extentCount] = length;
+            extentCount++;
+        }
+    }
+
+    /**
+     * Opens the image at {@code path}, formatting a new one of
+     * {@code capacity} bytes if it doesn't exist or isn't a device image.
+     * Either grows as files need more space.
+     */
+    public BlockDevice(Path path, long capacity) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        int version = channel.size() >= BLOCK_SIZE && readInt(0) == MAGIC ? readInt(4) : 0;
+        long size = version > 0 ? channel.size() : capacity;
+        if (size > (long) MAX_BLOCKS * BLOCK_SIZE)
+            throw new IOException("Block device images are limited to 2 GB.");
+
+        blockCount = (int) (size / BLOCK_SIZE);
+        bitmapStart = 1;
+        if (version == 0) {
+            bitmapBlocks = (MAX_BLOCKS / 8 + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            inodeCount = blockCount / BLOCKS_PER_INODE;
+        } else if (version == 1) {
+            // Version 1 images never grew, so their bitmap only covers their size.
+            bitmapBlocks = (blockCount / 8 + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            inodeCount = readInt(16);
+        } else {
+            bitmapBlocks = readInt(24);
+            inodeCount = 0;
+        }
+        maxBlocks = Math.min(MAX_BLOCKS, bitmapBlocks * BLOCK_SIZE * 8);
+        if (version < VERSION) {
+            segmentBlocks[0] = bitmapStart + bitmapBlocks;
+            segmentCount = 1;
+        }
+        dataStart = version < VERSION ? segmentBlocks[0] + (int) inodeBlocks(inodeCount) : readInt(20);
+        refs = new int[blockCount];
+        hashes = new long[blockCount];
+
+        disk = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) blockCount * BLOCK_SIZE);
+        if (version == 0) {
+            format();
+        } else {
+            mount(version);
+        }
+    }
+
+    /** Allocates an empty inode and returns its number. */
+    public synchronized int allocateInode() throws IOException {
+        int inode = usedInodes.nextClearBit(1);
+        if (inode >= inodeCount)
+            addInodes();
+
+        usedInodes.set(inode);
+        inodes.put(inode, new Inode());
+        writeInode(inode);
+        return inode;
+    }
+
+    /** Releases an inode and every block it holds. */
+    public synchronized void freeInode(int inode) {
+        Inode node = inodes.remove(inode);
+        if (node == null)
+            return;
+
+        for (int i = 0; i < node.extentCount; i++) {
+            dropBlocks(node.starts[i], node.lengths[i]);
+        }
+        for (int block : node.extentBlocks) {
+            freeBlocks(block, 1);
+        }
+        usedInodes.clear(inode);
+        int at = inodeOffset(inode);
+        for (int i = 0; i < INODE_SIZE; i++) {
+            disk.put(at + i, (byte) 0);
+        }
+    }
+
+    public synchronized long size(int inode) {
+        return inode(inode).size;
+    }
+
+    /**
+     * Returns read-only views of the mapped region covering up to
+     * {@code length} bytes from {@code offset}, one per contiguous run.
+     */
+    public synchronized List<ByteBuffer> read(int inode, long offset, int length) {
+        Inode node = inode(inode);
+        List<ByteBuffer> views = new ArrayList<>();
+        long end = Math.min(node.size, offset + length);
+        long position = offset;
+        while (position < end) {
+            long logical = position / BLOCK_SIZE;
+            int within = (int) (position % BLOCK_SIZE);
+            int[] run = physicalRun(node, logical);
+            long runBytes = (long) run[1] * BLOCK_SIZE - within;
+            int count = (int) Math.min(runBytes, end - position);
+            int address = run[0] * BLOCK_SIZE + within;
+            views.add(disk.slice(address, count).asReadOnlyBuffer());
+            position += count;
+        }
+        return views;
+    }
+
+    /**
+     * Writes the remaining bytes of {@code src} at {@code offset}, growing the
+     * file as needed. A gap past the current end reads back as zeros.
+     */
+    public synchronized void write(int inode, long offset, ByteBuffer src) throws IOException {
+        Inode node = inode(inode);
+        long end = offset + src.remaining();
+        if (end == offset)
+            return;
+        ensureBlocks(node, end);
+        unshare(node, offset / BLOCK_SIZE, (end - 1) / BLOCK_SIZE);
+        unindex(node, offset / BLOCK_SIZE, (end - 1) / BLOCK_SIZE);
+
+        long position = offset;
+        while (src.hasRemaining()) {
+            long logical = position / BLOCK_SIZE;
+            int within = (int) (position % BLOCK_SIZE);
+            int[] run = physicalRun(node, logical);
+            int count = (int) Math.min((long) run[1] * BLOCK_SIZE - within, src.remaining());
+            disk.put(run[0] * BLOCK_SIZE + within, src, src.position(), count);
+            src.position(src.position() + count);
+            position += count;
+        }
+
+        node.size = Math.max(node.size, end);
+        deduplicate(node, offset / BLOCK_SIZE, (end - 1) / BLOCK_SIZE);
+        writeInode(inode);
+    }
+
+    /** Cuts the file to {@code size} bytes, or zero-extends it. */
+    public synchronized void truncate(int inode, long size) throws IOException {
+        Inode node = inode(inode);
+        if (size > node.size) {
+            ensureBlocks(node, size);
+            node.size = size;
+            writeInode(inode);
+            return;
+        }
+
+        // Clear the tail of the last kept block so growing the file again
+        // reads zeros rather than the old bytes.
+        int within = (int) (size % BLOCK_SIZE);
+        if (within != 0) {
+            unshare(node, size / BLOCK_SIZE, size / BLOCK_SIZE);
+            unindex(node, size / BLOCK_SIZE, size / BLOCK_SIZE);
+            int block = physicalRun(node, size / BLOCK_SIZE)[0];
+            for (int i = within; i < BLOCK_SIZE; i++) {
+                disk.put(block * BLOCK_SIZE + i, (byte) 0);
+            }
+        }
+
+        long keep = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        long seen = 0;
+        int extents = 0;
+        for (int i = 0; i < node.extentCount; i++) {
+            if (seen >= keep) {
+                dropBlocks(node.starts[i], node.lengths[i]);
+                continue;
+            }
+            if (seen + node.lengths[i] > keep) {
+                int kept = (int) (keep - seen);
+                dropBlocks(node.starts[i] + kept, node.lengths[i] - kept);
+                node.lengths[i] = kept;
+            }
+            seen += node.lengths[i];
+            extents++;
+        }
+        node.extentCount = extents;
+        node.size = size;
+        writeInode(inode);
+    }
+
+    /**
+     * Returns a new inode with the content of {@code source}. No data is
+     * copied: both inodes share the blocks until one of them writes.
+     */
+    public synchronized int copy(int source) throws IOException {
+        Inode from = inode(source);
+        int target = allocateInode();
+        Inode to = inodes.get(target);
+        to.size = from.size;
+        to.starts = Arrays.copyOf(from.starts, from.starts.length);
+        to.lengths = Arrays.copyOf(from.lengths, from.lengths.length);
+        to.extentCount = from.extentCount;
+        for (int i = 0; i < from.extentCount; i++) {
+            for (int block = from.starts[i]; block < from.starts[i] + from.lengths[i]; block++) {
+                refs[block]++;
+            }
+        }
+        writeInode(target);
+        return target;
+    }
+
+    /**
+     * Whether two inodes hold the same bytes. Blocks they share, as copies
+     * do, are not read.
+     */
+    public synchronized boolean sameContent(int a, int b) {
+        Inode first = inode(a);
+        Inode second = inode(b);
+        if (first.size != second.size)
+            return false;
+        int[] firstBlocks = blockMap(first);
+        int[] secondBlocks = blockMap(second);
+        if (firstBlocks.length != secondBlocks.length)
+            return false;
+        for (int i = 0; i < firstBlocks.length; i++) {
+            if (firstBlocks[i] != secondBlocks[i] && !sameBlock(firstBlocks[i], secondBlocks[i]))
+                return false;
+        }
+        return true;
+    }
+
+    /** Frees every inode for which {@code live} doesn't hold, e.g. at boot. */
+    public synchronized int reclaim(IntPredicate live) {
+        List<Integer> dead = new ArrayList<>();
+        for (int inode : inodes.keySet()) {
+            if (!live.test(inode))
+                dead.add(inode);
+        }
+        dead.forEach(this::freeInode);
+        return dead.size();
+    }
+
+    /**
+     * Bytes of file content, counting blocks shared between files once per
+     * file; divided by {@link #storedBytes()} it gives the space saved by
+     * copy-on-write and deduplication.
+     */
+    public synchronized long logicalBytes() {
+        long blocks = 0;
+        for (Inode node : inodes.values()) {
+            blocks += node.blocks();
+        }
+        return blocks * BLOCK_SIZE;
+    }
+
+    /** Bytes of data blocks actually holding file content. */
+    public synchronized long storedBytes() {
+        long blocks = 0;
+        for (int block = refs.length - 1; block >= dataStart; block--) {
+            if (refs[block] > 0)
+                blocks++;
+        }
+        return blocks * BLOCK_SIZE;
+    }
+
+    public synchronized long freeBytes() {
+        return (long) (blockCount - usedBlocks.cardinality()) * BLOCK_SIZE;
+    }
+
+    public synchronized long capacity() {
+        return (long) blockCount * BLOCK_SIZE;
+    }
+
+    public void force() {
+        MappedByteBuffer mapped;
+        synchronized (this) {
+            mapped = disk;
+        }
+        // Every mapping of the image shares its pages, so forcing the latest
+        // also forces what was written through those before it grew.
+        mapped.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    private int readInt(long position) throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(Integer.BYTES);
+        channel.read(value, position);
+        return value.flip().getInt();
+    }
+
+    private static long inodeBlocks(int inodes) {
+        return ((long) inodes * INODE_SIZE + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    private void format() {
+        for (int i = 0; i < dataStart; i++) {
+            usedBlocks.set(i);
+        }
+        usedInodes.set(0); // inode 0 is reserved so 0 never names a file
+        for (int i = 0; i < dataStart * BLOCK_SIZE; i++) {
+            disk.put(i, (byte) 0);
+        }
+        writeBitmap(0, dataStart);
+        writeSuperblock();
+        disk.force();
+    }
+
+    private void writeSuperblock() {
+        disk.putInt(0, MAGIC);
+        disk.putInt(4, VERSION);
+        disk.putInt(8, BLOCK_SIZE);
+        disk.putInt(12, blockCount);
+        disk.putInt(16, inodeCount);
+        disk.putInt(20, dataStart);
+        disk.putInt(24, bitmapBlocks);
+        disk.putInt(28, segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            int next = i + 1 < segmentCount ? segmentInodes[i + 1] : inodeCount;
+            disk.putInt(SEGMENTS_AT + i * 8, segmentBlocks[i]);
+            disk.putInt(SEGMENTS_AT + i * 8 + 4, next - segmentInodes[i]);
+        }
+    }
+
+    private void mount(int version) {
+        if (version < VERSION) {
+            writeSuperblock();
+        } else {
+            segmentCount = disk.getInt(28);
+            segmentBlocks = new int[segmentCount];
+            segmentInodes = new int[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                segmentBlocks[i] = disk.getInt(SEGMENTS_AT + i * 8);
+                segmentInodes[i] = inodeCount;
+                inodeCount += disk.getInt(SEGMENTS_AT + i * 8 + 4);
+            }
+        }
+
+        for (int block = 0; block < blockCount; block++) {
+            int bits = disk.get(bitmapStart * BLOCK_SIZE + block / 8);
+            if ((bits & (1 << (block % 8))) != 0)
+                usedBlocks.set(block);
+        }
+
+        usedInodes.set(0);
+        for (int inode = 1; inode < inodeCount; inode++) {
+            int at = inodeOffset(inode);
+            if (disk.getInt(at) == 0)
+                continue;
+
+            Inode node = new Inode();
+            int extentCount = disk.getInt(at + 4);
+            node.size = disk.getLong(at + 8);
+            int next = disk.getInt(at + 16);
+            for (int i = 0; i < extentCount; i++) {
+                int address;
+                if (i < INLINE_EXTENTS) {
+                    address = at + INODE_HEADER + i * 8;
+                } else {
+                    int slot = (i - INLINE_EXTENTS) % EXTENTS_PER_BLOCK;
+                    if (slot == 0) {
+                        node.extentBlocks.add(next);
+                        next = disk.getInt(next * BLOCK_SIZE + EXTENTS_PER_BLOCK * 8);
+                    }
+                    int block = node.extentBlocks.get(node.extentBlocks.size() - 1);
+                    address = block * BLOCK_SIZE + slot * 8;
+                }
+                node.addExtent(disk.getInt(address), disk.getInt(address + 4));
+            }
+            for (int i = 0; i < node.extentCount; i++) {
+                for (int block = node.starts[i]; block < node.starts[i] + node.lengths[i]; block++) {
+                    refs[block]++;
+                }
+            }
+            usedInodes.set(inode);
+            inodes.put(inode, node);
+        }
+    }
+
+    private Inode inode(int inode) {
+        Inode node = inodes.get(inode);
+        if (node == null)
+            throw new IllegalArgumentException("Inode " + inode + " is not allocated.");
+        return node;
+    }
+
+    private int inodeOffset(int inode) {
+        int segment = segmentCount - 1;
+        while (segmentInodes[segment] > inode) {
+            segment--;
+        }
+        return segmentBlocks[segment] * BLOCK_SIZE + (inode - segmentInodes[segment]) * INODE_SIZE;
+    }
+
+    /**
+     * Doubles the inode table, placing the new part in free data blocks, or
+     * in blocks added at the end of the image if none are free in a row.
+     */
+    private void addInodes() throws IOException {
+        int inodes = inodeCount;
+        long blocks = inodeBlocks(inodes);
+        if (segmentCount == MAX_SEGMENTS || blocks > maxBlocks)
+            throw new IOException("No free inodes left on the block device.");
+
+        int length = (int) blocks;
+        int start = usedBlocks.nextClearBit(dataStart);
+        while (start < blockCount) {
+            int used = usedBlocks.nextSetBit(start);
+            if (used < 0 || used >= start + length)
+                break;
+            start = usedBlocks.nextClearBit(used);
+        }
+        if ((long) start + length > blockCount)
+            grow((long) start + length);
+        usedBlocks.set(start, start + length);
+        writeBitmap(start, start + length);
+        for (int i = start * BLOCK_SIZE; i < (start + length) * BLOCK_SIZE; i += Long.BYTES) {
+            disk.putLong(i, 0L);
+        }
+
+        if (segmentCount == segmentBlocks.length) {
+            segmentBlocks = Arrays.copyOf(segmentBlocks, segmentCount * 2);
+            segmentInodes = Arrays.copyOf(segmentInodes, segmentCount * 2);
+        }
+        segmentBlocks[segmentCount] = start;
+        segmentInodes[segmentCount] = inodeCount;
+        segmentCount++;
+        inodeCount += inodes;
+        writeSuperblock();
+    }
+
+    /**
+     * Extends the image to at least {@code blocks} blocks, doubling it where
+     * it can. Blocks keep their numbers; the new ones read as zeros.
+     */
+    private void grow(long blocks) throws IOException {
+        if (blocks > maxBlocks)
+            throw new IOException("Block device is full.");
+        int grown = (int) Math.max(blocks, Math.min(maxBlocks, 2L * blockCount));
+        // Views handed out by read() keep the old mapping, which stays valid.
+        disk = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) grown * BLOCK_SIZE);
+        refs = Arrays.copyOf(refs, grown);
+        hashes = Arrays.copyOf(hashes, grown);
+        blockCount = grown;
+        writeSuperblock();
+    }
+
+    /** Returns {physical start, blocks left in the run} for a logical block. */
+    private int[] physicalRun(Inode node, long logical) {
+        long seen = 0;
+        for (int i = 0; i < node.extentCount; i++) {
+            if (logical < seen + node.lengths[i]) {
+                int skip = (int) (logical - seen);
+                return new int[] { node.starts[i] + skip, node.lengths[i] - skip };
+            }
+            seen += node.lengths[i];
+        }
+        throw new IllegalStateException("Block " + logical + " is past the end of the file.");
+    }
+
+    /** Allocates zeroed blocks so the file can hold {@code size} bytes. */
+    private void ensureBlocks(Inode node, long size) throws IOException {
+        long needed = (size + BLOCK_SIZE - 1) / BLOCK_SIZE - node.blocks();
+        while (needed > 0) {
+            int start = -1;
+            if (node.extentCount > 0) {
+                int after = node.starts[node.extentCount - 1] + node.lengths[node.extentCount - 1];
+                if (after < blockCount && !usedBlocks.get(after))
+                    start = after;
+            }
+            if (start == -1)
+                start = findFreeBlock();
+
+            int length = 0;
+            while (length < needed && start + length < blockCount && !usedBlocks.get(start + length)) {
+                length++;
+            }
+            usedBlocks.set(start, start + length);
+            Arrays.fill(refs, start, start + length, 1);
+            writeBitmap(start, start + length);
+            for (int i = start * BLOCK_SIZE; i < (start + length) * BLOCK_SIZE; i += Long.BYTES) {
+                disk.putLong(i, 0L);
+            }
+            node.addExtent(start, length);
+            needed -= length;
+        }
+    }
+
+    /**
+     * Gives the inode private copies of the shared blocks among logical blocks
+     * {@code first} to {@code last}, so it can write them.
+     */
+    private void unshare(Inode node, long first, long last) throws IOException {
+        boolean shared = false;
+        for (long logical = first; logical <= last && !shared; ) {
+            int[] run = physicalRun(node, logical);
+            int count = (int) Math.min(run[1], last - logical + 1);
+            for (int i = 0; i < count && !shared; i++) {
+                shared = refs[run[0] + i] > 1;
+            }
+            logical += count;
+        }
+        if (!shared)
+            return;
+
+        int[] map = blockMap(node);
+        for (int l = (int) first; l <= last; l++) {
+            int old = map[l];
+            if (refs[old] <= 1)
+                continue;
+
+            int block = l > 0 && map[l - 1] + 1 < blockCount && !usedBlocks.get(map[l - 1] + 1)
+                    ? map[l - 1] + 1
+                    : findFreeBlock();
+            usedBlocks.set(block);
+            writeBitmap(block, block + 1);
+            refs[block] = 1;
+            disk.put(block * BLOCK_SIZE, disk, old * BLOCK_SIZE, BLOCK_SIZE);
+            refs[old]--;
+            map[l] = block;
+        }
+
+        node.extentCount = 0;
+        for (int block : map) {
+            node.addExtent(block, 1);
+        }
+    }
+
+    /** Drops the blocks about to be overwritten from the content index. */
+    private void unindex(Inode node, long first, long last) {
+        for (long logical = first; logical <= last; ) {
+            int[] run = physicalRun(node, logical);
+            int count = (int) Math.min(run[1], last - logical + 1);
+            for (int i = 0; i < count; i++) {
+                unindex(run[0] + i);
+            }
+            logical += count;
+        }
+    }
+
+    private void unindex(int block) {
+        if (!indexed.get(block))
+            return;
+        indexed.clear(block);
+        contentIndex.remove(hashes[block], block);
+    }
+
+    /**
+     * Points each of logical blocks {@code first} to {@code last} at a block
+     * already holding the same bytes, if there is one, freeing its own; the
+     * others are added to the index. The blocks were just written, so the
+     * inode holds them alone.
+     */
+    private void deduplicate(Inode node, long first, long last) {
+        int[] map = null;
+        for (long logical = first; logical <= last; logical++) {
+            int block = physicalRun(node, logical)[0];
+            long hash = hash(block);
+            Integer same = contentIndex.get(hash);
+            if (same == null) {
+                contentIndex.put(hash, block);
+                hashes[block] = hash;
+                indexed.set(block);
+            } else if (same != block && sameBlock(same, block)) {
+                if (map == null)
+                    map = blockMap(node);
+                map[(int) logical] = same;
+                refs[same]++;
+                dropBlocks(block, 1);
+            }
+        }
+        if (map == null)
+            return;
+        node.extentCount = 0;
+        for (int block : map) {
+            node.addExtent(block, 1);
+        }
+    }
+
+    private long hash(int block) {
+        long h = 0x9E3779B97F4A7C15L;
+        for (int i = block * BLOCK_SIZE; i < (block + 1) * BLOCK_SIZE; i += Long.BYTES) {
+            h = Long.rotateLeft(h ^ disk.getLong(i) * 0xC2B2AE3D27D4EB4FL, 31) * 0x9E3779B97F4A7C15L;
+        }
+        return h ^ h >>> 29;
+    }
+
+    private boolean sameBlock(int a, int b) {
+        return disk.slice(a * BLOCK_SIZE, BLOCK_SIZE).equals(disk.slice(b * BLOCK_SIZE, BLOCK_SIZE));
+    }
+
+    /** The physical block of each logical block of the inode. */
+    private int[] blockMap(Inode node) {
+        int[] map = new int[(int) node.blocks()];
+        int logical = 0;
+        for (int i = 0; i < node.extentCount; i++) {
+            for (int j = 0; j < node.lengths[i]; j++) {
+                map[logical++] = node.starts[i] + j;
+            }
+        }
+        return map;
+    }
+
+    private int findFreeBlock() throws IOException {
+        int block = usedBlocks.nextClearBit(Math.max(blockHint, dataStart));
+        if (block >= blockCount)
+            block = usedBlocks.nextClearBit(dataStart);
+        if (block >= blockCount)
+            grow(block + 1L);
+        blockHint = block + 1;
+        return block;
+    }
+
+    /** Drops one inode's hold on data blocks, freeing those left unused. */
+    private void dropBlocks(int start, int length) {
+        for (int block = start; block < start + length; block++) {
+            if (--refs[block] <= 0) {
+                refs[block] = 0;
+                freeBlocks(block, 1);
+            }
+        }
+    }
+
+    private void freeBlocks(int start, int length) {
+        for (int block = start; block < start + length; block++) {
+            unindex(block);
+        }
+        usedBlocks.clear(start, start + length);
+        writeBitmap(start, start + length);
+        blockHint = Math.min(blockHint, start);
+    }
+
+    private void writeBitmap(int from, int to) {
+        for (int byteIndex = from / 8; byteIndex <= (to - 1) / 8; byteIndex++) {
+            int bits = 0;
+            for (int bit = 0; bit < 8; bit++) {
+                if (usedBlocks.get(byteIndex * 8 + bit))
+                    bits |= 1 << bit;
+            }
+            disk.put(bitmapStart * BLOCK_SIZE + byteIndex, (byte) bits);
+        }
+    }
+
+    private void writeInode(int inode) throws IOException {
+        Inode node = inodes.get(inode);
+        int spill = Math.max(0, node.extentCount - INLINE_EXTENTS);
+        int chainLength = (spill + EXTENTS_PER_BLOCK - 1) / EXTENTS_PER_BLOCK;
+        while (node.extentBlocks.size() > chainLength) {
+            freeBlocks(node.extentBlocks.remove(node.extentBlocks.size() - 1), 1);
+        }
+        while (node.extentBlocks.size() < chainLength) {
+            int block = findFreeBlock();
+            usedBlocks.set(block);
+            writeBitmap(block, block + 1);
+            node.extentBlocks.add(block);
+        }
+
+        int at = inodeOffset(inode);
+        disk.putInt(at, 1);
+        disk.putInt(at + 4, node.extentCount);
+        disk.putLong(at + 8, node.size);
+        disk.putInt(at + 16, node.extentBlocks.isEmpty() ? 0 : node.extentBlocks.get(0));
+        for (int i = 0; i < node.extentCount; i++) {
+            int address;
+            if (i < INLINE_EXTENTS) {
+                address = at + INODE_HEADER + i * 8;
+            } else {
+                int chain = (i - INLINE_EXTENTS) / EXTENTS_PER_BLOCK;
+                int slot = (i - INLINE_EXTENTS) % EXTENTS_PER_BLOCK;
+                int block = node.extentBlocks.get(chain);
+                address = block * BLOCK_SIZE + slot * 8;
+                if (slot == 0) {
+                    int next = chain + 1 < node.extentBlocks.size() ? node.extentBlocks.get(chain + 1) : 0;
+                    disk.putInt(block * BLOCK_SIZE + EXTENTS_PER_BLOCK * 8, next);
+                }
+            }
+            disk.putInt(address, node.starts[i]);
+            disk.putInt(address + 4, node.lengths[i]);
+        }
+    }
+}
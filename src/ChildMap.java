@@ -0,0 +1,368 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The children of a directory, by name, in insertion order. A map never
+ * changes: adding or removing a child returns a new version and leaves the
+ * old one as it was, so a directory publishes a change with a single write
+ * and readers use whatever version they read without locking. Versions no
+ * reader holds any more are reclaimed by the garbage collector.
+ *
+ * Up to INLINE_CAPACITY children are kept in an array in insertion order,
+ * scanned on lookup and copied on change. Larger maps are hash array mapped
+ * tries: a change copies only the nodes on the path to the child, so it takes
+ * O(log32 n) however large the directory. Each child is then stored with the
+ * number it was added under, and listings sort by it. Maps that shrink below
+ * half of INLINE_CAPACITY go back to an array.
+ *
+ * A version builds its listings once, when first asked for: in insertion
+ * order and by name. Paging through a large directory then finds where a
+ * page starts by binary search rather than by scanning or sorting again.
+ *
+ * Children are keyed by their name when they are added, so a node must be
+ * removed before it is renamed and added back afterwards.
+ */
+final class ChildMap {
+    private static final int INLINE_CAPACITY = 8;
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    // The last level of the trie uses the top bits of the hash; names whose
+    // hashes are equal all the way down share a bucket there.
+    private static final int MAX_SHIFT = 30;
+
+    static final ChildMap EMPTY = new ChildMap(new FSNode[0], null, 0, 0);
+
+    // One of the two is set: the array while small, the trie past it.
+    private final FSNode[] inline;
+    private final Node trie;
+    private final int size;
+    private final long nextOrder;
+    // Built when first asked for. Both are immutable down to their final
+    // fields, so threads racing to build them each see a complete one.
+    private Listing listing;
+    private List<FSNode> byName;
+
+    private ChildMap(FSNode[] inline, Node trie, int size, long nextOrder) {
+        this.inline = inline;
+        this.trie = trie;
+        this.size = size;
+        this.nextOrder = nextOrder;
+    }
+
+    /** A map of {@code nodes}, added in order. */
+    static ChildMap of(List<FSNode> nodes) {
+        ChildMap map = EMPTY;
+        for (FSNode node : nodes) {
+            map = map.with(node);
+        }
+        return map;
+    }
+
+    int size() {
+        return size;
+    }
+
+    FSNode get(String name) {
+        if (inline != null) {
+            for (FSNode node : inline) {
+                if (node.name().equals(name))
+                    return node;
+            }
+            return null;
+        }
+        Entry entry = trie.find(hash(name), name, 0);
+        return entry == null ? null : entry.node;
+    }
+
+    /** The children in insertion order, as an unmodifiable list. */
+    List<FSNode> list() {
+        return listing().nodes;
+    }
+
+    /** Where the child named {@code name} is in {@link #list()}, or -1. */
+    int indexOf(String name) {
+        if (inline != null) {
+            for (int i = 0; i < inline.length; i++) {
+                if (inline[i].name().equals(name))
+                    return i;
+            }
+            return -1;
+        }
+        Entry entry = trie.find(hash(name), name, 0);
+        return entry == null ? -1 : Arrays.binarySearch(listing().orders, entry.order);
+    }
+
+    /** The children sorted by name, as an unmodifiable list. */
+    List<FSNode> byName() {
+        List<FSNode> nodes = byName;
+        if (nodes != null)
+            return nodes;
+        FSNode[] sorted = list().toArray(new FSNode[0]);
+        Arrays.sort(sorted, Comparator.comparing(FSNode::name));
+        nodes = List.of(sorted);
+        byName = nodes;
+        return nodes;
+    }
+
+    private Listing listing() {
+        Listing built = listing;
+        if (built != null)
+            return built;
+        if (inline != null) {
+            built = new Listing(List.of(inline), null);
+        } else {
+            List<Entry> entries = new ArrayList<>(size);
+            trie.collect(entries);
+            entries.sort(Comparator.comparingLong(entry -> entry.order));
+            FSNode[] ordered = new FSNode[entries.size()];
+            long[] orders = new long[entries.size()];
+            for (int i = 0; i < ordered.length; i++) {
+                ordered[i] = entries.get(i).node;
+                orders[i] = entries.get(i).order;
+            }
+            built = new Listing(List.of(ordered), orders);
+        }
+        listing = built;
+        return built;
+    }
+
+    /**
+     * This map with {@code node} added; a child of the same name is replaced
+     * and keeps its place in the order.
+     */
+    ChildMap with(FSNode node) {
+        String name = node.name();
+        if (inline != null) {
+            for (int i = 0; i < inline.length; i++) {
+                if (inline[i].name().equals(name)) {
+                    FSNode[] replaced = inline.clone();
+                    replaced[i] = node;
+                    return new ChildMap(replaced, null, size, 0);
+                }
+            }
+            if (size < INLINE_CAPACITY) {
+                FSNode[] grown = Arrays.copyOf(inline, size + 1);
+                grown[size] = node;
+                return new ChildMap(grown, null, size + 1, 0);
+            }
+
+            Node spilled = Node.EMPTY;
+            long order = 0;
+            for (FSNode child : inline) {
+                spilled = spilled.with(new Entry(child, order++), hash(child.name()), 0);
+            }
+            spilled = spilled.with(new Entry(node, order++), hash(name), 0);
+            return new ChildMap(null, spilled, size + 1, order);
+        }
+
+        int hash = hash(name);
+        Entry existing = trie.find(hash, name, 0);
+        if (existing != null)
+            return new ChildMap(null, trie.with(new Entry(node, existing.order), hash, 0), size, nextOrder);
+        return new ChildMap(null, trie.with(new Entry(node, nextOrder), hash, 0), size + 1, nextOrder + 1);
+    }
+
+    /** This map without {@code node}, or this map if it doesn't hold it. */
+    ChildMap without(FSNode node) {
+        if (inline != null) {
+            for (int i = 0; i < inline.length; i++) {
+                if (inline[i] == node) {
+                    FSNode[] shrunk = new FSNode[size - 1];
+                    System.arraycopy(inline, 0, shrunk, 0, i);
+                    System.arraycopy(inline, i + 1, shrunk, i, size - i - 1);
+                    return new ChildMap(shrunk, null, size - 1, 0);
+                }
+            }
+            return this;
+        }
+
+        Node shrunk = trie.without(node, hash(node.name()), 0);
+        if (shrunk == trie)
+            return this;
+        if (shrunk == null)
+            return EMPTY;
+        ChildMap map = new ChildMap(null, shrunk, size - 1, nextOrder);
+        if (size - 1 >= INLINE_CAPACITY / 2)
+            return map;
+        return new ChildMap(map.list().toArray(new FSNode[0]), null, size - 1, 0);
+    }
+
+    private static int hash(String name) {
+        int h = name.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /** The children in insertion order, and the number each was added under. */
+    private static final class Listing {
+        final List<FSNode> nodes;
+        final long[] orders;
+
+        Listing(List<FSNode> nodes, long[] orders) {
+            this.nodes = nodes;
+            this.orders = orders;
+        }
+    }
+
+    private static final class Entry {
+        final FSNode node;
+        final long order;
+
+        Entry(FSNode node, long order) {
+            this.node = node;
+            this.order = order;
+        }
+    }
+
+    /**
+     * A level of the trie. Each slot holds an entry, a bucket of entries
+     * (Entry[]) whose hashes are equal, or the next level; the bitmap tells
+     * which of the 32 slots are present.
+     */
+    private static final class Node {
+        static final Node EMPTY = new Node(0, new Object[0]);
+
+        final int bitmap;
+        final Object[] slots;
+
+        Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        Entry find(int hash, String name, int shift) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0)
+                return null;
+            Object slot = slots[Integer.bitCount(bitmap & (bit - 1))];
+            if (slot instanceof Node)
+                return ((Node) slot).find(hash, name, shift + BITS);
+            if (slot instanceof Entry[]) {
+                for (Entry entry : (Entry[]) slot) {
+                    if (entry.node.name().equals(name))
+                        return entry;
+                }
+                return null;
+            }
+            Entry entry = (Entry) slot;
+            return entry.node.name().equals(name) ? entry : null;
+        }
+
+        Node with(Entry entry, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            int at = Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                Object[] grown = new Object[slots.length + 1];
+                System.arraycopy(slots, 0, grown, 0, at);
+                grown[at] = entry;
+                System.arraycopy(slots, at, grown, at + 1, slots.length - at);
+                return new Node(bitmap | bit, grown);
+            }
+
+            Object slot = slots[at];
+            Object replaced;
+            String name = entry.node.name();
+            if (slot instanceof Node) {
+                replaced = ((Node) slot).with(entry, hash, shift + BITS);
+            } else if (slot instanceof Entry[]) {
+                replaced = bucketWith((Entry[]) slot, entry);
+            } else {
+                Entry existing = (Entry) slot;
+                replaced = existing.node.name().equals(name)
+                        ? entry
+                        : pair(existing, hash(existing.node.name()), entry, hash, shift + BITS);
+            }
+            Object[] copied = slots.clone();
+            copied[at] = replaced;
+            return new Node(bitmap, copied);
+        }
+
+        /** This level without {@code node}: itself if absent, null once empty. */
+        Node without(FSNode node, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0)
+                return this;
+            int at = Integer.bitCount(bitmap & (bit - 1));
+
+            Object slot = slots[at];
+            Object replaced;
+            if (slot instanceof Node) {
+                Node next = (Node) slot;
+                replaced = next.without(node, hash, shift + BITS);
+                if (replaced == next)
+                    return this;
+            } else if (slot instanceof Entry[]) {
+                Entry[] bucket = (Entry[]) slot;
+                int found = -1;
+                for (int i = 0; i < bucket.length; i++) {
+                    if (bucket[i].node == node)
+                        found = i;
+                }
+                if (found < 0)
+                    return this;
+                if (bucket.length == 2) {
+                    replaced = bucket[1 - found];
+                } else {
+                    Entry[] shrunk = new Entry[bucket.length - 1];
+                    System.arraycopy(bucket, 0, shrunk, 0, found);
+                    System.arraycopy(bucket, found + 1, shrunk, found, bucket.length - found - 1);
+                    replaced = shrunk;
+                }
+            } else {
+                if (((Entry) slot).node != node)
+                    return this;
+                replaced = null;
+            }
+
+            if (replaced != null) {
+                Object[] copied = slots.clone();
+                copied[at] = replaced;
+                return new Node(bitmap, copied);
+            }
+            if (slots.length == 1)
+                return null;
+            Object[] shrunk = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, shrunk, 0, at);
+            System.arraycopy(slots, at + 1, shrunk, at, slots.length - at - 1);
+            return new Node(bitmap & ~bit, shrunk);
+        }
+
+        void collect(List<Entry> into) {
+            for (Object slot : slots) {
+                if (slot instanceof Node) {
+                    ((Node) slot).collect(into);
+                } else if (slot instanceof Entry[]) {
+                    into.addAll(Arrays.asList((Entry[]) slot));
+                } else {
+                    into.add((Entry) slot);
+                }
+            }
+        }
+
+        /** The slot holding two entries that fell in the same slot above. */
+        private static Object pair(Entry a, int hashA, Entry b, int hashB, int shift) {
+            if (shift > MAX_SHIFT)
+                return new Entry[] { a, b };
+            int slotA = (hashA >>> shift) & MASK;
+            int slotB = (hashB >>> shift) & MASK;
+            if (slotA == slotB)
+                return new Node(1 << slotA, new Object[] { pair(a, hashA, b, hashB, shift + BITS) });
+            return new Node((1 << slotA) | (1 << slotB), slotA < slotB ? new Object[] { a, b } : new Object[] { b, a });
+        }
+
+        private static Entry[] bucketWith(Entry[] bucket, Entry entry) {
+            String name = entry.node.name();
+            for (int i = 0; i < bucket.length; i++) {
+                if (bucket[i].node.name().equals(name)) {
+                    Entry[] replaced = bucket.clone();
+                    replaced[i] = entry;
+                    return replaced;
+                }
+            }
+            Entry[] grown = Arrays.copyOf(bucket, bucket.length + 1);
+            grown[bucket.length] = entry;
+            return grown;
+        }
+    }
+}
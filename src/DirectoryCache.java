@@ -0,0 +1,78 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The directories that can be paged out: those paged in from the image and
+ * those a checkpoint saved, with how many nodes they hold in memory. Victims to page out are picked by a CLOCK hand going round the
+ * directories, skipping (and clearing) ones used since it last passed them.
+ * Directories that were deleted or paged out with an ancestor drop out of the
+ * ring when the hand reaches them.
+ */
+public class DirectoryCache {
+    private final ConcurrentLinkedQueue<FSDirectory> ring = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger directories = new AtomicInteger();
+    private final AtomicLong nodes = new AtomicLong();
+    private final long capacity;
+
+    public DirectoryCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Counts {@code count} more nodes in memory for a directory, adding it to
+     * the ring if it wasn't there; returns whether the cache is over capacity.
+     */
+    public boolean pagedIn(FSDirectory dir, int count, boolean added) {
+        if (added) {
+            ring.add(dir);
+            directories.incrementAndGet();
+        }
+        return nodes.addAndGet(count) > capacity;
+    }
+
+    public void pagedOut(long count) {
+        nodes.addAndGet(-count);
+    }
+
+    /**
+     * The next directory not used since the hand last passed it, taken out of
+     * the ring, or null if the hand went round twice without finding one.
+     */
+    public FSDirectory victim() {
+        for (int turns = 2 * directories.get(); turns > 0; turns--) {
+            FSDirectory dir = ring.poll();
+            if (dir == null)
+                return null;
+            directories.decrementAndGet();
+
+            if (dir.isEvicted() || dir.isUnlinked()) {
+                nodes.addAndGet(-dir.takePagedIn());
+                continue;
+            }
+            if (!dir.clearReferenced())
+                return dir;
+            keep(dir);
+        }
+        return null;
+    }
+
+    /** Puts back a victim that couldn't be paged out. */
+    public void keep(FSDirectory dir) {
+        ring.add(dir);
+        directories.incrementAndGet();
+    }
+
+    public int directories() {
+        return directories.get();
+    }
+
+    /** Nodes paged in and still in memory. */
+    public long size() {
+        return nodes.get();
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+}
@@ -1,33 +1,444 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class FSDirectory extends FSNode {
-    private List<FSNode> children;
+    // Guards lazy copies: expanding one and registering one with its source.
+    // A checkpoint holds it too, so no copy is expanded while it is written.
+    static final Object COPIES = new Object();
+
+    // The current version of the children. Readers take it without locking;
+    // a change builds the next version and publishes it with one write. Null
+    // while the children are still in the image.
+    private volatile ChildMap contents = ChildMap.EMPTY;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile boolean unlinked;
+
+    // A lazy copy has no children of its own yet. It stands for the current
+    // content of its source and is expanded one level at a time when first
+    // read or changed; the source expands its copies before it changes.
+    private volatile FSDirectory source;
+    private List<FSDirectory> copies;
+    private ContentCopier contentCopier;
+    // Set on the root of a snapshot: a read-only tree with no parent, made as
+    // a lazy copy of the live root.
+    private boolean snapshot;
+
+    // A directory read from an image pages its children in from its listing
+    // there when first used. While nothing under it has changed since, it is
+    // clean: it keeps its listing and can be paged out again.
+    private volatile ImageFormat.Listing stored;
+    private volatile boolean referenced;
+    // Children counted against the resident budget, or -1 while the directory
+    // isn't in the cache: it was paged out, or built in memory and not yet
+    // saved by a checkpoint.
+    private int pagedIn = -1;
+    private PageListener pageListener;
+
+    /** Duplicates a file's content when a lazy copy is expanded. */
+    interface ContentCopier {
+        int copy(int inode) throws IOException;
+
+        /** Frees a copy that was never added to the tree. */
+        void free(int inode);
+    }
+
+    /**
+     * Told how many nodes a directory brings into memory: when it is paged in,
+     * and when a checkpoint saves it after it was built or grown in memory.
+     * {@code added} is set when the directory wasn't counted before.
+     */
+    interface PageListener {
+        void pagedIn(FSDirectory dir, int nodes, boolean added);
+    }
 
     public FSDirectory(String name, FSDirectory parent) {
         super(name, parent);
-        this.children = new ArrayList<>();
     }
 
+    /**
+     * Creates a copy of {@code source} in constant time. The copy shares the
+     * source's subtree until either side is read or changed.
+     */
+    public static FSDirectory lazyCopy(String name, FSDirectory parent, FSDirectory source) {
+        FSDirectory copy = new FSDirectory(name, parent);
+        synchronized (COPIES) {
+            // A copy of a lazy copy reads the same source.
+            copy.source = source.source != null ? source.source : source;
+            copy.source.copies().add(copy);
+        }
+        return copy;
+    }
+
+    /** A directory whose children are still in the image, at {@code listing}. */
+    public static FSDirectory stored(String name, FSDirectory parent, ImageFormat.Listing listing) {
+        FSDirectory dir = new FSDirectory(name, parent);
+        dir.stored = listing;
+        dir.contents = null;
+        return dir;
+    }
+
+    /** Marks the root of a snapshot. */
+    public void setSnapshot() {
+        snapshot = true;
+    }
+
+    /** The root of the snapshot this directory belongs to, or null in the live tree. */
+    public FSDirectory snapshotRoot() {
+        FSDirectory top = root();
+        return top.snapshot ? top : null;
+    }
+
+    /** Set on the root; lazy copies anywhere in the tree use it. */
+    public void setContentCopier(ContentCopier contentCopier) {
+        this.contentCopier = contentCopier;
+    }
+
+    /** Set on the root, like the content copier. */
+    public void setPageListener(PageListener pageListener) {
+        this.pageListener = pageListener;
+    }
+
+    public boolean isLoaded() {
+        return contents != null;
+    }
+
+    /** The listing this directory matches, or null once it has changed. */
+    public ImageFormat.Listing stored() {
+        return stored;
+    }
+
+    /**
+     * Records that the directory matches {@code listing}, when a checkpoint
+     * has just written it there. Mutations are held off meanwhile. From then
+     * on the directory can be paged out like one read from the image, so a
+     * tree built in memory doesn't stay on the heap for good.
+     */
+    public void setStored(ImageFormat.Listing listing) {
+        stored = listing;
+        if (parent() == null)
+            return;
+
+        int added;
+        boolean counted;
+        synchronized (this) {
+            ChildMap current = contents;
+            if (current == null)
+                return;
+            int count = current.size();
+            counted = pagedIn >= 0;
+            added = count - Math.max(pagedIn, 0);
+            pagedIn = count;
+        }
+        PageListener listener = root().pageListener;
+        if (listener != null)
+            listener.pagedIn(this, added, !counted);
+    }
+
+    /**
+     * Records that something in this directory changed, so neither it nor its
+     * ancestors match their listings any more.
+     */
+    public void changed() {
+        for (FSDirectory dir = this; dir != null && dir.stored != null; dir = dir.parent()) {
+            dir.stored = null;
+        }
+    }
+
+    /** Whether the directory was used since the last call, for CLOCK eviction. */
+    public boolean clearReferenced() {
+        boolean was = referenced;
+        referenced = false;
+        return was;
+    }
+
+    /** The nodes this directory paged in that are still counted, now uncounted. */
+    public synchronized int takePagedIn() {
+        int count = Math.max(pagedIn, 0);
+        pagedIn = -1;
+        return count;
+    }
+
+    /**
+     * Drops the children of a clean directory; they are paged in again from
+     * its listing when next used. Every node dropped is marked evicted, and
+     * the count of paged-in nodes that went with them is returned. Returns -1
+     * and keeps everything when the directory changed since it was saved, or
+     * its subtree holds a lazy copy or the source of one, which are only
+     * linked to each other in memory.
+     *
+     * The caller holds this directory's lock and keeps mutations off. Readers
+     * that took the children before keep them, marked evicted.
+     */
+    public long pageOut() {
+        synchronized (COPIES) {
+            if (contents == null || stored == null)
+                return -1;
+
+            List<FSDirectory> dirs = new ArrayList<>();
+            dirs.add(this);
+            for (int i = 0; i < dirs.size(); i++) {
+                FSDirectory dir = dirs.get(i);
+                if (dir.source != null || (dir.copies != null && !dir.copies.isEmpty()))
+                    return -1;
+                for (FSNode child : dir.residentChildren()) {
+                    if (child instanceof FSDirectory)
+                        dirs.add((FSDirectory) child);
+                }
+            }
+
+            long count = 0;
+            for (FSDirectory dir : dirs) {
+                for (FSNode child : dir.residentChildren()) {
+                    child.evicted();
+                }
+                count += dir.takePagedIn();
+            }
+
+            contents = null;
+            return count;
+        }
+    }
+
+    /** The children in memory, none if the directory isn't paged in. */
+    private List<FSNode> residentChildren() {
+        ChildMap current = contents;
+        return current == null ? List.of() : current.list();
+    }
+
+    /**
+     * The current version of the children, read from the image the first time
+     * they are needed and expanded from the source of a lazy copy. A version
+     * is immutable, so the caller can use it for as long as it likes.
+     */
+    private ChildMap current() {
+        if (!referenced)
+            referenced = true;
+        while (true) {
+            // An expansion publishes the children before it clears the source.
+            if (source != null)
+                expand();
+            ChildMap current = contents;
+            if (current != null)
+                return current;
+            load();
+        }
+    }
+
+    /** Reads the children from the image. */
+    private void load() {
+        int count;
+        synchronized (this) {
+            if (contents != null)
+                return;
+            List<FSNode> nodes;
+            try {
+                nodes = stored.read(this);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Couldn't read directory '" + name() + "' from the image.", e);
+            }
+            contents = ChildMap.of(nodes);
+            count = pagedIn = nodes.size();
+        }
+        PageListener listener = root().pageListener;
+        if (listener != null)
+            listener.pagedIn(this, count, true);
+    }
+
+    public boolean isLazyCopy() {
+        return source != null;
+    }
+
+    /**
+     * The directory whose children a read-only walk should list: the source
+     * of a lazy copy, so reading the copy doesn't expand it.
+     */
+    public FSDirectory contentSource() {
+        FSDirectory from = source;
+        return from != null ? from : this;
+    }
+
+    /**
+     * Expands every lazy copy of this directory, so they keep its current
+     * content when it or anything below it changes.
+     */
+    public void expandCopies() {
+        List<FSDirectory> pending;
+        synchronized (COPIES) {
+            if (copies == null || copies.isEmpty())
+                return;
+            pending = new ArrayList<>(copies);
+        }
+        pending.forEach(FSDirectory::expand);
+    }
+
+    /** Drops a deleted lazy copy without expanding it. */
+    public void discardCopy() {
+        synchronized (COPIES) {
+            if (source != null) {
+                source.copies.remove(this);
+                source = null;
+            }
+        }
+    }
+
+    /**
+     * Turns a directory read back from an image into a lazy copy of
+     * {@code source}. It is registered with the source by {@link #relinkCopy}.
+     */
+    public void restoreLazyCopy(FSDirectory source) {
+        this.source = source;
+    }
+
+    /**
+     * Registers a lazy copy with its source. The registrations aren't part of
+     * a saved image, so the tree relinks its copies when it is loaded.
+     */
+    public void relinkCopy() {
+        synchronized (COPIES) {
+            if (source != null)
+                source.copies().add(this);
+        }
+    }
+
+    private List<FSDirectory> copies() {
+        if (copies == null)
+            copies = new ArrayList<>();
+        return copies;
+    }
+
+    /**
+     * Gives a lazy copy children of its own: files get a copy-on-write copy
+     * of their content and subdirectories become lazy copies in turn. Both
+     * keep the times of what they copy. The source is read without locking:
+     * it expands its copies before it changes, so while this is still one of
+     * them it holds the content to copy.
+     */
+    private void expand() {
+        FSDirectory from = source;
+        if (from == null)
+            return;
+
+        try {
+            synchronized (COPIES) {
+                if (source != from)
+                    return;
+
+                // Children are only added once all of them are copied, so a
+                // failed expansion leaves the copy lazy rather than partial,
+                // and frees the content it copied before failing.
+                ContentCopier content = root().contentCopier;
+                List<FSNode> expanded = new ArrayList<>(from.childCount());
+                for (FSNode child : from.current().list()) {
+                    if (child instanceof FSFile) {
+                        FSFile file = (FSFile) child;
+                        FSFile copy = new FSFile(file.name(), this);
+                        synchronized (file) {
+                            if (file.inode() != 0)
+                                copy.setInode(copyContent(content, file.inode(), expanded));
+                        }
+                        copy.setTimes(file.creationTime(), file.lastModified());
+                        expanded.add(copy);
+                    } else {
+                        FSDirectory dir = (FSDirectory) child;
+                        FSDirectory copy = new FSDirectory(dir.name(), this);
+                        copy.source = dir.source != null ? dir.source : dir;
+                        copy.setTimes(dir.creationTime(), dir.lastModified());
+                        expanded.add(copy);
+                    }
+                }
+                for (FSNode child : expanded) {
+                    if (child instanceof FSDirectory)
+                        ((FSDirectory) child).relinkCopy();
+                }
+                contents = ChildMap.of(expanded);
+                changed();
+                from.copies.remove(this);
+                source = null;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't expand copy of '" + from.name() + "'.", e);
+        }
+    }
+
+    /** Copies a file's content; on failure, frees the copies already in {@code expanded}. */
+    private static int copyContent(ContentCopier content, int inode, List<FSNode> expanded) throws IOException {
+        try {
+            return content.copy(inode);
+        } catch (IOException | RuntimeException e) {
+            for (FSNode node : expanded) {
+                if (node instanceof FSFile && ((FSFile) node).inode() != 0)
+                    content.free(((FSFile) node).inode());
+            }
+            throw e;
+        }
+    }
+
+    private FSDirectory root() {
+        FSDirectory dir = this;
+        while (dir.parent() != null) {
+            dir = dir.parent();
+        }
+        return dir;
+    }
+
+    /**
+     * Serializes changes to this directory's children: adding, removing or
+     * renaming a child holds it. Lookups and listings don't take it; they
+     * read the current version of the children.
+     */
+    public ReentrantLock lock() {
+        return lock;
+    }
+
+    /** Marks a deleted directory so nothing is created under it afterwards. */
+    public void unlink() {
+        unlinked = true;
+    }
+
+    public boolean isUnlinked() {
+        return unlinked;
+    }
+
+    /**
+     * Children are keyed by name, so a node must be removed before it is
+     * renamed and added back afterwards. The caller holds the lock.
+     */
     public void addChild(FSNode node) {
-        children.add(node);
+        contents = current().with(node);
+        changed();
     }
 
+    /** The caller holds the lock. */
     public void removeChild(FSNode node) {
-        children.remove(node);
+        contents = current().without(node);
+        changed();
     }
 
+    /**
+     * Read-only view of the children in insertion order: the version current
+     * when called, which later changes leave as it is.
+     */
     public List<FSNode> children() {
-        return children;
+        return current().list();
+    }
+
+    /**
+     * The current version of the children, for a reader that takes several
+     * views of one version, such as a page of a listing and where it starts.
+     */
+    ChildMap version() {
+        return current();
+    }
+
+    public int childCount() {
+        return current().size();
     }
 
     public FSNode getChildByName(String name) {
-        for (FSNode node : children) {
-            if (node.name().equals(name)) {
-                return node;
-            }
-        }
-        return null;
+        return current().get(name);
     }
 
     @Override
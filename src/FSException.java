@@ -1,4 +1,6 @@
 public class FSException extends Exception {
+    private static final long serialVersionUID = 1L;
+
     public FSException(String msg) {
         super(msg);
     }
@@ -1,27 +1,55 @@
 public class FSFile extends FSNode {
-    private String content;
-    private String extension;
+    // The content lives on the block device; 0 means nothing has been written
+    // yet and no inode is allocated.
+    private int inode;
+    private boolean unlinked;
+    // Journal generation the inode was allocated in. An inode from an earlier
+    // generation may be part of a checkpoint, so it isn't written in place.
+    private long inodeGeneration = -1;
 
-    public FSFile(String name, String extension, FSDirectory parent) {
+    public FSFile(String name, FSDirectory parent) {
         super(name, parent);
-        this.extension = extension;
-        this.content = "";
     }
 
-    public String getContent() {
-        return content;
+    public int inode() {
+        return inode;
     }
 
-    public void setContent(String content) {
-        this.content = content;
+    public void setInode(int inode) {
+        this.inode = inode;
+        this.inodeGeneration = -1;
     }
 
-    public String getExtension() {
-        return extension;
+    public void setInode(int inode, long generation) {
+        this.inode = inode;
+        this.inodeGeneration = generation;
+    }
+
+    /** Whether the inode was allocated in {@code generation} of the journal. */
+    public boolean ownsInode(long generation) {
+        return inode != 0 && inodeGeneration == generation;
+    }
+
+    /**
+     * Marks a deleted file so open handles stop writing to its inode. Callers
+     * hold the file's monitor, as they do for {@link #setInode}.
+     */
+    public void unlink() {
+        unlinked = true;
+        inode = 0;
+    }
+
+    public boolean isUnlinked() {
+        return unlinked;
     }
 
-    public void setExtension(String extension) {
-        this.extension = extension;
+    /** The part of the name after its last dot, or null if there is none. */
+    public String getExtension() {
+        String name = this.name;
+        int lastDotIndex = name.lastIndexOf('.');
+        if (lastDotIndex > 0 && lastDotIndex < name.length() - 1)
+            return name.substring(lastDotIndex + 1);
+        return null;
     }
 
     @Override
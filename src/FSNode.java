@@ -1,28 +1,40 @@
-import java.io.Serializable;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 
-public abstract class FSNode implements Serializable {
-    protected String name;
-    protected FSDirectory parent;
-    protected Date createdAt;
-    protected Date updatedAt;
+public abstract class FSNode {
+    protected volatile String name;
+    protected volatile FSDirectory parent;
+    // Milliseconds since the epoch.
+    protected long createdAt;
+    protected volatile long updatedAt;
+    // Set when the node is paged out with its directory; the tree then holds
+    // a fresh node read back from the image in its place.
+    private volatile boolean evicted;
 
-    private static final String DATE_PATTERN = "dd-MM-yyyy hh:mm a";
+    // Immutable, so one instance serves every thread.
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("dd-MM-yyyy hh:mm a").withZone(ZoneId.systemDefault());
 
     public FSNode(String name, FSDirectory parent) {
-        this.name = name;
+        this.name = intern(name);
         this.parent = parent;
-        this.createdAt = new Date();
+        this.createdAt = System.currentTimeMillis();
         this.updatedAt = this.createdAt;
     }
 
+    // Names repeat a lot across a tree (index.html, README.md, f0...), so
+    // nodes share one copy of each.
+    private static String intern(String name) {
+        return name == null ? null : name.intern();
+    }
+
     public String name() {
         return name;
     }
 
     public void setName(String name) {
-        this.name = name;
+        this.name = intern(name);
     }
 
     public FSDirectory parent() {
@@ -34,17 +46,45 @@ public abstract class FSNode implements Serializable {
     }
 
     public void updated() {
-        updatedAt = new Date();
+        updatedAt = System.currentTimeMillis();
+        if (parent != null)
+            parent.changed();
+    }
+
+    void evicted() {
+        evicted = true;
+    }
+
+    public boolean isEvicted() {
+        return evicted;
+    }
+
+    /** Time of the last write, in milliseconds since the epoch. */
+    public long lastModified() {
+        return updatedAt;
+    }
+
+    public long creationTime() {
+        return createdAt;
+    }
+
+    /** Restores the timestamps of a node read back from an image. */
+    public void setTimes(long createdAt, long updatedAt) {
+        this.createdAt = createdAt;
+        this.updatedAt = updatedAt;
     }
 
     public String createdAt() {
-        SimpleDateFormat formatter = new SimpleDateFormat(DATE_PATTERN);
-        return formatter.format(this.createdAt);
+        return formatTime(createdAt);
     }
 
     public String updatedAt() {
-        SimpleDateFormat formatter = new SimpleDateFormat(DATE_PATTERN);
-        return formatter.format(this.updatedAt);
+        return formatTime(updatedAt);
+    }
+
+    /** A time in milliseconds since the epoch, as listings show it. */
+    public static String formatTime(long millis) {
+        return DATE_FORMAT.format(Instant.ofEpochMilli(millis));
     }
 
     public abstract String getType();
@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Byte-level access to the content of an open file. Reads and writes go
+ * straight to the block device; nothing is buffered in the handle, so several
+ * handles on the same file always see each other's writes.
+ */
+public class FileHandle {
+    private final FileSystemSimulator fs;
+    private final FSFile file;
+
+    FileHandle(FileSystemSimulator fs, FSFile file) {
+        this.fs = fs;
+        this.file = file;
+    }
+
+    public long size() {
+        return fs.fileSize(file);
+    }
+
+    /**
+     * Reads up to {@code length} bytes starting at {@code offset}. Returns
+     * fewer bytes at the end of the file.
+     */
+    public byte[] read(long offset, int length) {
+        int available = (int) Math.max(0, Math.min(length, size() - offset));
+        ByteBuffer dst = ByteBuffer.allocate(available);
+        fs.readFile(file, offset, dst);
+        byte[] bytes = new byte[dst.position()];
+        dst.flip().get(bytes);
+        return bytes;
+    }
+
+    /** Copies bytes into {@code dst}; returns the count, or -1 past the end. */
+    public int read(long offset, ByteBuffer dst) {
+        return fs.readFile(file, offset, dst);
+    }
+
+    public void write(long offset, byte[] bytes) throws FSException {
+        fs.writeFile(file, offset, ByteBuffer.wrap(bytes));
+    }
+
+    /** Writes the bytes remaining in {@code src}, which may be direct or mapped. */
+    public void write(long offset, ByteBuffer src) throws FSException {
+        fs.writeFile(file, offset, src);
+    }
+
+    /** Adds bytes at the end of the file without touching what is there. */
+    public void append(byte[] bytes) throws FSException {
+        fs.appendFile(file, ByteBuffer.wrap(bytes));
+    }
+
+    public void truncate(long size) throws FSException {
+        fs.truncateFile(file, size);
+    }
+
+    /**
+     * Sends {@code count} bytes from {@code offset} to {@code target} straight
+     * from the device's mapped region. Returns the number of bytes sent.
+     */
+    public long transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+        return fs.transferFile(file, offset, count, target);
+    }
+
+    public InputStream newInputStream() {
+        return new InputStream() {
+            private long position;
+
+            @Override
+            public int read() {
+                byte[] one = FileHandle.this.read(position, 1);
+                if (one.length == 0)
+                    return -1;
+                position++;
+                return one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0)
+                    return 0;
+                int n = FileHandle.this.read(position, ByteBuffer.wrap(b, off, len));
+                if (n > 0)
+                    position += n;
+                return n;
+            }
+
+            @Override
+            public long skip(long n) {
+                long skipped = Math.max(0, Math.min(n, size() - position));
+                position += skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+                return (int) Math.min(Integer.MAX_VALUE, Math.max(0, size() - position));
+            }
+        };
+    }
+
+    public SeekableByteChannel newChannel() {
+        return new SeekableByteChannel() {
+            private long position;
+            private boolean open = true;
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                ensureOpen();
+                int n = FileHandle.this.read(position, dst);
+                if (n > 0)
+                    position += n;
+                return n;
+            }
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                ensureOpen();
+                int n = src.remaining();
+                try {
+                    fs.writeFile(file, position, src);
+                } catch (FSException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+                position += n;
+                return n;
+            }
+
+            @Override
+            public long position() throws IOException {
+                ensureOpen();
+                return position;
+            }
+
+            @Override
+            public SeekableByteChannel position(long newPosition) throws IOException {
+                ensureOpen();
+                if (newPosition < 0)
+                    throw new IllegalArgumentException("Negative position.");
+                position = newPosition;
+                return this;
+            }
+
+            @Override
+            public long size() throws IOException {
+                ensureOpen();
+                return FileHandle.this.size();
+            }
+
+            @Override
+            public SeekableByteChannel truncate(long size) throws IOException {
+                ensureOpen();
+                if (size < FileHandle.this.size()) {
+                    try {
+                        FileHandle.this.truncate(size);
+                    } catch (FSException e) {
+                        throw new IOException(e.getMessage(), e);
+                    }
+                }
+                position = Math.min(position, size);
+                return this;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() {
+                open = false;
+            }
+
+            private void ensureOpen() throws ClosedChannelException {
+                if (!open)
+                    throw new ClosedChannelException();
+            }
+        };
+    }
+}
@@ -0,0 +1,35 @@
+import java.util.List;
+
+/** What the simulator publishes over JMX; see {@link Metrics}. */
+public interface FileSystemMetricsMXBean {
+    /** Every operation run at least once, with its latencies in microseconds. */
+    List<Metrics.OperationStats> getOperations();
+
+    long getResidentNodes();
+
+    long getResidentDirectories();
+
+    long getJournalBytes();
+
+    long getCheckpointBytes();
+
+    long getContentBytesWritten();
+
+    /** File content in whole blocks, counting shared blocks once per file. */
+    long getContentBytes();
+
+    /** Block device bytes holding file content. */
+    long getStoredContentBytes();
+
+    /** Content bytes per stored byte, from copies and identical blocks sharing. */
+    double getDedupRatio();
+
+    long getJournalBytesWritten();
+
+    long getPathCacheHits();
+
+    long getPathCacheMisses();
+
+    /** 99th percentile of the segments walked to resolve a path. */
+    long getResolveDepthP99();
+}
@@ -1,65 +1,323 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.management.JMException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+/**
+ * The simulator can be shared between threads. Lookups and listings take no
+ * locks: each directory holds its children as an immutable version, which a
+ * change replaces as a whole, so a reader sees one consistent version however
+ * writers go on (see {@link ChildMap}). A mutation locks only the directories
+ * whose children it changes, so work in unrelated subtrees proceeds in
+ * parallel and never waits for readers. Relative paths
+ * are resolved against a {@link Session}; the methods without one use a
+ * default session.
+ *
+ * The tree is mounted lazily: only the root is read at boot, and each
+ * directory is paged in from the checkpoint image when first used. Once over
+ * {@link #MAX_RESIDENT_NODES} paged-in nodes, or when the heap stays full
+ * after a collection, cold directories that haven't changed since the last
+ * checkpoint are paged out again. Directories built in memory count as paged
+ * in once a checkpoint saves them, so the image serves as the off-heap store
+ * for the whole tree and the heap holds only its working set.
+ *
+ * A snapshot is a read-only lazy copy of the root, taken in constant time.
+ * It shares every directory and block with the live tree; a directory is
+ * copied into it, one level at a time, only when the live one is about to
+ * change. Its nodes are reached by paths starting with ':' and its name, as
+ * in {@code :nightly/home}, so scans such as du, find or tree can run against
+ * a fixed state of the tree while writers carry on.
+ */
 public class FileSystemSimulator {
     private FSDirectory root;
-    private FSDirectory currentDirectory;
+    private Session defaultSession;
     private Journal journal;
-    private final String DISK_IMAGE = "filesystem.dat";
+    private final BlockDevice disk;
+    private final PathCache pathCache = new PathCache(PATH_CACHE_CAPACITY);
+    private final TreeWalker walker = new TreeWalker(ForkJoinPool.commonPool());
+    private final Metrics metrics = new Metrics();
+    private ObjectName metricsName;
+    private final String DISK_IMAGE;
+    private final String JOURNAL;
+    private final String BLOCK_DEVICE;
+    // The size a new block device starts at; it grows as files need more.
+    private static final long BLOCK_DEVICE_CAPACITY = 64L * 1024 * 1024;
+    // Copies file content for lazy copies as they are expanded.
+    private final FSDirectory.ContentCopier contentCopier = new FSDirectory.ContentCopier() {
+        @Override
+        public int copy(int inode) throws IOException {
+            return disk.copy(inode);
+        }
+
+        @Override
+        public void free(int inode) {
+            disk.freeInode(inode);
+        }
+    };
+
+    // The log is compacted once it outgrows the last checkpoint, so the cost of
+    // writing a checkpoint is amortized over at least as many bytes of log.
+    private static final long MIN_LOG_BYTES_BEFORE_CHECKPOINT = 64 * 1024;
+    private static final int PATH_CACHE_CAPACITY = 4096;
+    private static final long MAX_RESIDENT_NODES = 1_000_000;
+    // Share of a heap pool still in use after a collection past which half of
+    // the paged-in nodes are paged out.
+    private static final double HEAP_PRESSURE = 0.75;
+
+    // Mutations hold the read side while they change the tree and journal it;
+    // a checkpoint takes the write side so it serializes a quiescent tree.
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    // Moves between directories are serialized, so two of them never hold
+    // directory locks in opposite orders and cycle checks stay valid.
+    private final ReentrantLock renameLock = new ReentrantLock();
+    // Snapshot roots by name, in the order they were taken. Guarded by its
+    // own monitor; changed only with mutations held off.
+    private final Map<String, FSDirectory> snapshots = new LinkedHashMap<>();
+    // Built on the first search, then kept up to date by every mutation.
+    private final SearchIndex searchIndex = new SearchIndex(this::getPath);
+    // Builds and refreshes of the search index are serialized, so a search
+    // sees every write that returned before it began.
+    private final ReentrantLock searchLock = new ReentrantLock();
+
+    private final ExecutorService checkpointer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "fs-checkpointer");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile Future<?> pendingCheckpoint;
+    private volatile long lastCheckpointSize;
+    // Inodes of deleted files are only freed once a checkpoint without them is
+    // on disk, so a crash never leaves the tree pointing at reused blocks.
+    private final List<Integer> releasedInodes = new ArrayList<>();
+    private boolean migrated;
+
+    // The image the tree is mounted from, while booting; null for a new file
+    // system or an older image, which is read whole.
+    private ImageFormat.Image bootImage;
+    private final DirectoryCache residents = new DirectoryCache(MAX_RESIDENT_NODES);
+    private volatile boolean mounted;
+    private final AtomicBoolean pageOutScheduled = new AtomicBoolean();
+    // Batches still open. Their changes are in the tree but not committed, so
+    // no checkpoint is taken until they end.
+    private final AtomicInteger openBatches = new AtomicInteger();
+    private final NotificationListener heapListener = (notification, handback) -> {
+        if (notification.getType().equals(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED))
+            schedulePageOut(residents.size() / 2);
+    };
 
     public FileSystemSimulator() {
-        this.journal = new Journal();
-        loadFileSystem();
+        this(0);
+    }
+
+    /**
+     * @param groupCommitMillis how long a commit waits to gather concurrent
+     *                          commits into the same journal sync; 0 syncs as
+     *                          soon as the journal is idle
+     */
+    public FileSystemSimulator(long groupCommitMillis) {
+        this(Paths.get(""), groupCommitMillis);
+    }
+
+    /**
+     * @param directory where the image, the journal and the block device are
+     *                  kept; the working directory by default
+     */
+    public FileSystemSimulator(Path directory, long groupCommitMillis) {
+        this(directory, groupCommitMillis > 0 ? Journal.Durability.GROUP : Journal.Durability.SYNC,
+                groupCommitMillis);
+    }
+
+    /**
+     * @param durability  when a mutation returns: once journaled on disk
+     *                    (SYNC, GROUP), or once applied in memory (ASYNC),
+     *                    the journal being written out in the background
+     * @param flushMillis how long a GROUP sync waits to gather commits, or
+     *                    how often an ASYNC journal is written out
+     */
+    public FileSystemSimulator(Path directory, Journal.Durability durability, long flushMillis) {
+        this.DISK_IMAGE = directory.resolve("filesystem.dat").toString();
+        this.JOURNAL = directory.resolve(".journal").toString();
+        this.BLOCK_DEVICE = directory.resolve("disk.img").toString();
+        this.journal = new Journal(JOURNAL, durability, flushMillis, metrics);
+        try {
+            this.disk = new BlockDevice(Paths.get(BLOCK_DEVICE), BLOCK_DEVICE_CAPACITY);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't open the block device.", e);
+        }
+        long checkpointGeneration = loadFileSystem();
 
-        if (root == null) {
-            journal.log("BOOT: No file system found. Formatting disk.");
+        boolean formatted = root == null;
+        if (formatted)
             root = new FSDirectory("/", null);
-            currentDirectory = root;
-            saveFileSystem();
-        } else {
-            journal.log("BOOT: File System loaded successfully.");
+        root.setContentCopier(contentCopier);
+        root.setPageListener(this::pagedIn);
+        defaultSession = new Session(this, root);
+        loadSnapshots();
+        relinkCopies();
+
+        try {
+            journal.open(checkpointGeneration, this::replay);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't read the journal.", e);
+        }
+        // Inodes released while replaying are still part of the checkpoint on
+        // disk; they are freed with the next one like any other.
+        Set<Integer> live = liveInodes();
+        live.addAll(releasedInodes);
+        if (bootImage != null) {
+            try {
+                live.addAll(bootImage.inodes());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Couldn't read the file system image.", e);
+            }
         }
+        disk.reclaim(live::contains);
+        bootImage = null;
+
+        if (formatted || migrated)
+            saveFileSystem();
+
+        mounted = true;
+        watchHeap();
+        registerMetrics(directory);
+        if (residents.size() > residents.capacity())
+            schedulePageOut(residents.capacity() * 3 / 4);
     }
 
-    public void createDirectory(String path) throws FSException {
-        ParentResolve pr = resolveParent(path, true);
-        FSDirectory parent = pr.parent;
-        String name = pr.name;
+    /** Opens a session with its own working directory, starting at the root. */
+    public Session openSession() {
+        return new Session(this, root);
+    }
+
+    /**
+     * Groups the mutations the calling thread makes until {@link #endBatch}
+     * into one transaction, made durable with a single journal sync. They
+     * are not isolated: each is visible to other sessions as soon as it is
+     * made, and becomes durable with the first commit of any session after
+     * it, so a crash keeps whatever part of the batch was logged before the
+     * last commit. Batches can nest; the outermost one commits. Checkpoints
+     * wait for open batches, so keep them bounded.
+     */
+    public void beginBatch() {
+        openBatches.incrementAndGet();
+        journal.begin();
+    }
+
+    /**
+     * Commits the calling thread's batch; unless the journal is ASYNC, waits
+     * until it is durable.
+     */
+    public void endBatch() throws FSException {
+        openBatches.decrementAndGet();
+        commit();
+    }
 
-        if (parent.getChildByName(name) != null)
-            throw new FSException(String.format("File or directory '%s' already exists.", name));
+    public void createDirectory(String path) throws FSException {
+        createDirectory(defaultSession, path);
+    }
 
-        createDirectory(name, parent);
+    void createDirectory(Session session, String path) throws FSException {
+        long started = metrics.start();
+        beginMutation();
+        try {
+            ParentResolve pr = resolveParent(session, path, true);
+            FSDirectory parent = pr.parent;
+            String name = pr.name;
+
+            expandCopies(parent);
+            parent.lock().lock();
+            try {
+                ensureLinked(parent);
+                if (parent.getChildByName(name) != null)
+                    throw new FSException(String.format("File or directory '%s' already exists.", name));
+
+                createDirectory(name, parent);
+            } finally {
+                parent.lock().unlock();
+            }
+        } finally {
+            endMutation();
+            metrics.record(Metrics.Operation.MKDIR, started);
+        }
     }
 
-    private FSDirectory createDirectory(String name, FSDirectory currentDir) {
-        journal.log("START: mkdir " + name);
+    /** The caller holds the lock of {@code currentDir}. */
+    private FSDirectory createDirectory(String name, FSDirectory currentDir) throws FSException {
         FSDirectory newDir = new FSDirectory(name, currentDir);
+        persist(Journal.MKDIR, getPath(newDir));
         currentDir.addChild(newDir);
-        saveFileSystem();
-        journal.log("COMMIT: mkdir " + name);
 
         return newDir;
     }
 
     public void createFile(String path) throws FSException {
-        ParentResolve pr = resolveParent(path, true);
-        FSDirectory parent = pr.parent;
-        String name = pr.name;
-
-        if (parent.getChildByName(name) != null)
-            throw new FSException(String.format("File or directory '%s' already exists.", name));
+        createFile(defaultSession, path);
+    }
 
-        createFile(name, parent);
+    void createFile(Session session, String path) throws FSException {
+        long started = metrics.start();
+        beginMutation();
+        try {
+            ParentResolve pr = resolveParent(session, path, true);
+            FSDirectory parent = pr.parent;
+            String name = pr.name;
+
+            expandCopies(parent);
+            parent.lock().lock();
+            try {
+                ensureLinked(parent);
+                if (parent.getChildByName(name) != null)
+                    throw new FSException(String.format("File or directory '%s' already exists.", name));
+
+                createFile(name, parent);
+            } finally {
+                parent.lock().unlock();
+            }
+        } finally {
+            endMutation();
+            metrics.record(Metrics.Operation.TOUCH, started);
+        }
     }
 
-    private void createFile(String name, FSDirectory currentDir) {
-        journal.log("START: touch " + name);
-        String extension = getFileExtension(name);
-        FSFile newFile = new FSFile(name, extension, currentDir);
+    /** The caller holds the lock of {@code currentDir}. */
+    private void createFile(String name, FSDirectory currentDir) throws FSException {
+        FSFile newFile = new FSFile(name, currentDir);
+        persist(Journal.TOUCH, getPath(newFile));
         currentDir.addChild(newFile);
-        saveFileSystem();
-        journal.log("COMMIT: touch " + name);
+        searchIndex.created(newFile);
     }
 
     private static class ParentResolve {
@@ -72,7 +330,7 @@ public class FileSystemSimulator {
         }
     }
 
-    private ParentResolve resolveParent(String path, boolean createIfMissing) throws FSException {
+    private ParentResolve resolveParent(Session session, String path, boolean createIfMissing) throws FSException {
         if (path == null || path.isEmpty())
             throw new FSException("Invalid path.");
 
@@ -91,11 +349,12 @@ public class FileSystemSimulator {
         FSDirectory parent;
 
         if (parentPath == null || parentPath.isEmpty()) {
-            parent = path.startsWith("/") ? root : currentDirectory;
+            parent = path.startsWith("/") ? root : workingDirectory(session);
         } else {
-            if (createIfMissing) {
+            if (createIfMissing && !parentPath.startsWith(":")) {
                 String[] parts = parentPath.split("/");
-                FSDirectory node = parentPath.startsWith("/") ? root : currentDirectory;
+                FSDirectory node = parentPath.startsWith("/") ? root : workingDirectory(session);
+                checkWritable(node);
                 for (String part : parts) {
                     if (part == null || part.isEmpty() || part.equals("."))
                         continue;
@@ -105,10 +364,17 @@ public class FileSystemSimulator {
                         continue;
                     }
 
-                    FSNode child = node.getChildByName(part);
+                    FSNode child = lookup(node, part);
                     if (child == null) {
-                        node = createDirectory(part, node);
-                        continue;
+                        node.lock().lock();
+                        try {
+                            ensureLinked(node);
+                            child = node.getChildByName(part);
+                            if (child == null)
+                                child = createDirectory(part, node);
+                        } finally {
+                            node.lock().unlock();
+                        }
                     }
 
                     if (child.getType().equals("FILE"))
@@ -118,321 +384,2128 @@ public class FileSystemSimulator {
                 }
                 parent = node;
             } else {
-                FSNode p = resolvePathToNode(parentPath);
+                FSNode p = resolvePathToNode(session, parentPath);
                 if (p == null || p.getType().equals("FILE"))
                     throw new FSException(String.format("Destination path '%s' not found.", parentPath));
                 parent = (FSDirectory) p;
             }
         }
 
+        checkWritable(parent);
         return new ParentResolve(parent, name);
     }
 
-    public String listDirectory() {
-        return listDirectory(currentDirectory);
+    /**
+     * Opens a file for byte-level reads and writes. With {@code create} set, a
+     * missing file is created first, as shell redirection does.
+     */
+    public FileHandle open(String path, boolean create) throws FSException {
+        return open(defaultSession, path, create);
     }
 
-    public String listDirectory(String path) {
-        if (path == null || path.isEmpty()) {
-            return listDirectory();
+    FileHandle open(Session session, String path, boolean create) throws FSException {
+        long started = metrics.start();
+        try {
+            FSNode node;
+            try {
+                node = resolvePathToNode(session, path);
+            } catch (FSException e) {
+                if (!create)
+                    throw e;
+                try {
+                    createFile(session, path);
+                } catch (FSException failure) {
+                    // Only another session creating it in the meantime is
+                    // fine; anything else is the caller's to see.
+                    try {
+                        resolvePathToNode(session, path);
+                    } catch (FSException absent) {
+                        throw failure;
+                    }
+                }
+                node = resolvePathToNode(session, path);
+            }
+
+            if (node == null)
+                throw new FSException("Invalid path.");
+            if (!node.getType().equals("FILE"))
+                throw new FSException(String.format("'%s' is not a file.", node.name()));
+            return new FileHandle(this, (FSFile) node);
+        } finally {
+            metrics.record(Metrics.Operation.OPEN, started);
         }
+    }
 
-        try {
-            FSNode node = resolvePathToNode(path);
+    long fileSize(FSFile file) {
+        file = residentOrUnlinked(file);
+        synchronized (file) {
+            return file.inode() == 0 ? 0 : disk.size(file.inode());
+        }
+    }
 
-            if (node.getType().equals("FILE")) {
-                StringBuilder s = new StringBuilder();
-                s.append("\nFile: ").append(getPath(node)).append("\n\n");
-                s.append(Color.GREEN).append("Type   LastWriteTime         Name\n").append(Color.RESET);
-                s.append(Color.GREEN).append("----   -------------------   ----\n").append(Color.RESET);
-                String format = "%-4s   %-19s   %s\n";
-                s.append(String.format(format, node.getType(), node.updatedAt(), node.name()));
-                return s.toString();
+    int readFile(FSFile file, long offset, ByteBuffer dst) {
+        long started = metrics.start();
+        try {
+            file = residentOrUnlinked(file);
+            List<ByteBuffer> views;
+            synchronized (file) {
+                if (file.inode() == 0 || offset >= disk.size(file.inode()))
+                    return dst.hasRemaining() ? -1 : 0;
+                views = disk.read(file.inode(), offset, dst.remaining());
             }
 
-            return listDirectory((FSDirectory) node);
-        } catch (FSException e) {
-            return String.format("Path '%s' not found.", path);
+            int count = 0;
+            for (ByteBuffer view : views) {
+                count += view.remaining();
+                dst.put(view);
+            }
+            return count;
+        } finally {
+            metrics.record(Metrics.Operation.READ, started);
         }
     }
 
-    private String listDirectory(FSDirectory dir) {
-        List<FSNode> content = dir.children();
+    long transferFile(FSFile file, long offset, long count, WritableByteChannel target) throws IOException {
+        long started = metrics.start();
+        try {
+            file = residentOrUnlinked(file);
+            long sent = 0;
+            while (sent < count) {
+                List<ByteBuffer> views;
+                synchronized (file) {
+                    if (file.inode() == 0)
+                        return sent;
+                    int chunk = (int) Math.min(count - sent, Journal.MAX_PAYLOAD);
+                    views = disk.read(file.inode(), offset + sent, chunk);
+                }
+                if (views.isEmpty())
+                    return sent;
+                for (ByteBuffer view : views) {
+                    while (view.hasRemaining()) {
+                        sent += target.write(view);
+                    }
+                }
+            }
+            return sent;
+        } finally {
+            metrics.record(Metrics.Operation.READ, started);
+        }
+    }
 
-        if (content.isEmpty())
-            return "";
+    void writeFile(FSFile file, long offset, ByteBuffer src) throws FSException {
+        if (offset < 0)
+            throw new FSException("Invalid offset.");
+        writeContent(file, offset, src);
+    }
 
-        StringBuilder s = new StringBuilder();
-        s.append("\nDirectory: ").append(getPath(dir)).append("\n\n");
-        s.append(Color.GREEN).append("Type   LastWriteTime         Name\n").append(Color.RESET);
-        s.append(Color.GREEN).append("----   -------------------   ----\n").append(Color.RESET);
+    void appendFile(FSFile file, ByteBuffer src) throws FSException {
+        writeContent(file, -1, src);
+    }
 
-        for (FSNode node : content) {
-            String format = "%-4s   %-19s   %s\n";
-            s.append(String.format(format, node.getType(), node.updatedAt(), node.name()));
+    /** Writes at {@code offset}, or at the end of the file when it is -1. */
+    private void writeContent(FSFile file, long offset, ByteBuffer src) throws FSException {
+        long started = metrics.start();
+        beginMutation();
+        try {
+            file = resident(file);
+            checkWritable(file);
+            expandCopies(file.parent());
+            synchronized (file) {
+                if (file.isUnlinked())
+                    throw new FSException(String.format("File '%s' was deleted.", file.name()));
+                int inode = writableInode(file);
+                long at = offset < 0 ? disk.size(inode) : offset;
+
+                // Written to the device first: a write that fails there, for
+                // lack of space, must not be journaled and replayed.
+                String path = getPath(file);
+                ByteBuffer data = src.duplicate();
+                int length = src.remaining();
+                disk.write(inode, at, src);
+                // Journaled from the caller's buffer, in slices of it.
+                for (int done = 0; done < length; done += Journal.MAX_PAYLOAD) {
+                    data.limit(data.position() + Math.min(length - done, Journal.MAX_PAYLOAD));
+                    persist(Journal.WRITE, data, path, Long.toString(at + done));
+                    data.position(data.limit());
+                }
+                file.updated();
+                metrics.wroteContent(length);
+                searchIndex.changed(file);
+            }
+        } catch (IOException e) {
+            throw new FSException(String.format("Couldn't write '%s'. %s", file.name(), e.getMessage()));
+        } finally {
+            endMutation();
+            metrics.record(Metrics.Operation.WRITE, started);
         }
-
-        return s.toString();
     }
 
-    public void changeDirectory(String path) throws FSException {
-        FSNode node = resolvePathToNode(path);
+    /**
+     * Returns the inode to write the file's content to. The caller holds the
+     * file's monitor. An inode from before the last checkpoint is copied
+     * first, sharing its blocks, and the original is released: it must keep
+     * the content the checkpoint saw, or replaying a copy of this file would
+     * pick up writes made after it.
+     */
+    private int writableInode(FSFile file) throws IOException {
+        long generation = journal.generation();
+        if (file.ownsInode(generation))
+            return file.inode();
+
+        int old = file.inode();
+        file.setInode(old == 0 ? disk.allocateInode() : disk.copy(old), generation);
+        file.parent().changed();
+        if (old != 0) {
+            synchronized (releasedInodes) {
+                releasedInodes.add(old);
+            }
+        }
+        return file.inode();
+    }
 
-        if (node.getType().equals("FILE"))
-            throw new FSException(String.format("'%s' is not a directory.", node.name()));
+    void truncateFile(FSFile file, long size) throws FSException {
+        if (size < 0)
+            throw new FSException("Invalid size.");
 
-        changeDirectory((FSDirectory) node);
+        long started = metrics.start();
+        beginMutation();
+        try {
+            file = resident(file);
+            checkWritable(file);
+            expandCopies(file.parent());
+            synchronized (file) {
+                if (file.isUnlinked())
+                    throw new FSException(String.format("File '%s' was deleted.", file.name()));
+                if (file.inode() == 0 && size == 0)
+                    return;
+                int inode = writableInode(file);
+                persist(Journal.TRUNCATE, getPath(file), Long.toString(size));
+                disk.truncate(inode, size);
+                file.updated();
+                searchIndex.changed(file);
+            }
+        } catch (IOException e) {
+            throw new FSException(String.format("Couldn't truncate '%s'. %s", file.name(), e.getMessage()));
+        } finally {
+            endMutation();
+            metrics.record(Metrics.Operation.TRUNCATE, started);
+        }
     }
 
-    private void changeDirectory(FSDirectory dir) {
-        currentDirectory = dir;
+    public String listDirectory() {
+        return listDirectory(defaultSession);
     }
 
-    public void rename(String oldName, String newName) throws FSException {
-        FSNode src = resolvePathToNode(oldName);
+    String listDirectory(Session session) {
+        return listDirectory(session, null);
+    }
 
-        if (src == null)
-            throw new FSException(String.format("File or directory '%s' not found.", oldName));
+    public String listDirectory(String path) {
+        return listDirectory(defaultSession, path);
+    }
 
+    String listDirectory(Session session, String path) {
+        StringBuilder s = new StringBuilder();
         try {
-            FSNode destNode = resolvePathToNode(newName);
-            if (destNode.getType().equals("DIR")) {
-                FSDirectory targetDir = (FSDirectory) destNode;
-                if (targetDir.getChildByName(src.name()) != null)
-                    throw new FSException(
-                            String.format("File or directory '%s' already exists in destination.", src.name()));
-
-                journal.log("START: mv " + oldName + " " + newName);
-                src.parent().removeChild(src);
-                src.setParent(targetDir);
-                targetDir.addChild(src);
-                saveFileSystem();
-                journal.log("COMMIT: mv " + oldName + " " + newName);
-                return;
-            }
+            listDirectory(session, path, ListOptions.ALL, s);
         } catch (FSException e) {
+            return String.format("Path '%s' not found.", path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        return s.toString();
+    }
 
-        int lastSlash = newName.lastIndexOf('/');
-        String parentPath = null;
-        String destName = newName;
-        FSDirectory parentDir = currentDirectory;
+    /**
+     * Writes one page of the listing of {@code path} (the working directory
+     * when null or empty) to {@code out}, row by row. Returns the name to pass
+     * as {@link ListOptions#after} for the next page, or null after the last.
+     * An empty page writes nothing.
+     *
+     * Rows are written from the version of the directory current when the
+     * listing starts, without locking it, so a slow {@code out} holds up
+     * nobody.
+     */
+    public String listDirectory(String path, ListOptions options, Appendable out) throws FSException, IOException {
+        return listDirectory(defaultSession, path, options, out);
+    }
 
-        if (lastSlash != -1) {
-            parentPath = newName.substring(0, lastSlash);
-            destName = newName.substring(lastSlash + 1);
+    String listDirectory(Session session, String path, ListOptions options, Appendable out)
+            throws FSException, IOException {
+        long started = metrics.start();
+        try {
+            FSNode node = resolveExisting(session, path);
+            if (node.getType().equals("FILE")) {
+                out.append("\nFile: ").append(getPath(node)).append("\n\n");
+                listingHeader(out, options.color());
+                new RowWriter(out).write(node);
+                return null;
+            }
+
+            FSDirectory dir = (FSDirectory) node;
+            while (true) {
+                // A lazy copy, as in a snapshot, is listed from its source so
+                // listing it copies nothing. The listing stands if the copy
+                // still reads that source once it is written out: a source
+                // expands its copies before it changes.
+                FSDirectory source = dir.contentSource();
+                if (source == dir)
+                    return listChildren(dir, dir.version(), options, out);
+                StringBuilder listing = new StringBuilder();
+                String last = listChildren(dir, source.version(), options, listing);
+                if (dir.contentSource() == source) {
+                    out.append(listing);
+                    return last;
+                }
+            }
+        } finally {
+            metrics.record(Metrics.Operation.LIST, started);
         }
+    }
 
-        if (!isValidName(destName))
-            throw new FSException(String.format("'%s' is not a valid name.", destName));
+    /**
+     * What a program needs of a listing: {@code entry} applied to each child
+     * of the directory at {@code path}, in the order they were created, or to
+     * the file at {@code path} itself. The children are those of one version
+     * of the directory, read as {@link #listDirectory} reads them.
+     */
+    public <T> List<T> list(String path, Function<FSNode, T> entry) throws FSException {
+        return list(defaultSession, path, entry);
+    }
+
+    <T> List<T> list(Session session, String path, Function<FSNode, T> entry) throws FSException {
+        long started = metrics.start();
+        try {
+            FSNode node = resolveExisting(session, path);
+            if (node instanceof FSFile)
+                return List.of(entry.apply(node));
 
-        if (parentPath != null && !parentPath.isEmpty()) {
-            FSNode p = resolvePathToNode(parentPath);
-            if (p == null || p.getType().equals("FILE"))
-                throw new FSException(String.format("Destination path '%s' not found.", parentPath));
-            parentDir = (FSDirectory) p;
-        } else if (newName.startsWith("/")) {
-            parentDir = root;
+            FSDirectory dir = (FSDirectory) node;
+            while (true) {
+                FSDirectory source = dir.contentSource();
+                List<T> entries = new ArrayList<>();
+                for (FSNode child : source.version().list()) {
+                    entries.add(entry.apply(child));
+                }
+                if (dir.contentSource() == source)
+                    return entries;
+            }
+        } finally {
+            metrics.record(Metrics.Operation.LIST, started);
         }
+    }
 
-        if (parentDir.getChildByName(destName) != null)
-            throw new FSException(String.format("File or directory '%s' already exists.", destName));
+    /**
+     * Writes a page of {@code dir}'s listing from one version of its children;
+     * returns the name to resume after, if any. Insertion and name order come
+     * from the listings the version keeps, read backwards when reversed.
+     */
+    private String listChildren(FSDirectory dir, ChildMap children, ListOptions options, Appendable out)
+            throws FSException, IOException {
+        List<FSNode> content;
+        boolean backwards = false;
+        if (options.sort() == ListOptions.Sort.NONE || options.sort() == ListOptions.Sort.NAME) {
+            content = options.sort() == ListOptions.Sort.NONE ? children.list() : children.byName();
+            backwards = options.reverse();
+        } else {
+            content = sortListing(children.list(), options);
+        }
 
-        journal.log("START: mv " + oldName + " " + newName);
+        int size = content.size();
+        int from = 0;
+        if (options.after() != null)
+            from = pageStart(children, content, options);
+        int to = options.limit() == 0 ? size : (int) Math.min(size, (long) from + options.limit());
+        if (from >= to)
+            return null;
 
-        FSDirectory oldParent = src.parent();
-        oldParent.removeChild(src);
-        src.setParent(parentDir);
-        src.setName(destName);
-        parentDir.addChild(src);
-        saveFileSystem();
-        journal.log("COMMIT: mv " + oldName + " " + newName);
+        out.append("\nDirectory: ").append(getPath(dir)).append("\n\n");
+        listingHeader(out, options.color());
+        RowWriter rows = new RowWriter(out);
+        for (int i = from; i < to; i++) {
+            rows.write(content.get(backwards ? size - 1 - i : i));
+        }
+        return to < size ? content.get(backwards ? size - to : to - 1).name() : null;
     }
 
-    public void copy(String srcPath, String dstPath) throws FSException {
-        FSNode src = resolvePathToNode(srcPath);
-        if (src == null) {
-            throw new FSException(String.format("Source '%s' not found.", srcPath));
+    /**
+     * Sorts a listing on keys taken once per entry, so writes and renames
+     * going on meanwhile can't make the order inconsistent.
+     */
+    private List<FSNode> sortListing(List<FSNode> content, ListOptions options) {
+        SortKey[] keys = new SortKey[content.size()];
+        for (int i = 0; i < keys.length; i++) {
+            FSNode node = content.get(i);
+            long key = 0;
+            if (options.sort() == ListOptions.Sort.MTIME) {
+                key = node.lastModified();
+            } else if (options.sort() == ListOptions.Sort.SIZE && node instanceof FSFile) {
+                key = fileSize((FSFile) node);
+            }
+            keys[i] = new SortKey(node, node.name(), key);
         }
 
-        try {
-            FSNode destNode = resolvePathToNode(dstPath);
-            if (destNode.getType().equals("DIR")) {
-                FSDirectory targetDir = (FSDirectory) destNode;
-                if (src.getType().equals("FILE")) {
-                    if (targetDir.getChildByName(src.name()) != null)
-                        throw new FSException(String.format("File '%s' already exists in destination.", src.name()));
+        Comparator<SortKey> order = Comparator.<SortKey>comparingLong(k -> k.key).thenComparing(k -> k.name);
+        Arrays.sort(keys, options.reverse() ? order.reversed() : order);
+        List<FSNode> sorted = new ArrayList<>(keys.length);
+        for (SortKey key : keys) {
+            sorted.add(key.node);
+        }
+        return sorted;
+    }
 
-                    journal.log("START: cp " + srcPath + " " + dstPath);
-                    FSFile srcFile = (FSFile) src;
-                    FSFile copy = new FSFile(srcFile.name(), srcFile.getExtension(), targetDir);
-                    copy.setContent(srcFile.getContent());
-                    targetDir.addChild(copy);
-                    saveFileSystem();
-                    journal.log("COMMIT: cp " + srcPath + " " + dstPath);
-                    return;
+    private static class SortKey {
+        final FSNode node;
+        final String name;
+        final long key;
+
+        SortKey(FSNode node, String name, long key) {
+            this.node = node;
+            this.name = name;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Where the page after {@code options.after()} starts, counted in the
+     * order listed. By name the cursor needn't exist any more and is found by
+     * binary search; the other orders need the entry itself to know where it
+     * was, and insertion order looks it up by name.
+     */
+    private int pageStart(ChildMap children, List<FSNode> content, ListOptions options) throws FSException {
+        String after = options.after();
+        int size = content.size();
+        if (options.sort() == ListOptions.Sort.NAME) {
+            // Names before the cursor, and the cursor itself if it is there.
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (content.get(mid).name().compareTo(after) < 0) {
+                    low = mid + 1;
                 } else {
-                    throw new FSException("Copying directories is not supported.");
+                    high = mid;
                 }
             }
-        } catch (FSException e) {
+            boolean present = low < size && content.get(low).name().equals(after);
+            return options.reverse() ? size - low : low + (present ? 1 : 0);
         }
 
-        int lastSlash = dstPath.lastIndexOf('/');
-        String parentPath = null;
-        String destName = dstPath;
-        FSDirectory parentDir = currentDirectory;
-
-        if (lastSlash != -1) {
-            parentPath = dstPath.substring(0, lastSlash);
-            destName = dstPath.substring(lastSlash + 1);
+        int at;
+        if (options.sort() == ListOptions.Sort.NONE) {
+            at = children.indexOf(after);
+            if (at >= 0 && options.reverse())
+                at = size - 1 - at;
+        } else {
+            at = -1;
+            for (int i = 0; i < size && at < 0; i++) {
+                if (content.get(i).name().equals(after))
+                    at = i;
+            }
         }
+        if (at < 0)
+            throw new FSException(String.format("'%s' is not in this directory.", after));
+        return at + 1;
+    }
 
-        if (!isValidName(destName))
-            throw new FSException(String.format("'%s' is not a valid name.", destName));
+    private static void listingHeader(Appendable out, boolean color) throws IOException {
+        String header = "Type   LastWriteTime         Name\n----   -------------------   ----\n";
+        out.append(color ? Color.GREEN + header + Color.RESET : header);
+    }
 
-        if (parentPath != null && !parentPath.isEmpty()) {
-            FSNode p = resolvePathToNode(parentPath);
-            if (p == null || p.getType().equals("FILE"))
-                throw new FSException(String.format("Destination path '%s' not found.", parentPath));
-            parentDir = (FSDirectory) p;
-        } else if (dstPath.startsWith("/")) {
-            parentDir = root;
-        }
+    /**
+     * Writes listing rows without building a string per row. Times are shown
+     * to the minute, and entries listed together tend to share one, so the
+     * last time formatted is reused.
+     */
+    private static class RowWriter {
+        private static final String PADDING = "                   ";
 
-        if (parentDir.getChildByName(destName) != null)
-            throw new FSException(String.format("File or directory '%s' already exists.", destName));
+        private final Appendable out;
+        private long minute = Long.MIN_VALUE;
+        private String time;
 
-        if (src.getType().equals("FILE")) {
-            journal.log("START: cp " + srcPath + " " + dstPath);
-            FSFile srcFile = (FSFile) src;
-            FSFile copy = new FSFile(destName, srcFile.getExtension(), parentDir);
-            copy.setContent(srcFile.getContent());
-            parentDir.addChild(copy);
-            saveFileSystem();
-            journal.log("COMMIT: cp " + srcPath + " " + dstPath);
-            return;
+        RowWriter(Appendable out) {
+            this.out = out;
+        }
+
+        void write(FSNode node) throws IOException {
+            long modified = Math.floorDiv(node.lastModified(), 60_000L);
+            if (modified != minute) {
+                minute = modified;
+                time = FSNode.formatTime(node.lastModified());
+            }
+            pad(node.getType(), 4);
+            out.append("   ");
+            pad(time, 19);
+            out.append("   ").append(node.name()).append('\n');
         }
 
-        throw new FSException("Copying directories is not supported.");
+        private void pad(String value, int width) throws IOException {
+            out.append(value);
+            if (value.length() < width)
+                out.append(PADDING, 0, width - value.length());
+        }
     }
 
-    private FSNode resolvePathToNode(String path) throws FSException {
-        if (path == null || path.isEmpty())
-            return null;
+    /** Total bytes of file content under {@code path}. */
+    public long diskUsage(String path) throws FSException {
+        return diskUsage(defaultSession, path);
+    }
 
-        if (path.equals("/"))
-            return root;
+    long diskUsage(Session session, String path) throws FSException {
+        long started = metrics.start();
+        try {
+            FSNode start = resolveExisting(session, path);
+            long[] total = walker.walk(start, getPath(start), new TreeWalker.Visitor<long[]>() {
+                @Override
+                public long[] newContainer() {
+                    return new long[1];
+                }
 
-        FSNode node = path.startsWith("/") ? root : currentDirectory;
-        String[] parts = path.split("/");
+                @Override
+                public boolean visit(long[] into, FSNode node, String nodePath, int depth) {
+                    if (node instanceof FSFile)
+                        into[0] += fileSize((FSFile) node);
+                    return true;
+                }
 
-        for (String part : parts) {
-            if (part == null || part.isEmpty())
-                continue;
+                @Override
+                public void merge(long[] into, long[] part) {
+                    into[0] += part[0];
+                }
+            });
+            return total[0];
+        } finally {
+            metrics.record(Metrics.Operation.DISK_USAGE, started);
+        }
+    }
 
-            if (part.equals("."))
-                continue;
+    /** Paths of the nodes under {@code path}, itself included, that match. */
+    public List<String> find(String path, Predicate<FSNode> filter) throws FSException {
+        return find(defaultSession, path, filter);
+    }
 
-            if (part.equals("..")) {
-                if (node.parent() != null)
-                    node = node.parent();
-                continue;
-            }
+    List<String> find(Session session, String path, Predicate<FSNode> filter) throws FSException {
+        long started = metrics.start();
+        try {
+            FSNode start = resolveExisting(session, path);
+            return walker.walk(start, getPath(start), new TreeWalker.Visitor<List<String>>() {
+                @Override
+                public List<String> newContainer() {
+                    return new ArrayList<>();
+                }
 
-            if (!(node instanceof FSDirectory))
-                throw new FSException(String.format("'%s' is not a directory.", node.name()));
+                @Override
+                public boolean visit(List<String> into, FSNode node, String nodePath, int depth) {
+                    if (filter.test(node))
+                        into.add(nodePath);
+                    return true;
+                }
 
-            FSDirectory dir = (FSDirectory) node;
-            FSNode child = dir.getChildByName(part);
-            if (child == null)
-                throw new FSException(String.format("Path segment '%s' not found.", part));
-            node = child;
+                @Override
+                public void merge(List<String> into, List<String> part) {
+                    into.addAll(part);
+                }
+            });
+        } finally {
+            metrics.record(Metrics.Operation.FIND, started);
         }
+    }
 
-        return node;
+    /** "FILE" or "DIR" for the node at {@code path}, or null when there is none. */
+    public String typeOf(String path) {
+        return typeOf(defaultSession, path);
     }
 
-    public void delete(String path) throws FSException {
-        FSNode node = resolvePathToNode(path);
-        if (node == null)
-            throw new FSException(String.format("Couldn't delete '%s'. Wrong path.", path));
+    String typeOf(Session session, String path) {
+        try {
+            FSNode node = resolvePathToNode(session, path);
+            return node == null ? null : node.getType();
+        } catch (FSException e) {
+            return null;
+        }
+    }
+
+    /** The subtree under {@code path}, one node per line, indented by depth. */
+    public String tree(String path) throws FSException {
+        return tree(defaultSession, path);
+    }
 
-        FSDirectory parent = node.parent();
-        if (parent == null)
-            throw new FSException(String.format("Couldn't delete '%s'. No parent directory.", path));
+    String tree(Session session, String path) throws FSException {
+        long started = metrics.start();
+        try {
+            FSNode start = resolveExisting(session, path);
+            return walker.walk(start, getPath(start), new TreeWalker.Visitor<StringBuilder>() {
+                @Override
+                public StringBuilder newContainer() {
+                    return new StringBuilder();
+                }
 
-        delete(parent, node, path);
+                @Override
+                public boolean visit(StringBuilder into, FSNode node, String nodePath, int depth) {
+                    if (depth == 0) {
+                        into.append(nodePath);
+                    } else {
+                        into.append("    ".repeat(depth - 1)).append("|-- ").append(node.name());
+                    }
+                    if (node instanceof FSDirectory && !nodePath.equals("/"))
+                        into.append('/');
+                    into.append('\n');
+                    return true;
+                }
 
+                @Override
+                public void merge(StringBuilder into, StringBuilder part) {
+                    into.append(part);
+                }
+            }).toString();
+        } finally {
+            metrics.record(Metrics.Operation.TREE, started);
+        }
     }
 
-    private void delete(FSDirectory parent, FSNode child, String path) {
-        journal.log("START: rm " + path);
-        parent.removeChild(child);
-        saveFileSystem();
-        journal.log("COMMIT: rm " + path);
+    private FSNode resolveExisting(Session session, String path) throws FSException {
+        FSNode node = path == null || path.isEmpty() ? workingDirectory(session) : resolvePathToNode(session, path);
+        if (node == null)
+            throw new FSException(String.format("Path '%s' not found.", path));
+        return node;
     }
 
-    public String currentPath() {
-        return getPath(currentDirectory);
+    public void changeDirectory(String path) throws FSException {
+        changeDirectory(defaultSession, path);
     }
 
-    private String getPath(FSNode node) {
-        if (node == root)
-            return "/";
+    void changeDirectory(Session session, String path) throws FSException {
+        long started = metrics.start();
+        try {
+            FSNode node = resolvePathToNode(session, path);
 
-        StringBuilder path = new StringBuilder();
-        FSNode current = node;
-        while (current != null && current.parent() != null) {
-            path.insert(0, "/" + current.name());
-            current = current.parent();
+            if (node.getType().equals("FILE"))
+                throw new FSException(String.format("'%s' is not a directory.", node.name()));
+
+            changeDirectory(session, (FSDirectory) node);
+        } finally {
+            metrics.record(Metrics.Operation.CHANGE_DIRECTORY, started);
         }
-        return path.toString();
     }
 
-    private void saveFileSystem() {
-        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(DISK_IMAGE))) {
-            out.writeObject(root);
-        } catch (IOException e) {
-            System.err.println("Error while saving in virtual disk." + e.getMessage());
-            journal.log("CRITICAL_ERROR: Failed to save in disk.");
-        }
+    private void changeDirectory(Session session, FSDirectory dir) {
+        session.directory = dir;
+        session.path = null;
+    }
+
+    public void rename(String oldName, String newName) throws FSException {
+        rename(defaultSession, oldName, newName);
     }
 
-    private void loadFileSystem() {
-        File disk = new File(DISK_IMAGE);
-        if (disk.exists()) {
-            try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(DISK_IMAGE))) {
-                root = (FSDirectory) in.readObject();
-                currentDirectory = root;
-            } catch (Exception e) {
-                System.err.println("Error while reading virtual disk." + e.getMessage());
+    void rename(Session session, String oldName, String newName) throws FSException {
+        long started = metrics.start();
+        try {
+            FSNode src = resolvePathToNode(session, oldName);
+
+            if (src == null)
+                throw new FSException(String.format("File or directory '%s' not found.", oldName));
+
+            FSDirectory targetDir = null;
+            try {
+                FSNode destNode = resolvePathToNode(session, newName);
+                if (destNode.getType().equals("DIR"))
+                    targetDir = (FSDirectory) destNode;
+            } catch (FSException e) {
             }
+
+            if (targetDir != null) {
+                move(src, targetDir, src.name());
+                return;
+            }
+
+            int lastSlash = newName.lastIndexOf('/');
+            String parentPath = null;
+            String destName = newName;
+            FSDirectory parentDir = workingDirectory(session);
+
+            if (lastSlash != -1) {
+                parentPath = newName.substring(0, lastSlash);
+                destName = newName.substring(lastSlash + 1);
+            }
+
+            if (!isValidName(destName))
+                throw new FSException(String.format("'%s' is not a valid name.", destName));
+
+            if (parentPath != null && !parentPath.isEmpty()) {
+                FSNode p = resolvePathToNode(session, parentPath);
+                if (p == null || p.getType().equals("FILE"))
+                    throw new FSException(String.format("Destination path '%s' not found.", parentPath));
+                parentDir = (FSDirectory) p;
+            } else if (newName.startsWith("/")) {
+                parentDir = root;
+            }
+
+            move(src, parentDir, destName);
+        } finally {
+            metrics.record(Metrics.Operation.RENAME, started);
         }
     }
 
-    private boolean isValidName(String name) {
-        if (name == null || name.isEmpty() || name.equals(".") || name.equals("..")) {
-            return false;
-        }
-        String prohibitedChars = "\\/:*?\"<>|&";
-        for (char c : prohibitedChars.toCharArray()) {
-            if (name.indexOf(c) != -1) {
-                return false;
+    /**
+     * Moves {@code src} into {@code target} under {@code destName}. Both parent
+     * directories are locked, an ancestor before its descendant.
+     */
+    private void move(FSNode src, FSDirectory target, String destName) throws FSException {
+        if (src.parent() == null)
+            throw new FSException("Couldn't move the root directory.");
+
+        beginMutation();
+        try {
+            // Both were looked up before the mutation began, so either may
+            // have been paged out since.
+            src = resident(src);
+            target = resident(target);
+            checkWritable(src);
+            checkWritable(target);
+            FSDirectory source = src.parent();
+            boolean crossDirectory = source != target;
+            if (crossDirectory)
+                renameLock.lock();
+            try {
+                if (crossDirectory && isAncestor(src, target))
+                    throw new FSException(String.format("Couldn't move '%s' into itself.", src.name()));
+
+                expandCopies(source);
+                expandCopies(target);
+
+                FSDirectory first = crossDirectory && isAncestor(target, source) ? target : source;
+                FSDirectory second = first == source ? target : source;
+                first.lock().lock();
+                if (crossDirectory)
+                    second.lock().lock();
+                try {
+                    if (src.parent() != source)
+                        throw new FSException(String.format("'%s' was moved by another session.", src.name()));
+                    ensureLinked(target);
+                    if (target.getChildByName(destName) != null)
+                        throw new FSException(String.format("File or directory '%s' already exists.", destName));
+
+                    String srcPath = getPath(src);
+                    persist(Journal.MOVE, srcPath, getPath(target), destName);
+                    source.removeChild(src);
+                    src.setParent(target);
+                    src.setName(destName);
+                    target.addChild(src);
+                    detached(srcPath);
+                    searchIndex.moved(srcPath, src);
+                } finally {
+                    if (crossDirectory)
+                        second.lock().unlock();
+                    first.lock().unlock();
+                }
+            } finally {
+                if (crossDirectory)
+                    renameLock.unlock();
             }
+        } finally {
+            endMutation();
         }
-        return true;
     }
 
-    private String getFileExtension(String name) {
-        int lastDotIndex = name.lastIndexOf(".");
-        if (lastDotIndex > 0 && lastDotIndex < name.length() - 1) {
-            return name.substring(lastDotIndex + 1);
-        }
-        return null;
+    public void copy(String srcPath, String dstPath) throws FSException {
+        copy(defaultSession, srcPath, dstPath, false);
     }
 
-    public void shutdown() {
-        journal.close();
+    /**
+     * Copies a file, or with {@code recursive} set a whole directory. A
+     * directory copy takes constant time: the copy shares the original's
+     * subtree and content blocks until either side changes.
+     */
+    public void copy(String srcPath, String dstPath, boolean recursive) throws FSException {
+        copy(defaultSession, srcPath, dstPath, recursive);
+    }
+
+    void copy(Session session, String srcPath, String dstPath, boolean recursive) throws FSException {
+        long started = metrics.start();
+        try {
+            FSNode src = resolvePathToNode(session, srcPath);
+            if (src == null) {
+                throw new FSException(String.format("Source '%s' not found.", srcPath));
+            }
+
+            FSDirectory targetDir = null;
+            try {
+                FSNode destNode = resolvePathToNode(session, dstPath);
+                if (destNode.getType().equals("DIR"))
+                    targetDir = (FSDirectory) destNode;
+            } catch (FSException e) {
+            }
+
+            if (!recursive && !src.getType().equals("FILE"))
+                throw new FSException(String.format("'%s' is a directory. Use cp -r to copy it.", src.name()));
+
+            if (targetDir != null) {
+                copy(src, targetDir, src.name());
+                return;
+            }
+
+            int lastSlash = dstPath.lastIndexOf('/');
+            String parentPath = null;
+            String destName = dstPath;
+            FSDirectory parentDir = workingDirectory(session);
+
+            if (lastSlash != -1) {
+                parentPath = dstPath.substring(0, lastSlash);
+                destName = dstPath.substring(lastSlash + 1);
+            }
+
+            if (!isValidName(destName))
+                throw new FSException(String.format("'%s' is not a valid name.", destName));
+
+            if (parentPath != null && !parentPath.isEmpty()) {
+                FSNode p = resolvePathToNode(session, parentPath);
+                if (p == null || p.getType().equals("FILE"))
+                    throw new FSException(String.format("Destination path '%s' not found.", parentPath));
+                parentDir = (FSDirectory) p;
+            } else if (dstPath.startsWith("/")) {
+                parentDir = root;
+            }
+
+            copy(src, parentDir, destName);
+        } finally {
+            metrics.record(Metrics.Operation.COPY, started);
+        }
+    }
+
+    private void copy(FSNode src, FSDirectory target, String destName) throws FSException {
+        if (src instanceof FSFile) {
+            copyFile((FSFile) src, target, destName);
+        } else {
+            copyDirectory((FSDirectory) src, target, destName);
+        }
+    }
+
+    private void copyFile(FSFile srcFile, FSDirectory target, String destName) throws FSException {
+        beginMutation();
+        try {
+            srcFile = resident(srcFile);
+            target = resident(target);
+            checkWritable(target);
+            expandCopies(target);
+            target.lock().lock();
+            try {
+                ensureLinked(target);
+                if (target.getChildByName(destName) != null)
+                    throw new FSException(String.format("File or directory '%s' already exists.", destName));
+
+                FSFile copy = new FSFile(destName, target);
+                // Logged under the source's monitor, like its writes, so each
+                // of them is logged before the copy or after it as it was made.
+                synchronized (srcFile) {
+                    copy.setInode(copyContent(srcFile), journal.generation());
+                    persist(Journal.COPY, getPath(srcFile), getPath(target), destName);
+                }
+                target.addChild(copy);
+                searchIndex.copied(getPath(srcFile), copy);
+            } finally {
+                target.lock().unlock();
+            }
+        } finally {
+            endMutation();
+        }
+    }
+
+    /**
+     * Links a lazy copy of {@code src} into {@code target}. Other mutations
+     * are held off meanwhile, so none of them can miss the new copy when it
+     * expands the copies of the directories it is about to change.
+     */
+    private void copyDirectory(FSDirectory src, FSDirectory target, String destName) throws FSException {
+        checkJournal();
+        checkpointLock.writeLock().lock();
+        journal.begin();
+        try {
+            src = resident(src);
+            target = resident(target);
+            checkWritable(target);
+            if (isAncestor(src, target))
+                throw new FSException(String.format("Couldn't copy '%s' into itself.", src.name()));
+
+            expandCopies(target);
+            target.lock().lock();
+            try {
+                ensureLinked(src);
+                ensureLinked(target);
+                if (target.getChildByName(destName) != null)
+                    throw new FSException(String.format("File or directory '%s' already exists.", destName));
+
+                FSDirectory copy = FSDirectory.lazyCopy(destName, target, src);
+                target.addChild(copy);
+                persist(Journal.COPY, getPath(src), getPath(target), destName);
+                searchIndex.copiedTree(getPath(src), copy);
+            } finally {
+                target.lock().unlock();
+            }
+        } finally {
+            checkpointLock.writeLock().unlock();
+            commit();
+        }
+    }
+
+    /**
+     * Expands the lazy copies of {@code dir} and of its ancestors, top down,
+     * before something under {@code dir} changes. Expanding an ancestor's copy
+     * can create new lazy copies further down, so the order matters.
+     */
+    private void expandCopies(FSDirectory dir) throws FSException {
+        Deque<FSDirectory> path = new ArrayDeque<>();
+        for (FSDirectory d = dir; d != null; d = d.parent()) {
+            path.push(d);
+        }
+        try {
+            path.forEach(FSDirectory::expandCopies);
+        } catch (UncheckedIOException e) {
+            throw new FSException(e.getMessage() + " " + e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Registers the lazy copies of a loaded image with their sources. A
+     * mounted image lists them, and the directories on their paths are paged
+     * in to link them; an image read whole is walked.
+     */
+    private void relinkCopies() {
+        if (bootImage != null) {
+            try {
+                for (String[] pair : bootImage.copies()) {
+                    FSNode copy = walkPath(defaultSession, pair[0]);
+                    FSNode source = walkPath(defaultSession, pair[1]);
+                    if (!(copy instanceof FSDirectory) || !(source instanceof FSDirectory))
+                        throw new IOException("Corrupt image: bad copy '" + pair[0] + "'.");
+                    ((FSDirectory) copy).restoreLazyCopy((FSDirectory) source);
+                    ((FSDirectory) copy).relinkCopy();
+                }
+            } catch (IOException | FSException e) {
+                throw new UncheckedIOException("Couldn't read the file system image.",
+                        e instanceof IOException ? (IOException) e : new IOException(e.getMessage()));
+            }
+            return;
+        }
+
+        walker.walk(root, "/", new TreeWalker.Visitor<Void>() {
+            @Override
+            public Void newContainer() {
+                return null;
+            }
+
+            @Override
+            public boolean visit(Void into, FSNode node, String path, int depth) {
+                if (node instanceof FSDirectory && ((FSDirectory) node).isLazyCopy()) {
+                    ((FSDirectory) node).relinkCopy();
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            public void merge(Void into, Void part) {
+            }
+        });
+    }
+
+    private FSNode resolvePathToNode(Session session, String path) throws FSException {
+        if (path == null || path.isEmpty())
+            return null;
+
+        if (path.equals("/"))
+            return root;
+
+        String key = cacheKey(session, path);
+        if (key == null)
+            return walkPath(session, path);
+        if (key.equals("/"))
+            return root;
+
+        FSNode node = pathCache.get(key);
+        if (node != null)
+            return node;
+
+        // Most misses are siblings of something already resolved, so try to
+        // continue from the cached parent before walking the whole path.
+        long generation = pathCache.generation();
+        int lastSlash = key.lastIndexOf('/');
+        FSNode parent = lastSlash == 0 ? root : pathCache.peek(key.substring(0, lastSlash));
+        if (parent instanceof FSDirectory) {
+            node = lookup((FSDirectory) parent, key.substring(lastSlash + 1));
+        }
+        if (node == null)
+            node = walkPath(session, path);
+
+        pathCache.put(key, node, generation);
+        return node;
+    }
+
+    /**
+     * Turns a path into the absolute form used as cache key, or returns null
+     * for paths with '..' segments, whose meaning depends on the tree, and for
+     * paths into snapshots, which are not cached.
+     */
+    private String cacheKey(Session session, String path) {
+        if (path.startsWith(":"))
+            return null;
+        StringBuilder key = new StringBuilder();
+        if (!path.startsWith("/") && workingDirectory(session) != root) {
+            String base = currentPath(session);
+            if (base.startsWith(":"))
+                return null;
+            key.append(base);
+        }
+
+        int start = 0;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end == -1)
+                end = path.length();
+
+            int length = end - start;
+            boolean dot = length == 1 && path.charAt(start) == '.';
+            boolean dotDot = length == 2 && path.charAt(start) == '.' && path.charAt(start + 1) == '.';
+            if (dotDot)
+                return null;
+            if (length > 0 && !dot)
+                key.append('/').append(path, start, end);
+
+            start = end + 1;
+        }
+
+        return key.length() == 0 ? "/" : key.toString();
+    }
+
+    /**
+     * Drops cached paths of a node that has just been moved or deleted, or of
+     * the children of a directory paged out. Must be called after the change
+     * is visible in the tree.
+     */
+    private void detached(String path) {
+        pathCache.invalidate(path);
+    }
+
+    public long pathCacheHits() {
+        return pathCache.hits();
+    }
+
+    public long pathCacheMisses() {
+        return pathCache.misses();
+    }
+
+    /** The session's working directory, looked up again if it was paged out. */
+    private FSDirectory workingDirectory(Session session) {
+        FSDirectory dir = session.directory;
+        if (dir.isEvicted()) {
+            dir = residentOrUnlinked(dir);
+            session.directory = dir;
+        }
+        return dir;
+    }
+
+    /**
+     * The node that took the place of {@code node} when it was paged out,
+     * found again by its path; any other node is returned as it is. Mutations
+     * call this for nodes looked up before they began, since nothing is paged
+     * out until they end.
+     */
+    private <T extends FSNode> T resident(T node) throws FSException {
+        if (!node.isEvicted())
+            return node;
+
+        String path = getPath(node);
+        FSNode current = walkPath(defaultSession, path);
+        if (current.getClass() != node.getClass())
+            throw new FSException(String.format("'%s' no longer exists.", path));
+        @SuppressWarnings("unchecked")
+        T resident = (T) current;
+        return resident;
+    }
+
+    /**
+     * Like {@link #resident}, for readers: a node deleted after it was paged
+     * out is returned as it is, unlinked, as a deleted node would be.
+     */
+    private <T extends FSNode> T residentOrUnlinked(T node) {
+        try {
+            return resident(node);
+        } catch (FSException e) {
+            if (node instanceof FSFile) {
+                synchronized (node) {
+                    ((FSFile) node).unlink();
+                }
+            } else {
+                ((FSDirectory) node).unlink();
+            }
+            return node;
+        }
+    }
+
+    private FSNode walkPath(Session session, String path) throws FSException {
+        FSNode node;
+        if (path.startsWith(":")) {
+            int slash = path.indexOf('/');
+            node = snapshot(path.substring(1, slash == -1 ? path.length() : slash));
+            path = slash == -1 ? "" : path.substring(slash);
+        } else {
+            node = path.startsWith("/") ? root : workingDirectory(session);
+        }
+        String[] parts = path.split("/");
+        int depth = 0;
+
+        for (String part : parts) {
+            if (part == null || part.isEmpty())
+                continue;
+
+            if (part.equals("."))
+                continue;
+
+            depth++;
+            if (part.equals("..")) {
+                if (node.parent() != null)
+                    node = node.parent();
+                continue;
+            }
+
+            if (!(node instanceof FSDirectory))
+                throw new FSException(String.format("'%s' is not a directory.", node.name()));
+
+            FSDirectory dir = (FSDirectory) node;
+            FSNode child = lookup(dir, part);
+            if (child == null)
+                throw new FSException(String.format("Path segment '%s' not found.", part));
+            node = child;
+        }
+
+        metrics.resolved(depth);
+        return node;
+    }
+
+    private int copyContent(FSFile srcFile) throws FSException {
+        try {
+            synchronized (srcFile) {
+                return srcFile.inode() == 0 ? 0 : disk.copy(srcFile.inode());
+            }
+        } catch (IOException e) {
+            throw new FSException(String.format("Couldn't copy '%s'. %s", srcFile.name(), e.getMessage()));
+        }
+    }
+
+    /**
+     * Queues the inodes of a deleted node's files to be freed. Large subtrees
+     * are walked in parallel.
+     */
+    private void release(FSNode node) {
+        List<Integer> inodes = walker.walk(node, getPath(node), new TreeWalker.Visitor<List<Integer>>() {
+            @Override
+            public List<Integer> newContainer() {
+                return new ArrayList<>();
+            }
+
+            @Override
+            public boolean visit(List<Integer> into, FSNode n, String path, int depth) {
+                if (n instanceof FSFile) {
+                    FSFile file = (FSFile) n;
+                    synchronized (file) {
+                        if (file.inode() != 0)
+                            into.add(file.inode());
+                        file.unlink();
+                    }
+                    return false;
+                }
+                FSDirectory dir = (FSDirectory) n;
+                if (dir.isLazyCopy()) {
+                    // It owns nothing yet, and must not be expanded to find out.
+                    dir.discardCopy();
+                    return false;
+                }
+                // Copies still reading this subtree take their own content
+                // before its files are unlinked.
+                dir.expandCopies();
+                return true;
+            }
+
+            @Override
+            public void merge(List<Integer> into, List<Integer> part) {
+                into.addAll(part);
+            }
+        });
+        synchronized (releasedInodes) {
+            releasedInodes.addAll(inodes);
+        }
+    }
+
+    private Set<Integer> liveInodes() {
+        TreeWalker.Visitor<Set<Integer>> visitor = new TreeWalker.Visitor<Set<Integer>>() {
+            @Override
+            public Set<Integer> newContainer() {
+                return new HashSet<>();
+            }
+
+            @Override
+            public boolean visit(Set<Integer> into, FSNode n, String path, int depth) {
+                if (n instanceof FSFile) {
+                    into.add(((FSFile) n).inode());
+                    return false;
+                }
+                // What wasn't paged in is counted from the image's inode list.
+                FSDirectory dir = (FSDirectory) n;
+                return dir.isLoaded() && !dir.isLazyCopy();
+            }
+
+            @Override
+            public void merge(Set<Integer> into, Set<Integer> part) {
+                into.addAll(part);
+            }
+        };
+        Set<Integer> live = walker.walk(root, "/", visitor);
+        for (FSDirectory snapshot : snapshotRoots()) {
+            live.addAll(walker.walk(snapshot, getPath(snapshot), visitor));
+        }
+        return live;
+    }
+
+    private FSNode lookup(FSDirectory dir, String name) {
+        return dir.getChildByName(name);
+    }
+
+    /** Rejects changes under a directory that another session deleted. */
+    private void ensureLinked(FSDirectory dir) throws FSException {
+        for (FSDirectory d = dir; d != null; d = d.parent()) {
+            if (d.isUnlinked())
+                throw new FSException(String.format("Directory '%s' no longer exists.", dir.name()));
+        }
+    }
+
+    private boolean isAncestor(FSNode ancestor, FSNode node) {
+        for (FSNode n = node; n != null; n = n.parent()) {
+            if (n == ancestor)
+                return true;
+        }
+        return false;
+    }
+
+    public void delete(String path) throws FSException {
+        delete(defaultSession, path);
+    }
+
+    void delete(Session session, String path) throws FSException {
+        long started = metrics.start();
+        try {
+            FSNode node = resolvePathToNode(session, path);
+            if (node == null)
+                throw new FSException(String.format("Couldn't delete '%s'. Wrong path.", path));
+            checkWritable(node);
+
+            FSDirectory parent = node.parent();
+            if (parent == null)
+                throw new FSException(String.format("Couldn't delete '%s'. No parent directory.", path));
+
+            delete(parent, node, path);
+
+        } finally {
+            metrics.record(Metrics.Operation.DELETE, started);
+        }
+    }
+
+    private void delete(FSDirectory parent, FSNode child, String path) throws FSException {
+        beginMutation();
+        try {
+            if (child.isEvicted()) {
+                child = resident(child);
+                parent = child.parent();
+            }
+            expandCopies(parent);
+            parent.lock().lock();
+            try {
+                if (child.parent() != parent || parent.getChildByName(child.name()) != child)
+                    throw new FSException(String.format("Couldn't delete '%s'. Wrong path.", path));
+
+                String absolutePath = getPath(child);
+                persist(Journal.DELETE, absolutePath);
+                if (child instanceof FSDirectory) {
+                    FSDirectory dir = (FSDirectory) child;
+                    dir.lock().lock();
+                    try {
+                        dir.unlink();
+                        parent.removeChild(child);
+                    } finally {
+                        dir.lock().unlock();
+                    }
+                } else {
+                    parent.removeChild(child);
+                }
+                detached(absolutePath);
+                searchIndex.removed(absolutePath);
+            } finally {
+                parent.lock().unlock();
+            }
+            // The subtree is unreachable now, so it is walked without holding
+            // up the parent directory.
+            release(child);
+        } finally {
+            endMutation();
+        }
+    }
+
+    /**
+     * Takes a snapshot of the whole tree in constant time: it shares the
+     * tree, and each directory is copied into it only before the live one
+     * changes. Other mutations are held off meanwhile, so the snapshot holds
+     * every mutation that has returned and none that hasn't.
+     */
+    public void createSnapshot(String name) throws FSException {
+        if (!isValidName(name))
+            throw new FSException(String.format("'%s' is not a valid name.", name));
+
+        long started = metrics.start();
+        checkJournal();
+        checkpointLock.writeLock().lock();
+        journal.begin();
+        try {
+            synchronized (snapshots) {
+                if (snapshots.containsKey(name))
+                    throw new FSException(String.format("Snapshot '%s' already exists.", name));
+            }
+            addSnapshot(FSDirectory.lazyCopy(name, null, root));
+            persist(Journal.SNAPSHOT, name);
+        } finally {
+            checkpointLock.writeLock().unlock();
+            commit();
+            metrics.record(Metrics.Operation.SNAPSHOT, started);
+        }
+    }
+
+    /** Drops a snapshot; what only it held is freed with the next checkpoint. */
+    public void deleteSnapshot(String name) throws FSException {
+        long started = metrics.start();
+        beginMutation();
+        try {
+            FSDirectory snapshot = removeSnapshot(name);
+            persist(Journal.DELETE_SNAPSHOT, name);
+            snapshot.unlink();
+            release(snapshot);
+        } finally {
+            endMutation();
+            metrics.record(Metrics.Operation.SNAPSHOT, started);
+        }
+    }
+
+    /** The snapshots by name, in the order they were taken, with the time each was. */
+    public Map<String, Long> listSnapshots() {
+        Map<String, Long> taken = new LinkedHashMap<>();
+        for (FSDirectory snapshot : snapshotRoots()) {
+            taken.put(snapshot.name(), snapshot.creationTime());
+        }
+        return taken;
+    }
+
+    /**
+     * Brings the live tree back to a snapshot. Subtrees that haven't changed
+     * since it was taken are left alone, so the work is in proportion to what
+     * changed; what is put back shares the snapshot's directories and blocks.
+     * Other mutations are held off meanwhile. The snapshot is kept.
+     */
+    public void restoreSnapshot(String name) throws FSException {
+        long started = metrics.start();
+        checkJournal();
+        checkpointLock.writeLock().lock();
+        journal.begin();
+        try {
+            restore(snapshot(name));
+            persist(Journal.RESTORE, name);
+        } finally {
+            checkpointLock.writeLock().unlock();
+            commit();
+            metrics.record(Metrics.Operation.RESTORE, started);
+        }
+    }
+
+    /**
+     * The changes from snapshot {@code from} to snapshot {@code to}, or to the
+     * live tree when {@code to} is null, one per line and sorted by path:
+     * "+ path" for what was added, "- path" for what was removed and "M path"
+     * for a file whose content changed or a node whose type did. Subtrees the
+     * two still share are skipped without being read. Mutations wait while
+     * the trees are compared.
+     */
+    public List<String> diffSnapshots(String from, String to) throws FSException {
+        long started = metrics.start();
+        checkpointLock.writeLock().lock();
+        try {
+            FSDirectory before = snapshot(from);
+            FSDirectory after = to == null ? root : snapshot(to);
+            List<String> changes = new ArrayList<>();
+            Deque<Object[]> pending = new ArrayDeque<>();
+            pending.push(new Object[] { before, after, "/" });
+            while (!pending.isEmpty()) {
+                Object[] next = pending.pop();
+                FSDirectory a = ((FSDirectory) next[0]).contentSource();
+                FSDirectory b = ((FSDirectory) next[1]).contentSource();
+                String path = (String) next[2];
+                if (a == b)
+                    continue;
+
+                Map<String, FSNode> added = new LinkedHashMap<>();
+                for (FSNode node : b.children()) {
+                    added.put(node.name(), node);
+                }
+                for (FSNode old : a.children()) {
+                    String childPath = TreeWalker.childPath(path, old.name());
+                    FSNode now = added.remove(old.name());
+                    if (now == null) {
+                        changes.add("- " + childPath);
+                    } else if (old instanceof FSDirectory && now instanceof FSDirectory) {
+                        pending.push(new Object[] { old, now, childPath });
+                    } else if (!(old instanceof FSFile && now instanceof FSFile)
+                            || !sameContent((FSFile) old, (FSFile) now)) {
+                        changes.add("M " + childPath);
+                    }
+                }
+                for (FSNode node : added.values()) {
+                    changes.add("+ " + TreeWalker.childPath(path, node.name()));
+                }
+            }
+            changes.sort(Comparator.comparing(change -> change.substring(2)));
+            return changes;
+        } finally {
+            checkpointLock.writeLock().unlock();
+            metrics.record(Metrics.Operation.DIFF, started);
+        }
+    }
+
+    /**
+     * Makes the live tree match {@code snapshot}, directory by directory. A
+     * directory the snapshot still shares is already the same and is skipped,
+     * as are files with the same content. Everything else is removed, and
+     * what the snapshot has in its place is copied in: files copy-on-write,
+     * directories as lazy copies. The caller holds off other mutations.
+     */
+    private void restore(FSDirectory snapshot) throws FSException {
+        Deque<FSDirectory[]> pending = new ArrayDeque<>();
+        pending.push(new FSDirectory[] { root, snapshot });
+        while (!pending.isEmpty()) {
+            FSDirectory[] next = pending.pop();
+            FSDirectory live = next[0];
+            if (next[1].contentSource() == live.contentSource())
+                continue;
+            expandCopies(live);
+            FSDirectory wanted = next[1].contentSource();
+
+            Map<String, FSNode> missing = new LinkedHashMap<>();
+            for (FSNode node : wanted.children()) {
+                missing.put(node.name(), node);
+            }
+            List<FSNode> removed = new ArrayList<>();
+            List<String> removedPaths = new ArrayList<>();
+            List<FSNode> added = new ArrayList<>();
+            live.lock().lock();
+            try {
+                for (FSNode child : live.children()) {
+                    FSNode kept = missing.get(child.name());
+                    if (kept instanceof FSDirectory && child instanceof FSDirectory) {
+                        pending.push(new FSDirectory[] { (FSDirectory) child, (FSDirectory) kept });
+                        missing.remove(child.name());
+                        continue;
+                    }
+                    if (kept instanceof FSFile && child instanceof FSFile && sameContent((FSFile) child, (FSFile) kept)) {
+                        missing.remove(child.name());
+                        continue;
+                    }
+
+                    removedPaths.add(getPath(child));
+                    if (child instanceof FSDirectory)
+                        ((FSDirectory) child).unlink();
+                    live.removeChild(child);
+                    removed.add(child);
+                }
+                for (FSNode node : missing.values()) {
+                    FSNode copy;
+                    if (node instanceof FSFile) {
+                        FSFile file = new FSFile(node.name(), live);
+                        file.setInode(copyContent((FSFile) node));
+                        copy = file;
+                    } else {
+                        copy = FSDirectory.lazyCopy(node.name(), live, (FSDirectory) node);
+                    }
+                    copy.setTimes(node.creationTime(), node.lastModified());
+                    live.addChild(copy);
+                    added.add(copy);
+                }
+            } finally {
+                live.lock().unlock();
+            }
+            removedPaths.forEach(this::detached);
+            if (searchIndex.isBuilt()) {
+                removedPaths.forEach(searchIndex::removed);
+                added.forEach(node -> indexTree(node, getPath(node)));
+            }
+            // Copies just linked to a removed directory take their own
+            // content before its files are unlinked.
+            removed.forEach(this::release);
+        }
+    }
+
+    /** Whether two files hold the same bytes; the caller holds off writes. */
+    private boolean sameContent(FSFile a, FSFile b) {
+        int first = a.inode();
+        int second = b.inode();
+        if (first == second)
+            return true;
+        if (first == 0 || second == 0)
+            return disk.size(first == 0 ? second : first) == 0;
+        return disk.sameContent(first, second);
+    }
+
+    private void addSnapshot(FSDirectory snapshot) {
+        snapshot.setSnapshot();
+        snapshot.setContentCopier(contentCopier);
+        synchronized (snapshots) {
+            snapshots.put(snapshot.name(), snapshot);
+        }
+    }
+
+    private FSDirectory removeSnapshot(String name) throws FSException {
+        synchronized (snapshots) {
+            FSDirectory snapshot = snapshots.remove(name);
+            if (snapshot == null)
+                throw new FSException(String.format("Snapshot '%s' not found.", name));
+            return snapshot;
+        }
+    }
+
+    private FSDirectory snapshot(String name) throws FSException {
+        synchronized (snapshots) {
+            FSDirectory snapshot = snapshots.get(name);
+            if (snapshot == null)
+                throw new FSException(String.format("Snapshot '%s' not found.", name));
+            return snapshot;
+        }
+    }
+
+    private List<FSDirectory> snapshotRoots() {
+        synchronized (snapshots) {
+            return new ArrayList<>(snapshots.values());
+        }
+    }
+
+    /** Takes the snapshots of a mounted image back; they are linked with the other lazy copies. */
+    private void loadSnapshots() {
+        if (bootImage == null)
+            return;
+        try {
+            bootImage.snapshots().forEach(this::addSnapshot);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't read the file system image.", e);
+        }
+    }
+
+    /** Rejects changes inside a snapshot, which is read-only. */
+    private void checkWritable(FSNode node) throws FSException {
+        FSDirectory dir = node instanceof FSDirectory ? (FSDirectory) node : node.parent();
+        FSDirectory snapshot = dir == null ? null : dir.snapshotRoot();
+        if (snapshot != null)
+            throw new FSException(String.format("Snapshot '%s' is read-only.", snapshot.name()));
+    }
+
+    /**
+     * The paths of the files matching {@code query}, sorted, answered from
+     * the search index. The first search builds the index, reading every
+     * file with mutations held off; later ones only read again the files
+     * written since the last search.
+     */
+    public List<String> search(SearchQuery query) {
+        long started = metrics.start();
+        searchLock.lock();
+        try {
+            if (!searchIndex.isBuilt())
+                buildSearchIndex();
+            refreshSearchIndex();
+            return searchIndex.search(query);
+        } finally {
+            searchLock.unlock();
+            metrics.record(Metrics.Operation.SEARCH, started);
+        }
+    }
+
+    private void buildSearchIndex() {
+        checkpointLock.writeLock().lock();
+        try {
+            indexTree(root, "/");
+            searchIndex.setBuilt();
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /** Indexes the words of the files written since the last search. */
+    private void refreshSearchIndex() {
+        for (SearchIndex.Stale stale : searchIndex.takeStale()) {
+            FSFile file = stale.file();
+            if (file == null) {
+                try {
+                    FSNode node = walkPath(defaultSession, stale.path());
+                    if (!(node instanceof FSFile))
+                        continue;
+                    file = (FSFile) node;
+                } catch (FSException e) {
+                    // Deleted since; the index dropped it too.
+                    continue;
+                }
+            }
+            file = residentOrUnlinked(file);
+            searchIndex.reindexed(stale, contentWords(file), file.lastModified());
+        }
+    }
+
+    /** Adds the files under {@code node} to the search index, in parallel. */
+    private void indexTree(FSNode node, String path) {
+        walker.walk(node, path, new TreeWalker.Visitor<Void>() {
+            @Override
+            public Void newContainer() {
+                return null;
+            }
+
+            @Override
+            public boolean visit(Void into, FSNode n, String nodePath, int depth) {
+                if (n instanceof FSFile) {
+                    FSFile file = residentOrUnlinked((FSFile) n);
+                    searchIndex.add(nodePath, file, contentWords(file));
+                }
+                return true;
+            }
+
+            @Override
+            public void merge(Void into, Void part) {
+            }
+        });
+    }
+
+    /** The words of the first {@link SearchIndex#MAX_INDEXED_BYTES} of a file. */
+    private List<String> contentWords(FSFile file) {
+        List<ByteBuffer> views;
+        synchronized (file) {
+            if (file.inode() == 0)
+                return List.of();
+            long size = disk.size(file.inode());
+            views = disk.read(file.inode(), 0, (int) Math.min(size, SearchIndex.MAX_INDEXED_BYTES));
+        }
+        return SearchIndex.words(views);
+    }
+
+    private void pagedIn(FSDirectory dir, int nodes, boolean added) {
+        if (residents.pagedIn(dir, nodes, added) && mounted)
+            schedulePageOut(residents.capacity() * 3 / 4);
+    }
+
+    private void schedulePageOut(long target) {
+        if (!pageOutScheduled.compareAndSet(false, true))
+            return;
+        try {
+            checkpointer.execute(() -> {
+                try {
+                    pageOut(target);
+                } finally {
+                    pageOutScheduled.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pageOutScheduled.set(false);
+        }
+    }
+
+    /**
+     * Pages out cold directories until at most {@code target} paged-in nodes
+     * remain. Mutations are held off meanwhile; those that looked up a node
+     * before it went look it up again ({@link #resident}). A reader still
+     * holding one sees the same content it would read back, since only
+     * directories unchanged since the last checkpoint are paged out.
+     */
+    private void pageOut(long target) {
+        checkpointLock.writeLock().lock();
+        try {
+            for (int tries = residents.directories(); tries > 0 && residents.size() > target; tries--) {
+                FSDirectory dir = residents.victim();
+                if (dir == null)
+                    return;
+                if (!pageOut(dir))
+                    residents.keep(dir);
+            }
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    private boolean pageOut(FSDirectory dir) {
+        if (dir == root || !dir.lock().tryLock())
+            return false;
+        try {
+            long count = dir.pageOut();
+            if (count < 0)
+                return false;
+            residents.pagedOut(count);
+            detached(getPath(dir));
+            return true;
+        } finally {
+            dir.lock().unlock();
+        }
+    }
+
+    /**
+     * Publishes the metrics over JMX, named after the directory the simulator
+     * keeps its files in so several simulators in one JVM don't clash.
+     */
+    private void registerMetrics(Path directory) {
+        metrics.setGauges(new Metrics.Gauges() {
+            @Override
+            public long residentNodes() {
+                return residents.size();
+            }
+
+            @Override
+            public long residentDirectories() {
+                return residents.directories();
+            }
+
+            @Override
+            public long journalBytes() {
+                return journal.size();
+            }
+
+            @Override
+            public long checkpointBytes() {
+                return lastCheckpointSize;
+            }
+
+            @Override
+            public long pathCacheHits() {
+                return FileSystemSimulator.this.pathCacheHits();
+            }
+
+            @Override
+            public long pathCacheMisses() {
+                return FileSystemSimulator.this.pathCacheMisses();
+            }
+
+            @Override
+            public long contentBytes() {
+                return disk.logicalBytes();
+            }
+
+            @Override
+            public long storedContentBytes() {
+                return disk.storedBytes();
+            }
+        });
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("FileSystemSimulator:type=Metrics,directory="
+                    + ObjectName.quote(directory.toAbsolutePath().normalize().toString()));
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(metrics, name);
+            metricsName = name;
+        } catch (JMException e) {
+            System.err.println("Error while registering metrics." + e.getMessage());
+        }
+    }
+
+    private void unregisterMetrics() {
+        if (metricsName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+        } catch (JMException e) {
+        }
+        metricsName = null;
+    }
+
+    /** Latencies of each operation so far, and the sizes of the file system. */
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Pages out half of what was paged in whenever a heap pool is still more
+     * than {@link #HEAP_PRESSURE} full after a collection.
+     */
+    private void watchHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            long max = pool.getUsage().getMax();
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported() && max > 0
+                    && pool.getCollectionUsageThreshold() == 0)
+                pool.setCollectionUsageThreshold((long) (max * HEAP_PRESSURE));
+        }
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(heapListener, null, null);
+    }
+
+    public String currentPath() {
+        return currentPath(defaultSession);
+    }
+
+    /**
+     * The session's working directory as a path. It is cached and recomputed
+     * after any move or delete, since those may have renamed an ancestor.
+     */
+    String currentPath(Session session) {
+        long generation = pathCache.generation();
+        if (session.path == null || session.pathGeneration != generation) {
+            session.path = getPath(workingDirectory(session));
+            session.pathGeneration = generation;
+        }
+        return session.path;
+    }
+
+    private String getPath(FSNode node) {
+        if (node == root)
+            return "/";
+
+        StringBuilder path = new StringBuilder();
+        FSNode current = node;
+        while (current != null && current.parent() != null) {
+            path.insert(0, "/" + current.name());
+            current = current.parent();
+        }
+        if (current != root && current instanceof FSDirectory && ((FSDirectory) current).snapshotRoot() != null)
+            path.insert(0, ":" + current.name());
+        return path.toString();
+    }
+
+    private void beginMutation() throws FSException {
+        checkJournal();
+        checkpointLock.readLock().lock();
+        journal.begin();
+    }
+
+    /**
+     * Refuses mutations once the journal can't be written: they would change
+     * the tree without being logged, so the file system turns read-only.
+     */
+    private void checkJournal() throws FSException {
+        IOException failure = journal.failure();
+        if (failure != null)
+            throw new FSException("The journal can't be written; the file system is read-only. "
+                    + failure.getMessage());
+    }
+
+    /**
+     * Releases the tree before committing, so other mutations run while this
+     * one waits for its journal sync.
+     */
+    private void endMutation() throws FSException {
+        checkpointLock.readLock().unlock();
+        commit();
+    }
+
+    /**
+     * Logs a change. Names are logged before the change makes them visible,
+     * so whatever another session does with them is logged after it.
+     */
+    private void persist(byte op, String... args) throws FSException {
+        persist(op, null, args);
+    }
+
+    private void persist(byte op, ByteBuffer payload, String... args) throws FSException {
+        try {
+            journal.record(op, payload, args);
+        } catch (IOException e) {
+            throw new FSException("Couldn't write the journal. " + e.getMessage());
+        }
+    }
+
+    /**
+     * Commits the calling thread's transaction. A journal that can't be
+     * written or synced fails the mutation, rather than have it acknowledged
+     * as durable when it isn't.
+     */
+    private void commit() throws FSException {
+        try {
+            journal.commit();
+        } catch (IOException e) {
+            throw new FSException("Couldn't commit to the journal. " + e.getMessage());
+        }
+        if (journal.inTransaction() || !checkpointDue())
+            return;
+
+        checkpointLock.writeLock().lock();
+        try {
+            if (checkpointDue())
+                saveFileSystem();
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    private boolean checkpointDue() {
+        Future<?> pending = pendingCheckpoint;
+        boolean idle = (pending == null || pending.isDone()) && openBatches.get() == 0;
+        return idle && journal.size() > Math.max(MIN_LOG_BYTES_BEFORE_CHECKPOINT, lastCheckpointSize);
+    }
+
+    private void replay(Journal.Record record) {
+        try {
+            String[] args = record.args;
+            switch (record.op) {
+                case Journal.MKDIR: {
+                    ParentResolve pr = resolveParent(defaultSession, args[0], false);
+                    expandCopies(pr.parent);
+                    pr.parent.addChild(new FSDirectory(pr.name, pr.parent));
+                    break;
+                }
+                case Journal.TOUCH: {
+                    ParentResolve pr = resolveParent(defaultSession, args[0], false);
+                    expandCopies(pr.parent);
+                    pr.parent.addChild(new FSFile(pr.name, pr.parent));
+                    break;
+                }
+                case Journal.MOVE: {
+                    FSNode src = resolvePathToNode(defaultSession, args[0]);
+                    FSDirectory target = (FSDirectory) resolvePathToNode(defaultSession, args[1]);
+                    expandCopies(src.parent());
+                    expandCopies(target);
+                    src.parent().removeChild(src);
+                    src.setParent(target);
+                    src.setName(args[2]);
+                    target.addChild(src);
+                    detached(args[0]);
+                    break;
+                }
+                case Journal.COPY: {
+                    FSNode src = resolvePathToNode(defaultSession, args[0]);
+                    FSDirectory target = (FSDirectory) resolvePathToNode(defaultSession, args[1]);
+                    expandCopies(target);
+                    if (src instanceof FSDirectory) {
+                        target.addChild(FSDirectory.lazyCopy(args[2], target, (FSDirectory) src));
+                        break;
+                    }
+                    FSFile srcFile = (FSFile) src;
+                    FSFile copy = new FSFile(args[2], target);
+                    copy.setInode(copyContent(srcFile));
+                    target.addChild(copy);
+                    break;
+                }
+                case Journal.DELETE: {
+                    FSNode node = resolvePathToNode(defaultSession, args[0]);
+                    expandCopies(node.parent());
+                    node.parent().removeChild(node);
+                    detached(args[0]);
+                    release(node);
+                    break;
+                }
+                case Journal.WRITE: {
+                    FSFile file = (FSFile) resolvePathToNode(defaultSession, args[0]);
+                    expandCopies(file.parent());
+                    disk.write(writableInode(file), Long.parseLong(args[1]), ByteBuffer.wrap(record.payload));
+                    break;
+                }
+                case Journal.TRUNCATE: {
+                    FSFile file = (FSFile) resolvePathToNode(defaultSession, args[0]);
+                    expandCopies(file.parent());
+                    disk.truncate(writableInode(file), Long.parseLong(args[1]));
+                    break;
+                }
+                case Journal.SNAPSHOT:
+                    addSnapshot(FSDirectory.lazyCopy(args[0], null, root));
+                    break;
+                case Journal.DELETE_SNAPSHOT:
+                    release(removeSnapshot(args[0]));
+                    break;
+                case Journal.RESTORE:
+                    restore(snapshot(args[0]));
+                    break;
+                default:
+                    throw new FSException("Unknown operation " + record.op + ".");
+            }
+        } catch (FSException | IOException | RuntimeException e) {
+            // Carrying on past it would build a tree other than the one the
+            // journal describes, and log new changes against it.
+            String failed = String.format("Operation %d on %s failed. %s", record.op,
+                    String.join(" ", record.args), e.getMessage());
+            throw new UncheckedIOException("Couldn't replay the journal.", new IOException(failed, e));
+        }
+    }
+
+    /**
+     * Writes a checkpoint of the tree and drops the log it covers. The tree is
+     * encoded here, with mutations held off, so the image is consistent;
+     * writing it out happens in the background. Directories page in from the
+     * encoded image until then.
+     */
+    private void saveFileSystem() {
+        ImageFormat.Image image;
+        long generation;
+        List<Integer> freed;
+        long started = metrics.start();
+        checkpointLock.writeLock().lock();
+        try {
+            synchronized (releasedInodes) {
+                freed = new ArrayList<>(releasedInodes);
+                releasedInodes.clear();
+            }
+            generation = journal.rotate();
+            image = ImageFormat.write(root, snapshotRoots(), generation);
+        } catch (IOException e) {
+            System.err.println("Error while saving in virtual disk." + e.getMessage());
+            return;
+        } finally {
+            checkpointLock.writeLock().unlock();
+            metrics.record(Metrics.Operation.CHECKPOINT, started);
+        }
+
+        lastCheckpointSize = image.size();
+        pendingCheckpoint = checkpointer.submit(() -> writeCheckpoint(image, generation, freed));
+    }
+
+    private void writeCheckpoint(ImageFormat.Image image, long generation, List<Integer> freed) {
+        long started = metrics.start();
+        try {
+            disk.force();
+            File tmp = new File(DISK_IMAGE + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                image.writeTo(out);
+                out.getFD().sync();
+            } catch (IOException e) {
+                System.err.println("Error while saving in virtual disk." + e.getMessage());
+                return;
+            }
+
+            File target = new File(DISK_IMAGE);
+            if (!tmp.renameTo(target)) {
+                target.delete();
+                if (!tmp.renameTo(target)) {
+                    System.err.println("Error while saving in virtual disk.");
+                    return;
+                }
+            }
+            try {
+                image.map(target.toPath());
+            } catch (IOException e) {
+                System.err.println("Error while mapping checkpoint." + e.getMessage());
+            }
+            freed.forEach(disk::freeInode);
+            disk.force();
+            journal.discard(generation);
+        } finally {
+            metrics.record(Metrics.Operation.CHECKPOINT_WRITE, started);
+        }
+    }
+
+    /**
+     * Loads the last checkpoint and returns the log generation it covers, or -1
+     * when there is none. A current image is mounted: only its root is read.
+     * Images written by earlier versions are read whole, with Java
+     * serialization ones moving their file content to the block device;
+     * {@link #migrated} then asks for the image to be rewritten.
+     */
+    private long loadFileSystem() {
+        File file = new File(DISK_IMAGE);
+        if (!file.exists())
+            return -1;
+
+        try {
+            int version;
+            try (InputStream in = new FileInputStream(file)) {
+                version = ImageFormat.version(in);
+            }
+            lastCheckpointSize = file.length();
+
+            if (version > 1) {
+                bootImage = ImageFormat.Image.open(file.toPath());
+                root = bootImage.root();
+                return bootImage.generation();
+            }
+
+            migrated = true;
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                if (version == 1) {
+                    ImageFormat.Version1 loaded = ImageFormat.readVersion1(in);
+                    root = loaded.root;
+                    return loaded.generation;
+                }
+
+                LegacyImage legacy = LegacyImage.read(in);
+                root = legacy.root;
+                for (Map.Entry<FSFile, byte[]> content : legacy.contents.entrySet()) {
+                    int inode = disk.allocateInode();
+                    disk.write(inode, 0, ByteBuffer.wrap(content.getValue()));
+                    content.getKey().setInode(inode);
+                }
+                return legacy.generation;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't read the file system image.", e);
+        }
+    }
+
+    private boolean isValidName(String name) {
+        if (name == null || name.isEmpty() || name.equals(".") || name.equals("..")) {
+            return false;
+        }
+        String prohibitedChars = "\\/:*?\"<>|&";
+        for (char c : prohibitedChars.toCharArray()) {
+            if (name.indexOf(c) != -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits until every mutation that has returned is on disk, along with a
+     * checkpoint still being written. Makes ASYNC mutations durable.
+     */
+    public void sync() {
+        try {
+            journal.sync();
+        } catch (IOException e) {
+            System.err.println("Error while saving in virtual disk." + e.getMessage());
+        }
+        awaitCheckpoint();
+    }
+
+    /** Takes a checkpoint now and waits until it is on disk. */
+    public void checkpoint() {
+        saveFileSystem();
+        awaitCheckpoint();
+    }
+
+    private void awaitCheckpoint() {
+        Future<?> pending = pendingCheckpoint;
+        if (pending == null)
+            return;
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("Error while saving in virtual disk." + e.getMessage());
+        }
+    }
+
+    public void shutdown() {
+        try {
+            if (pendingCheckpoint != null)
+                pendingCheckpoint.get();
+            if (journal.pending() > 0) {
+                saveFileSystem();
+                pendingCheckpoint.get();
+            }
+        } catch (Exception e) {
+            System.err.println("Error while saving in virtual disk." + e.getMessage());
+        }
+        checkpointer.shutdown();
+        try {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(heapListener);
+        } catch (ListenerNotFoundException e) {
+        }
+        unregisterMetrics();
+        journal.close();
+        try {
+            disk.close();
+        } catch (IOException e) {
+            System.err.println("Error while closing block device." + e.getMessage());
+        }
     }
-}
\ No newline at end of file
+}
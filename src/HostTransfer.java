@@ -0,0 +1,321 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Copies directory trees between the host's file system and the simulator.
+ *
+ * An import reads host files on a pool of threads, several at once and ahead
+ * of the tree, while the calling thread adds them to the tree in batches of
+ * about {@link Journal#MAX_UNFLUSHED} bytes, each made durable with one
+ * journal sync. The journal holds a batch in memory until it commits, and
+ * checkpoints wait for it, so batches are bounded; a crash keeps at least
+ * what was imported up to the last batch committed. Files from 64 KB up are mapped
+ * rather than read, and their bytes go from the mapping to the block device
+ * and into the journal, whose buffer is their only copy on the heap. A file
+ * is written in one piece, so a single large file is one batch by itself.
+ * Only directories and regular files are imported; links and devices are
+ * skipped.
+ *
+ * An export writes files on the pool, each straight from the device's mapped
+ * region with {@link FileHandle#transferTo}. It sees the tree as it is while
+ * it runs; exporting a snapshot's path gives a consistent copy.
+ */
+public class HostTransfer {
+    private static final int WORKERS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    // Host files are read in chunks, so handing them over costs little per
+    // file, and some chunks ahead of the tree, holding their content meanwhile.
+    private static final int CHUNK = 64;
+    private static final int READ_AHEAD = 4 * WORKERS;
+    private static final long MAP_THRESHOLD = 64 * 1024;
+
+    private final FileSystemSimulator fs;
+    private final Session session;
+
+    public HostTransfer(FileSystemSimulator fs, Session session) {
+        this.fs = fs;
+        this.session = session;
+    }
+
+    /**
+     * Imports what is in the host directory {@code source}, or the host file
+     * itself, into the directory {@code target}, which is created if missing.
+     * A name that already exists there stops the import; what was imported
+     * before it is kept.
+     *
+     * @return the number of files imported
+     */
+    public long importTree(Path source, String target) throws FSException, IOException {
+        long started = fs.metrics().start();
+        if (!Files.exists(source))
+            throw new FSException(String.format("'%s' not found on the host.", source));
+        String type = session.typeOf(target);
+        if (type == null) {
+            session.createDirectory(target);
+        } else if (!type.equals("DIR")) {
+            throw new FSException(String.format("'%s' is not a directory.", target));
+        }
+
+        ExecutorService readers = Executors.newFixedThreadPool(WORKERS, HostTransfer::worker);
+        Importer importer = new Importer(source, target.endsWith("/") ? target : target + "/", readers);
+        fs.beginBatch();
+        try {
+            Files.walkFileTree(source, importer);
+            if (importer.failure != null)
+                throw importer.failure;
+            importer.submit();
+            while (!importer.reading.isEmpty()) {
+                importer.add(importer.reading.poll());
+            }
+            return importer.imported;
+        } finally {
+            for (Reading reading : importer.reading) {
+                reading.contents.cancel(true);
+            }
+            readers.shutdownNow();
+            fs.endBatch();
+            fs.metrics().record(Metrics.Operation.IMPORT, started);
+        }
+    }
+
+    /**
+     * Exports what is in the directory {@code source}, or the file itself,
+     * into the host directory {@code target}, which is created if missing.
+     * Host files of the same names are overwritten.
+     *
+     * @return the number of files exported
+     */
+    public long exportTree(String source, Path target) throws FSException, IOException {
+        long started = fs.metrics().start();
+        ExecutorService writers = Executors.newFixedThreadPool(WORKERS, HostTransfer::worker);
+        try {
+            String type = session.typeOf(source);
+            if (type == null)
+                throw new FSException(String.format("File or directory '%s' not found.", source));
+            Files.createDirectories(target);
+            if (type.equals("FILE")) {
+                String name = source.substring(source.lastIndexOf('/') + 1);
+                export(source, host(target, name));
+                return 1;
+            }
+
+            // Sorted, a directory comes before those in it; the first is source.
+            List<String> directories = new ArrayList<>(session.find(source, node -> node instanceof FSDirectory));
+            Collections.sort(directories);
+            int base = directories.get(0).length();
+            for (String dir : directories) {
+                Files.createDirectories(host(target, dir.substring(base)));
+            }
+
+            List<Future<Void>> written = new ArrayList<>();
+            for (String file : session.find(source, node -> node instanceof FSFile)) {
+                Path to = host(target, file.substring(base));
+                written.add(writers.submit(() -> {
+                    export(file, to);
+                    return null;
+                }));
+            }
+            for (Future<Void> file : written) {
+                await(file);
+            }
+            return written.size();
+        } finally {
+            writers.shutdownNow();
+            fs.metrics().record(Metrics.Operation.EXPORT, started);
+        }
+    }
+
+    private void export(String file, Path to) throws FSException, IOException {
+        FileHandle handle = session.open(file, false);
+        try (FileChannel channel = FileChannel.open(to, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            handle.transferTo(0, handle.size(), channel);
+        }
+    }
+
+    /** The host path for a simulator path relative to {@code target}. */
+    private static Path host(Path target, String relative) throws IOException {
+        try {
+            Path path = target;
+            for (String name : relative.split("/")) {
+                if (!name.isEmpty())
+                    path = path.resolve(name);
+            }
+            return path;
+        } catch (InvalidPathException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /** Host files being read, and where they go in the tree. */
+    private static class Reading {
+        final List<String> paths;
+        final Future<ByteBuffer[]> contents;
+
+        Reading(List<String> paths, Future<ByteBuffer[]> contents) {
+            this.paths = paths;
+            this.contents = contents;
+        }
+    }
+
+    private class Importer extends SimpleFileVisitor<Path> {
+        private final Path source;
+        private final String target;
+        private final ExecutorService readers;
+        final Queue<Reading> reading = new ArrayDeque<>();
+        private List<String> paths = new ArrayList<>();
+        private List<Path> files = new ArrayList<>();
+        private long[] sizes = new long[CHUNK];
+        FSException failure;
+        long imported;
+        private long batched;
+
+        Importer(Path source, String target, ExecutorService readers) {
+            this.source = source;
+            this.target = target;
+            this.readers = readers;
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+            if (dir.equals(source))
+                return FileVisitResult.CONTINUE;
+            try {
+                session.createDirectory(path(dir));
+                return FileVisitResult.CONTINUE;
+            } catch (FSException e) {
+                failure = e;
+                return FileVisitResult.TERMINATE;
+            }
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+            if (!attributes.isRegularFile())
+                return FileVisitResult.CONTINUE;
+            sizes[files.size()] = attributes.size();
+            files.add(file);
+            paths.add(path(file));
+            if (files.size() == CHUNK)
+                submit();
+            if (reading.size() < READ_AHEAD)
+                return FileVisitResult.CONTINUE;
+            try {
+                add(reading.poll());
+                return FileVisitResult.CONTINUE;
+            } catch (FSException e) {
+                failure = e;
+                return FileVisitResult.TERMINATE;
+            }
+        }
+
+        /** Hands the files visited since the last chunk to a reader. */
+        void submit() {
+            if (files.isEmpty())
+                return;
+            List<Path> chunk = files;
+            long[] chunkSizes = sizes;
+            reading.add(new Reading(paths, readers.submit(() -> {
+                ByteBuffer[] contents = new ByteBuffer[chunk.size()];
+                for (int i = 0; i < contents.length; i++) {
+                    contents[i] = read(chunk.get(i), chunkSizes[i]);
+                }
+                return contents;
+            })));
+            files = new ArrayList<>();
+            paths = new ArrayList<>();
+            sizes = new long[CHUNK];
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+            throw e;
+        }
+
+        /** Waits for a chunk of files to be read and adds them to the tree. */
+        void add(Reading chunk) throws FSException, IOException {
+            ByteBuffer[] contents = await(chunk.contents);
+            for (int i = 0; i < contents.length; i++) {
+                String path = chunk.paths.get(i);
+                session.createFile(path);
+                batched += contents[i].remaining();
+                if (contents[i].hasRemaining())
+                    session.open(path, false).write(0, contents[i]);
+                imported++;
+                if (batched >= Journal.MAX_UNFLUSHED) {
+                    batched = 0;
+                    try {
+                        fs.endBatch();
+                    } finally {
+                        fs.beginBatch();
+                    }
+                }
+            }
+        }
+
+        private String path(Path host) {
+            Path relative = host.equals(source) ? host.getFileName() : source.relativize(host);
+            StringBuilder path = new StringBuilder(target);
+            for (Path name : relative) {
+                if (path.length() > target.length())
+                    path.append('/');
+                path.append(name);
+            }
+            return path.toString();
+        }
+    }
+
+    private static ByteBuffer read(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(String.format("'%s' is too large to import.", file));
+            if (size >= MAP_THRESHOLD)
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            ByteBuffer content = ByteBuffer.allocate((int) size);
+            while (content.hasRemaining()) {
+                if (channel.read(content) < 0)
+                    break;
+            }
+            return content.flip();
+        }
+    }
+
+    /** The result of a worker's task, rethrowing what it threw. */
+    private static <T> T await(Future<T> task) throws FSException, IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof FSException)
+                throw (FSException) cause;
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private static Thread worker(Runnable task) {
+        Thread t = new Thread(task, "fs-transfer");
+        t.setDaemon(true);
+        return t;
+    }
+}
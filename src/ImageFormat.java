@@ -0,0 +1,622 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Binary format of the checkpoint image. The children of each directory are
+ * stored together as a listing, so a directory can be read on its own the
+ * first time it is used:
+ *
+ * <pre>
+ * int magic, byte version
+ * listing*     children before their parents
+ * listing      holding the root alone
+ * listing      holding the root of each snapshot
+ * block        lazy copies: varint count, (utf copy path, utf source path)*
+ * block        inodes in use: varint count, varint gaps between them
+ * long top, long snapshots, long copies, long inodes, long generation,
+ * int crc32 of these
+ * </pre>
+ *
+ * A listing or block is its length, its bytes and their CRC32. A listing is a
+ * count of entries; an entry is its kind, name, creation time and the time
+ * since then of its last write. A file adds its extension and inode, a
+ * directory the offset of its own listing. A lazy copy adds nothing: the copy
+ * block names its source, by a path that starts with ':' and the name of
+ * the snapshot for one inside a snapshot. Names and extensions go through a string pool per
+ * listing: the first use of a string carries its text and later uses refer to
+ * it by number.
+ *
+ * Writing walks the tree with an explicit stack, so the depth of the tree is
+ * not limited by the thread's stack. Directories that were never paged in are
+ * carried over listing by listing from the image they were read from.
+ *
+ * Version 2 images, which have no snapshots and no snapshot listing in their
+ * footer, are still read.
+ */
+public class ImageFormat {
+    public static final int MAGIC = 0x46534931; // "FSI1"
+    private static final byte VERSION = 3;
+    private static final int FOOTER_SIZE = 5 * Long.BYTES + Integer.BYTES;
+
+    // Version 2 had no snapshots, and no offset of their listing.
+    private static final byte VERSION_2 = 2;
+    private static final int VERSION_2_FOOTER_SIZE = 4 * Long.BYTES + Integer.BYTES;
+
+    // Version 1 stored every node in one depth-first sequence ending in END.
+    private static final byte VERSION_1 = 1;
+    private static final byte END = 0;
+
+    private static final byte DIRECTORY = 1;
+    private static final byte FILE = 2;
+    private static final byte COPY = 3;
+
+    // String references: 0 is null, 1 introduces a new string, n + 2 names
+    // the n-th string of the pool.
+    private static final int NULL_STRING = 0;
+    private static final int NEW_STRING = 1;
+
+    /**
+     * A saved image. Listings are read from a buffer: the encoded bytes until
+     * they are written out, then a read-only mapping of the file.
+     */
+    public static class Image {
+        private volatile ByteBuffer data;
+        private final long generation;
+        private final long top;
+        private final long snapshots;
+        private final long copies;
+        private final long inodes;
+
+        private Image(ByteBuffer data, long generation, long top, long snapshots, long copies, long inodes) {
+            this.data = data;
+            this.generation = generation;
+            this.top = top;
+            this.snapshots = snapshots;
+            this.copies = copies;
+            this.inodes = inodes;
+        }
+
+        /** Maps an image file and checks its header and footer. */
+        public static Image open(Path file) throws IOException {
+            ByteBuffer data;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (data.limit() < Integer.BYTES + 1 || data.getInt(0) != MAGIC)
+                throw new IOException("Not a file system image.");
+            byte version = data.get(Integer.BYTES);
+            if (version != VERSION && version != VERSION_2)
+                throw new IOException("Unsupported image version " + version + ".");
+
+            int footerSize = version == VERSION ? FOOTER_SIZE : VERSION_2_FOOTER_SIZE;
+            int longs = footerSize / Long.BYTES;
+            if (data.limit() < Integer.BYTES + 1 + footerSize)
+                throw new IOException("Not a file system image.");
+            int at = data.limit() - footerSize;
+            CRC32 crc = new CRC32();
+            crc.update(data.duplicate().position(at).limit(at + longs * Long.BYTES));
+            if (data.getInt(at + longs * Long.BYTES) != (int) crc.getValue())
+                throw new IOException("Corrupt image: checksum mismatch.");
+
+            long[] footer = new long[longs];
+            for (int i = 0; i < longs; i++) {
+                footer[i] = data.getLong(at + i * Long.BYTES);
+            }
+            if (version == VERSION_2)
+                return new Image(data, footer[3], footer[0], -1, footer[1], footer[2]);
+            return new Image(data, footer[4], footer[0], footer[1], footer[2], footer[3]);
+        }
+
+        public long generation() {
+            return generation;
+        }
+
+        public long size() {
+            return data.limit();
+        }
+
+        /** The root directory, none of its children read yet. */
+        public FSDirectory root() throws IOException {
+            List<Entry> entries = entries(top);
+            if (entries.size() != 1 || entries.get(0).kind != DIRECTORY)
+                throw new IOException("Corrupt image: no root directory.");
+            Entry entry = entries.get(0);
+            FSDirectory root = FSDirectory.stored(entry.name, null, new Listing(this, entry.listing));
+            root.setTimes(entry.createdAt, entry.updatedAt);
+            return root;
+        }
+
+        /**
+         * The roots of the snapshots, in the order they were taken, none of
+         * their children read yet.
+         */
+        public List<FSDirectory> snapshots() throws IOException {
+            if (snapshots < 0)
+                return new ArrayList<>();
+            List<FSDirectory> roots = new ArrayList<>();
+            for (FSNode node : new Listing(this, snapshots).read(null)) {
+                if (!(node instanceof FSDirectory))
+                    throw new IOException("Corrupt image: snapshot '" + node.name() + "' is not a directory.");
+                roots.add((FSDirectory) node);
+            }
+            return roots;
+        }
+
+        /** Lazy copies, as the absolute paths of each copy and its source. */
+        public List<String[]> copies() throws IOException {
+            DataInputStream in = block(copies);
+            long count = readVarLong(in);
+            List<String[]> pairs = new ArrayList<>();
+            for (long i = 0; i < count; i++) {
+                pairs.add(new String[] { in.readUTF(), in.readUTF() });
+            }
+            return pairs;
+        }
+
+        /** Every inode a file in the image refers to. */
+        public List<Integer> inodes() throws IOException {
+            DataInputStream in = block(inodes);
+            long count = readVarLong(in);
+            List<Integer> inodes = new ArrayList<>();
+            int inode = 0;
+            for (long i = 0; i < count; i++) {
+                inode += (int) readVarLong(in);
+                inodes.add(inode);
+            }
+            return inodes;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            Channels.newChannel(out).write(data.duplicate().clear());
+        }
+
+        /** Switches reads to the file the image has been written to. */
+        public void map(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+
+        private DataInputStream block(long offset) throws IOException {
+            ByteBuffer buffer = data;
+            if (offset < 0 || offset > buffer.limit() - 2 * Integer.BYTES)
+                throw new IOException("Corrupt image: bad offset " + offset + ".");
+            int at = (int) offset;
+            int length = buffer.getInt(at);
+            if (length < 0 || length > buffer.limit() - at - 2 * Integer.BYTES)
+                throw new IOException("Corrupt image: bad length at " + offset + ".");
+
+            byte[] bytes = new byte[length];
+            buffer.get(at + Integer.BYTES, bytes);
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            if (buffer.getInt(at + Integer.BYTES + length) != (int) crc.getValue())
+                throw new IOException("Corrupt image: checksum mismatch at " + offset + ".");
+            return new DataInputStream(new ByteArrayInputStream(bytes));
+        }
+
+        private List<Entry> entries(long offset) throws IOException {
+            DataInputStream in = block(offset);
+            long count = readVarLong(in);
+            List<String> pool = new ArrayList<>();
+            List<Entry> entries = new ArrayList<>((int) Math.min(count, 1 << 16));
+            for (long i = 0; i < count; i++) {
+                Entry entry = new Entry();
+                entry.kind = in.readByte();
+                entry.name = readString(in, pool);
+                entry.createdAt = readVarLong(in);
+                entry.updatedAt = entry.createdAt + unZigZag(readVarLong(in));
+                if (entry.kind == FILE) {
+                    entry.extension = readString(in, pool);
+                    entry.inode = (int) readVarLong(in);
+                } else if (entry.kind == DIRECTORY) {
+                    entry.listing = readVarLong(in);
+                } else if (entry.kind != COPY) {
+                    throw new IOException("Corrupt image: unknown entry kind " + entry.kind + ".");
+                }
+                entry.image = this;
+                entries.add(entry);
+            }
+            return entries;
+        }
+    }
+
+    /** Where the children of a directory are stored. */
+    public static final class Listing {
+        private final Image image;
+        private final long offset;
+
+        private Listing(Image image, long offset) {
+            this.image = image;
+            this.offset = offset;
+        }
+
+        /**
+         * Reads the children of {@code dir}. Subdirectories come back with
+         * their own children still in the image; lazy copies come back empty
+         * and are linked to their sources from {@link Image#copies}.
+         */
+        public List<FSNode> read(FSDirectory dir) throws IOException {
+            List<Entry> entries = image.entries(offset);
+            List<FSNode> nodes = new ArrayList<>(entries.size());
+            for (Entry entry : entries) {
+                FSNode node;
+                if (entry.kind == FILE) {
+                    FSFile file = new FSFile(entry.name, dir);
+                    file.setInode(entry.inode);
+                    node = file;
+                } else if (entry.kind == DIRECTORY) {
+                    node = FSDirectory.stored(entry.name, dir, new Listing(image, entry.listing));
+                } else {
+                    node = new FSDirectory(entry.name, dir);
+                }
+                node.setTimes(entry.createdAt, entry.updatedAt);
+                nodes.add(node);
+            }
+            return nodes;
+        }
+    }
+
+    private static class Entry {
+        byte kind;
+        String name;
+        String extension;
+        long createdAt;
+        long updatedAt;
+        int inode;
+        // A subdirectory is either in memory or a listing in an image.
+        FSDirectory dir;
+        Image image;
+        long listing;
+        long written;
+    }
+
+    /** A listing being written, with its entries still to be visited. */
+    private static class Frame {
+        final Entry owner;
+        final List<Entry> entries;
+        int next;
+
+        Frame(Entry owner, List<Entry> entries) {
+            this.owner = owner;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Writes the tree under {@code root} and the snapshots. The caller holds
+     * off mutations; lazy copies are not expanded meanwhile. Every directory
+     * written then reads from the new image: its listing there matches it.
+     */
+    public static Image write(FSDirectory root, List<FSDirectory> snapshots, long generation) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+
+        List<String[]> copies = new ArrayList<>();
+        List<Integer> inodes = new ArrayList<>();
+        Map<FSDirectory, Long> written = new IdentityHashMap<>();
+        long top;
+        long snapshotsOffset;
+
+        synchronized (FSDirectory.COPIES) {
+            top = writeTree(out, Collections.singletonList(describe(root)), copies, inodes, written);
+            List<Entry> roots = new ArrayList<>(snapshots.size());
+            for (FSDirectory snapshot : snapshots) {
+                roots.add(describe(snapshot));
+            }
+            snapshotsOffset = writeTree(out, roots, copies, inodes, written);
+        }
+
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        DataOutputStream blockOut = new DataOutputStream(block);
+        writeVarLong(blockOut, copies.size());
+        for (String[] pair : copies) {
+            blockOut.writeUTF(pair[0]);
+            blockOut.writeUTF(pair[1]);
+        }
+        long copiesOffset = writeBlock(out, block.toByteArray());
+
+        block.reset();
+        Collections.sort(inodes);
+        writeVarLong(blockOut, inodes.size());
+        int previous = 0;
+        for (int inode : inodes) {
+            writeVarLong(blockOut, inode - previous);
+            previous = inode;
+        }
+        long inodesOffset = writeBlock(out, block.toByteArray());
+
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+        footer.putLong(top).putLong(snapshotsOffset).putLong(copiesOffset).putLong(inodesOffset).putLong(generation);
+        CRC32 crc = new CRC32();
+        crc.update(footer.array(), 0, 5 * Long.BYTES);
+        footer.putInt((int) crc.getValue());
+        out.write(footer.array());
+        out.flush();
+
+        Image image = new Image(ByteBuffer.wrap(bytes.toByteArray()), generation, top, snapshotsOffset,
+                copiesOffset, inodesOffset);
+        written.forEach((dir, offset) -> dir.setStored(new Listing(image, offset)));
+        return image;
+    }
+
+    /**
+     * Writes the listings under {@code top}, then {@code top} itself as a
+     * listing, and returns the offset of that one.
+     */
+    private static long writeTree(DataOutputStream out, List<Entry> top, List<String[]> copies,
+            List<Integer> inodes, Map<FSDirectory, Long> written) throws IOException {
+        Deque<Frame> pending = new ArrayDeque<>();
+        pending.push(new Frame(null, top));
+        while (true) {
+            Frame frame = pending.peek();
+            if (frame.next < frame.entries.size()) {
+                Entry entry = frame.entries.get(frame.next++);
+                if (entry.kind == DIRECTORY) {
+                    pending.push(new Frame(entry, listing(entry)));
+                } else if (entry.kind == FILE) {
+                    if (entry.inode != 0)
+                        inodes.add(entry.inode);
+                } else if (entry.dir != null) {
+                    copies.add(new String[] { path(entry.dir), path(entry.dir.contentSource()) });
+                } else {
+                    // Copies are linked at boot, so their parents are never left unread.
+                    throw new IOException("Corrupt image: lazy copy '" + entry.name + "' in an unread listing.");
+                }
+                continue;
+            }
+
+            pending.pop();
+            long offset = writeListing(out, frame.entries);
+            if (frame.owner == null)
+                return offset;
+            frame.owner.written = offset;
+            if (frame.owner.dir != null)
+                written.put(frame.owner.dir, offset);
+        }
+    }
+
+    private static Entry describe(FSNode node) {
+        Entry entry = new Entry();
+        entry.name = node.name();
+        entry.createdAt = node.creationTime();
+        entry.updatedAt = node.lastModified();
+        if (node instanceof FSFile) {
+            FSFile file = (FSFile) node;
+            entry.kind = FILE;
+            entry.extension = file.getExtension();
+            entry.inode = file.inode();
+        } else {
+            FSDirectory dir = (FSDirectory) node;
+            entry.kind = dir.isLazyCopy() ? COPY : DIRECTORY;
+            entry.dir = dir;
+        }
+        return entry;
+    }
+
+    /** The entries of a directory, from memory or from its stored listing. */
+    private static List<Entry> listing(Entry entry) throws IOException {
+        if (entry.dir == null)
+            return entry.image.entries(entry.listing);
+        if (!entry.dir.isLoaded()) {
+            Listing stored = entry.dir.stored();
+            return stored.image.entries(stored.offset);
+        }
+
+        List<FSNode> children = entry.dir.children();
+        List<Entry> entries = new ArrayList<>(children.size());
+        for (FSNode child : children) {
+            entries.add(describe(child));
+        }
+        return entries;
+    }
+
+    private static long writeListing(DataOutputStream out, List<Entry> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream listing = new DataOutputStream(bytes);
+        Map<String, Integer> pool = new HashMap<>();
+        writeVarLong(listing, entries.size());
+        for (Entry entry : entries) {
+            listing.writeByte(entry.kind);
+            writeString(listing, pool, entry.name);
+            writeVarLong(listing, entry.createdAt);
+            writeVarLong(listing, zigZag(entry.updatedAt - entry.createdAt));
+            if (entry.kind == FILE) {
+                writeString(listing, pool, entry.extension);
+                writeVarLong(listing, entry.inode);
+            } else if (entry.kind == DIRECTORY) {
+                writeVarLong(listing, entry.written);
+            }
+        }
+        return writeBlock(out, bytes.toByteArray());
+    }
+
+    private static long writeBlock(DataOutputStream out, byte[] bytes) throws IOException {
+        long offset = out.size();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeInt((int) crc.getValue());
+        return offset;
+    }
+
+    private static String path(FSDirectory dir) {
+        StringBuilder path = new StringBuilder();
+        for (FSNode node = dir; node.parent() != null; node = node.parent()) {
+            path.insert(0, "/" + node.name());
+        }
+        FSDirectory snapshot = dir.snapshotRoot();
+        if (snapshot != null)
+            return ":" + snapshot.name() + path;
+        return path.length() == 0 ? "/" : path.toString();
+    }
+
+    /** A version 1 image, read whole. */
+    public static class Version1 {
+        public final FSDirectory root;
+        public final long generation;
+
+        private Version1(FSDirectory root, long generation) {
+            this.root = root;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Reads a version 1 image, checking its checksum. Such images are
+     * rewritten in the current format once loaded.
+     */
+    public static Version1 readVersion1(InputStream stream) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(stream, new CRC32());
+        DataInputStream in = new DataInputStream(checked);
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a file system image.");
+        byte version = in.readByte();
+        if (version != VERSION_1)
+            throw new IOException("Unsupported image version " + version + ".");
+        long generation = in.readLong();
+
+        List<String> pool = new ArrayList<>();
+        List<FSNode> nodes = new ArrayList<>();
+        FSDirectory root = null;
+        for (byte kind = in.readByte(); kind != END; kind = in.readByte()) {
+            if (kind != DIRECTORY && kind != FILE)
+                throw new IOException("Corrupt image: unknown node kind " + kind + ".");
+
+            FSDirectory parent = null;
+            if (root != null) {
+                long at = readVarLong(in);
+                if (at >= nodes.size() || !(nodes.get((int) at) instanceof FSDirectory))
+                    throw new IOException("Corrupt image: bad parent " + at + ".");
+                parent = (FSDirectory) nodes.get((int) at);
+            }
+            String name = readString(in, pool);
+            long createdAt = readVarLong(in);
+            long updatedAt = createdAt + unZigZag(readVarLong(in));
+
+            FSNode node;
+            if (kind == FILE) {
+                readString(in, pool); // the extension
+                FSFile file = new FSFile(name, parent);
+                file.setInode((int) readVarLong(in));
+                node = file;
+            } else {
+                node = new FSDirectory(name, parent);
+            }
+            node.setTimes(createdAt, updatedAt);
+
+            if (parent == null) {
+                if (!(node instanceof FSDirectory))
+                    throw new IOException("Corrupt image: the root is not a directory.");
+                root = (FSDirectory) node;
+            } else {
+                parent.addChild(node);
+            }
+            nodes.add(node);
+        }
+        if (root == null)
+            throw new IOException("Corrupt image: no root directory.");
+
+        long copies = readVarLong(in);
+        for (long i = 0; i < copies; i++) {
+            FSDirectory copy = directory(nodes, readVarLong(in));
+            copy.restoreLazyCopy(directory(nodes, readVarLong(in)));
+        }
+
+        int expected = (int) checked.getChecksum().getValue();
+        if (new DataInputStream(stream).readInt() != expected)
+            throw new IOException("Corrupt image: checksum mismatch.");
+        return new Version1(root, generation);
+    }
+
+    /** The version of an image, from its first bytes, or -1 if it is not one. */
+    public static int version(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        return in.readInt() == MAGIC ? in.readByte() : -1;
+    }
+
+    private static FSDirectory directory(List<FSNode> nodes, long index) throws IOException {
+        if (index >= nodes.size() || !(nodes.get((int) index) instanceof FSDirectory))
+            throw new IOException("Corrupt image: bad directory " + index + ".");
+        return (FSDirectory) nodes.get((int) index);
+    }
+
+    private static void writeString(DataOutputStream out, Map<String, Integer> pool, String s) throws IOException {
+        if (s == null) {
+            writeVarLong(out, NULL_STRING);
+            return;
+        }
+        Integer id = pool.get(s);
+        if (id != null) {
+            writeVarLong(out, id + 2L);
+            return;
+        }
+        pool.put(s, pool.size());
+        writeVarLong(out, NEW_STRING);
+        out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in, List<String> pool) throws IOException {
+        long ref = readVarLong(in);
+        if (ref == NULL_STRING)
+            return null;
+        if (ref == NEW_STRING) {
+            String s = in.readUTF().intern();
+            pool.add(s);
+            return s;
+        }
+        if (ref - 2 >= pool.size())
+            throw new IOException("Corrupt image: bad string " + ref + ".");
+        return pool.get((int) (ref - 2));
+    }
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Corrupt image: varint too long.");
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
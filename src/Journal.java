@@ -1,34 +1,685 @@
-import java.io.FileWriter;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
+/**
+ * Binary redo log of filesystem mutations. Every operation is written as a
+ * checksummed frame carrying its transaction id, op code, absolute path
+ * arguments and, for writes, the bytes written, deflated when that makes
+ * them smaller. A transaction becomes durable with its COMMIT frame, along
+ * with everything logged before it. At boot the log is replayed up to its
+ * last COMMIT frame; frames after that, or after a torn or corrupt one at the
+ * end of the active segment, are cut off.
+ *
+ * Commits are grouped: frames are buffered in memory and the first committer
+ * to find the log idle writes out everything buffered so far with a single
+ * {@link FileChannel#force}, so concurrent commits share one sync. How long a
+ * commit waits is its {@link Durability}: SYNC and GROUP return once the
+ * commit is on disk, GROUP gathering commits for an interval first, and ASYNC
+ * returns at once, leaving a background flusher to write the log out every
+ * interval. ASYNC commits only wait when more than {@link #MAX_UNFLUSHED}
+ * bytes are still in memory, so a slow disk holds writers back instead of the
+ * buffer growing without bound. {@link #sync()} waits for everything
+ * committed so far.
+ *
+ * The log is split in generations: the active segment is written to
+ * {@code <base>}, and {@link #rotate()} seals it as {@code <base>.<gen>} so a
+ * checkpoint covering that generation can be written in the background. Sealed
+ * segments are removed once their checkpoint is on disk.
+ */
 public class Journal {
-    private static final String LOG_FILE = ".journal";
-    private PrintWriter writer;
+    public static final byte MKDIR = 1;
+    public static final byte TOUCH = 2;
+    public static final byte MOVE = 3;
+    public static final byte COPY = 4;
+    public static final byte DELETE = 5;
+    public static final byte WRITE = 6;
+    public static final byte TRUNCATE = 7;
+    public static final byte SNAPSHOT = 8;
+    public static final byte DELETE_SNAPSHOT = 9;
+    public static final byte RESTORE = 10;
 
-    public Journal() {
+    /** Largest payload a single record may carry; callers split bigger ones. */
+    public static final int MAX_PAYLOAD = 256 * 1024;
+
+    private static final byte FRAME_OP = 1;
+    private static final byte FRAME_COMMIT = 2;
+    // An operation whose payload is deflated: its length, then the deflated bytes.
+    private static final byte FRAME_OP_DEFLATED = 3;
+    // Shorter payloads rarely shrink enough to pay for deflating them.
+    private static final int MIN_DEFLATED_PAYLOAD = 256;
+
+    private static final int MAGIC = 0x46534A32; // "FSJ2"
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES;
+    private static final int MAX_FRAME = 1 << 20;
+    /** Log bytes an ASYNC journal holds in memory before commits wait. */
+    public static final long MAX_UNFLUSHED = 8L * 1024 * 1024;
+
+    public enum Durability {
+        /** A commit returns once it is on disk; concurrent commits share a sync. */
+        SYNC,
+        /** As SYNC, but the sync waits an interval to gather more commits. */
+        GROUP,
+        /** A commit returns at once; the log is written out every interval. */
+        ASYNC
+    }
+
+    private final String baseName;
+    private final Durability durability;
+    private final long flushMillis;
+    private final Metrics metrics;
+    private Thread flusher;
+    private volatile boolean closing;
+    private FileChannel channel;
+    private long generation;
+    private long size;
+    private int pending;
+    private long nextTransaction = 1;
+
+    private final Object lock = new Object();
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    // Positions in the log as a whole rather than in the active segment, so a
+    // commit waiting across a rotation still compares against its own frame.
+    private long bufferedUpTo;
+    private long durableUpTo;
+    private boolean flushing;
+    private IOException flushError;
+
+    private final ThreadLocal<Transaction> current = new ThreadLocal<>();
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal
+            .withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+
+    public static class Record {
+        public final byte op;
+        public final String[] args;
+        public final byte[] payload;
+
+        Record(byte op, String[] args, byte[] payload) {
+            this.op = op;
+            this.args = args;
+            this.payload = payload;
+        }
+    }
+
+    private static class Transaction {
+        final long id;
+        int depth = 1;
+        boolean written;
+
+        Transaction(long id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * @param groupCommitMillis how long a sync waits to gather commits; 0
+     *                          syncs as soon as the log is idle
+     */
+    public Journal(String baseName, long groupCommitMillis) {
+        this(baseName, groupCommitMillis > 0 ? Durability.GROUP : Durability.SYNC, groupCommitMillis,
+                new Metrics());
+    }
+
+    /**
+     * @param flushMillis for GROUP, how long a sync waits to gather commits;
+     *                    for ASYNC, how often the log is written out
+     * @param metrics     records the time and size of each sync
+     */
+    public Journal(String baseName, Durability durability, long flushMillis, Metrics metrics) {
+        if (durability == Durability.ASYNC && flushMillis <= 0)
+            throw new IllegalArgumentException("An asynchronous journal needs a flush interval.");
+        this.baseName = baseName;
+        this.durability = durability;
+        this.flushMillis = flushMillis;
+        this.metrics = metrics;
+    }
+
+    public Durability durability() {
+        return durability;
+    }
+
+    /**
+     * Replays the log newer than the given checkpoint generation, up to its
+     * last COMMIT frame, and opens the active segment for appending. What
+     * follows that frame is cut off. A sealed segment that is corrupt fails the
+     * replay. An exception from {@code apply} stops the replay there and
+     * leaves the journal as it was on disk.
+     */
+    public void open(long checkpointGeneration, Consumer<Record> apply) throws IOException {
+        List<Record> records = new ArrayList<>();
+        List<Segment> segments = new ArrayList<>();
+        for (long gen : sealedGenerations()) {
+            if (gen > checkpointGeneration) {
+                // Sealed segments are complete on disk, so a bad frame in one
+                // is damage, and the segments after it can't be replayed.
+                Segment sealed = read(segment(gen), records);
+                if (sealed.valid != sealed.file.length())
+                    throw new IOException("Journal segment " + gen + " is corrupt at byte " + sealed.valid + ".");
+                segments.add(sealed);
+            } else {
+                segment(gen).delete();
+            }
+        }
+        File active = new File(baseName);
+        Segment last = active.exists() ? read(active, records) : null;
+        if (last != null)
+            segments.add(last);
+
+        // A change is in the tree, where other sessions see it and build on
+        // it, before its own transaction commits, and the tree has no
+        // rollback. So every record before the last COMMIT frame is replayed,
+        // in log order, whichever transaction it belongs to: a transaction's
+        // records come after those of the changes it saw. Records after that
+        // frame were never acknowledged, and no one acknowledged saw them.
+        int committed = -1;
+        for (int i = 0; i < segments.size(); i++) {
+            if (segments.get(i).committed >= 0)
+                committed = i;
+        }
+        int replayed = committed < 0 ? 0 : segments.get(committed).recordsCommitted;
+        for (Record record : records.subList(0, replayed)) {
+            apply.accept(record);
+        }
+        if (replayed < records.size())
+            System.err.println("Journal: discarded " + (records.size() - replayed) + " uncommitted record(s).");
+
+        // Cut off, so a later commit doesn't make them look committed.
+        for (int i = 0; i < segments.size(); i++) {
+            Segment cut = segments.get(i);
+            if (i < committed || cut.valid < 0)
+                continue;
+            cut.valid = i == committed ? cut.committed : HEADER_SIZE;
+            if (cut != last)
+                truncate(cut.file, cut.valid);
+        }
+
+        if (last == null || last.valid < 0) {
+            startSegment(Math.max(checkpointGeneration + 1, lastSealedGeneration() + 1));
+        } else {
+            channel = FileChannel.open(active.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.truncate(last.valid);
+            channel.position(last.valid);
+            ByteBuffer header = ByteBuffer.allocate(Long.BYTES);
+            channel.read(header, Integer.BYTES);
+            generation = header.flip().getLong();
+            size = last.valid;
+            bufferedUpTo = last.valid;
+            durableUpTo = last.valid;
+        }
+
+        if (durability == Durability.ASYNC) {
+            flusher = new Thread(this::flushPeriodically, "fs-journal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    /**
+     * Writes out what ASYNC commits left in memory, every flush interval,
+     * until the journal is closed. Not interrupted to stop: an interrupt
+     * would close the channel under a sync.
+     */
+    private void flushPeriodically() {
+        while (!closing) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(flushMillis));
+            if (unflushed() == 0)
+                continue;
+            try {
+                sync();
+            } catch (IOException e) {
+                System.err.println("Error while flushing journal." + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Starts a transaction bound to the calling thread. Nested calls join the
+     * enclosing transaction.
+     */
+    public void begin() {
+        Transaction tx = current.get();
+        if (tx != null) {
+            tx.depth++;
+            return;
+        }
+        synchronized (lock) {
+            current.set(new Transaction(nextTransaction++));
+        }
+    }
+
+    public void record(byte op, String... args) throws IOException {
+        record(op, null, args);
+    }
+
+    /**
+     * Records an operation that carries data, such as the bytes of a write:
+     * the remaining bytes of {@code payload}, read where they are, as in a
+     * mapped file, and not consumed.
+     */
+    public void record(byte op, ByteBuffer payload, String... args) throws IOException {
+        if (payload != null && payload.remaining() > MAX_PAYLOAD)
+            throw new IllegalArgumentException("Journal payload too large.");
+
+        Transaction tx = current.get();
+        if (tx == null)
+            throw new IllegalStateException("No transaction in progress.");
+
+        byte[] deflated = payload != null && payload.remaining() >= MIN_DEFLATED_PAYLOAD
+                ? deflate(payload.duplicate())
+                : null;
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(head);
+        out.writeLong(tx.id);
+        out.writeByte(deflated != null ? FRAME_OP_DEFLATED : FRAME_OP);
+        out.writeByte(op);
+        out.writeByte(args.length);
+        for (String arg : args) {
+            out.writeUTF(arg);
+        }
+        if (payload != null)
+            out.writeInt(payload.remaining());
+        append(head.toByteArray(), deflated != null ? ByteBuffer.wrap(deflated) : payload);
+        tx.written = true;
+    }
+
+    /**
+     * Ends the calling thread's transaction. The outermost commit writes the
+     * COMMIT frame and returns once it has been forced to disk.
+     */
+    public void commit() throws IOException {
+        Transaction tx = current.get();
+        if (tx == null || --tx.depth > 0)
+            return;
+        current.remove();
+        if (!tx.written)
+            return;
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeLong(tx.id);
+        out.writeByte(FRAME_COMMIT);
+        long offset = append(body.toByteArray(), null);
+        if (durability != Durability.ASYNC || unflushed() > MAX_UNFLUSHED)
+            awaitDurable(offset);
+    }
+
+    /** The payload deflated, or null if that doesn't make it smaller. */
+    private static byte[] deflate(ByteBuffer payload) {
+        int size = payload.remaining();
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(payload);
+        deflater.finish();
+        byte[] out = new byte[size];
+        int length = 0;
+        while (!deflater.finished() && length < out.length) {
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        return deflater.finished() && length < size ? Arrays.copyOf(out, length) : null;
+    }
+
+    private static byte[] inflate(byte[] deflated, int length) throws IOException {
+        Inflater inflater = new Inflater();
         try {
-            FileWriter fw = new FileWriter(LOG_FILE, true);
-            writer = new PrintWriter(fw, true);
+            inflater.setInput(deflated);
+            byte[] payload = new byte[length];
+            int read = 0;
+            while (read < length && !inflater.finished()) {
+                int n = inflater.inflate(payload, read, length - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                read += n;
+            }
+            if (read != length)
+                throw new IOException("Corrupt deflated journal payload.");
+            return payload;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflated journal payload.", e);
+        } finally {
+            inflater.end();
+        }
+    }
 
-        } catch (IOException e) {
-            System.err.println("Error: Couldn't initiate journaling.");
-            e.printStackTrace();
+    /** Waits until everything committed so far is on disk. */
+    public void sync() throws IOException {
+        long offset;
+        synchronized (lock) {
+            offset = bufferedUpTo;
+        }
+        awaitDurable(offset);
+    }
+
+    private long unflushed() {
+        synchronized (lock) {
+            return bufferedUpTo - durableUpTo;
         }
     }
 
-    public void log(String operation) {
-        if (writer != null) {
-            String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-            writer.println(String.format("[%s] %s", timestamp, operation));
+    /** The error that stopped the log being written, or null. No commit succeeds after one. */
+    public IOException failure() {
+        synchronized (lock) {
+            return flushError;
+        }
+    }
+
+    public boolean inTransaction() {
+        return current.get() != null;
+    }
+
+    /** Bytes written to the active segment, used to decide when to compact. */
+    public long size() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+
+    public int pending() {
+        synchronized (lock) {
+            return pending;
+        }
+    }
+
+    public long generation() {
+        return generation;
+    }
+
+    /**
+     * Seals the active segment and starts a new one. Returns the sealed
+     * generation, which a checkpoint taken right now covers. Must be called
+     * between transactions.
+     */
+    public long rotate() throws IOException {
+        synchronized (lock) {
+            // Commit frames may still be buffered; they belong to the sealed
+            // segment, and the flush in progress must not see it closed.
+            while (flushing) {
+                waitForFlush(0);
+            }
+            if (flushError != null)
+                throw flushError;
+            if (buffer.size() > 0) {
+                try {
+                    writeAndForce(buffer.toByteArray());
+                } catch (IOException e) {
+                    flushError = e;
+                    throw e;
+                }
+                buffer.reset();
+                durableUpTo = bufferedUpTo;
+                lock.notifyAll();
+            }
+
+            long sealed = generation;
+            channel.close();
+            File active = new File(baseName);
+            if (!active.renameTo(segment(sealed)))
+                throw new IOException("Couldn't seal journal segment " + sealed + ".");
+            startSegment(sealed + 1);
+            return sealed;
+        }
+    }
+
+    /** Drops sealed segments that are covered by a checkpoint. */
+    public void discard(long upToGeneration) {
+        for (long gen : sealedGenerations()) {
+            if (gen <= upToGeneration) {
+                segment(gen).delete();
+            }
         }
     }
 
     public void close() {
-        if (writer != null) {
-            writer.close();
+        if (channel == null)
+            return;
+        closing = true;
+        if (flusher != null) {
+            LockSupport.unpark(flusher);
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            sync();
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error while closing journal." + e.getMessage());
+        }
+    }
+
+    /** Buffers a frame whose body is {@code head} followed by {@code data}, if any. */
+    private long append(byte[] head, ByteBuffer data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(head);
+        int length = head.length;
+        if (data != null) {
+            crc.update(data.duplicate());
+            length += data.remaining();
+        }
+        synchronized (lock) {
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeInt(length);
+            out.writeInt((int) crc.getValue());
+            out.write(head);
+            if (data != null && data.hasArray()) {
+                out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            } else if (data != null) {
+                Channels.newChannel(out).write(data.duplicate());
+            }
+            bufferedUpTo += 2 * Integer.BYTES + length;
+            size += 2 * Integer.BYTES + length;
+            pending++;
+            return bufferedUpTo;
+        }
+    }
+
+    /**
+     * Blocks until the log is durable up to the given offset. Whoever finds no
+     * flush in progress becomes the leader and syncs on behalf of everyone
+     * waiting; the sync itself runs outside the lock so others keep appending
+     * to the next batch meanwhile.
+     */
+    private void awaitDurable(long offset) throws IOException {
+        while (true) {
+            byte[] batch;
+            long batchEnd;
+            synchronized (lock) {
+                while (durableUpTo < offset && flushing) {
+                    waitForFlush(0);
+                }
+                if (flushError != null)
+                    throw flushError;
+                if (durableUpTo >= offset)
+                    return;
+
+                flushing = true;
+                if (durability == Durability.GROUP)
+                    waitForFlush(flushMillis);
+                batch = buffer.toByteArray();
+                batchEnd = bufferedUpTo;
+                buffer.reset();
+            }
+
+            IOException error = null;
+            try {
+                writeAndForce(batch);
+            } catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (lock) {
+                flushing = false;
+                if (error == null) {
+                    durableUpTo = batchEnd;
+                } else {
+                    flushError = error;
+                }
+                lock.notifyAll();
+            }
         }
     }
+
+    private void waitForFlush(long millis) throws IOException {
+        try {
+            lock.wait(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for journal commit.");
+        }
+    }
+
+    private void writeAndForce(byte[] batch) throws IOException {
+        long started = metrics.start();
+        ByteBuffer data = ByteBuffer.wrap(batch);
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+        channel.force(false);
+        metrics.record(Metrics.Operation.JOURNAL_SYNC, started);
+        metrics.wroteJournal(batch.length);
+    }
+
+    private void startSegment(long gen) throws IOException {
+        generation = gen;
+        channel = FileChannel.open(new File(baseName).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putLong(gen).flip();
+        writeAndForce(header.array());
+        size = HEADER_SIZE;
+        pending = 0;
+    }
+
+    /** What {@link #read} found in a segment. */
+    private static class Segment {
+        final File file;
+        // The length of the valid prefix, or -1 if the header is unreadable.
+        long valid = -1;
+        // Where the last COMMIT frame ends, or -1 if there is none.
+        long committed = -1;
+        // The records read by then, in this segment and those before it.
+        int recordsCommitted;
+
+        Segment(File file) {
+            this.file = file;
+        }
+    }
+
+    /** Reads the frames of one segment, adding its operation records to {@code records}. */
+    private Segment read(File file, List<Record> records) throws IOException {
+        Segment segment = new Segment(file);
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            DataInputStream data = new DataInputStream(new BufferedInputStream(Channels.newInputStream(in)));
+            try {
+                if (data.readInt() != MAGIC)
+                    return segment;
+                data.readLong();
+            } catch (EOFException e) {
+                return segment;
+            }
+
+            segment.valid = HEADER_SIZE;
+            while (true) {
+                byte[] body;
+                try {
+                    int length = data.readInt();
+                    int checksum = data.readInt();
+                    if (length <= 0 || length > MAX_FRAME)
+                        return segment;
+                    body = new byte[length];
+                    data.readFully(body);
+                    CRC32 crc = new CRC32();
+                    crc.update(body);
+                    if ((int) crc.getValue() != checksum)
+                        return segment;
+                } catch (EOFException e) {
+                    return segment;
+                }
+
+                DataInputStream frame = new DataInputStream(new ByteArrayInputStream(body));
+                long tx = frame.readLong();
+                nextTransaction = Math.max(nextTransaction, tx + 1);
+                byte type = frame.readByte();
+                segment.valid += 2 * Integer.BYTES + body.length;
+                if (type == FRAME_COMMIT) {
+                    segment.committed = segment.valid;
+                    segment.recordsCommitted = records.size();
+                } else {
+                    byte op = frame.readByte();
+                    String[] args = new String[frame.readUnsignedByte()];
+                    for (int i = 0; i < args.length; i++) {
+                        args[i] = frame.readUTF();
+                    }
+                    byte[] payload = null;
+                    if (type == FRAME_OP_DEFLATED) {
+                        int length = frame.readInt();
+                        payload = inflate(frame.readAllBytes(), length);
+                    } else if (frame.available() > 0) {
+                        payload = new byte[frame.readInt()];
+                        frame.readFully(payload);
+                    }
+                    records.add(new Record(op, args, payload));
+                }
+            }
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            if (out.size() > length) {
+                out.truncate(length);
+                out.force(false);
+            }
+        }
+    }
+
+    private File segment(long gen) {
+        return new File(baseName + "." + gen);
+    }
+
+    private List<Long> sealedGenerations() {
+        List<Long> gens = new ArrayList<>();
+        File dir = new File(baseName).getAbsoluteFile().getParentFile();
+        String prefix = new File(baseName).getName() + ".";
+        String[] names = dir.list();
+        if (names == null)
+            return gens;
+
+        for (String name : names) {
+            if (!name.startsWith(prefix))
+                continue;
+            try {
+                gens.add(Long.parseLong(name.substring(prefix.length())));
+            } catch (NumberFormatException e) {
+            }
+        }
+        gens.sort(null);
+        return gens;
+    }
+
+    private long lastSealedGeneration() {
+        List<Long> gens = sealedGenerations();
+        return gens.isEmpty() ? -1 : gens.get(gens.size() - 1);
+    }
 }
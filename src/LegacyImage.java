@@ -0,0 +1,392 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads checkpoint images written with Java serialization by earlier versions
+ * of the simulator, so they can be migrated to {@link ImageFormat}.
+ *
+ * The node classes have changed shape since (children in a list, then an
+ * inline array and a hash index; content in a string, then on the block
+ * device) and are no longer serializable, so the stream is parsed directly
+ * into generic objects and the tree is rebuilt from whichever fields are
+ * present. Only the parts of the serialization protocol such images use are
+ * supported.
+ */
+public class LegacyImage {
+    public static final short STREAM_MAGIC = (short) 0xACED;
+
+    private static final byte TC_NULL = 0x70;
+    private static final byte TC_REFERENCE = 0x71;
+    private static final byte TC_CLASSDESC = 0x72;
+    private static final byte TC_OBJECT = 0x73;
+    private static final byte TC_STRING = 0x74;
+    private static final byte TC_ARRAY = 0x75;
+    private static final byte TC_CLASS = 0x76;
+    private static final byte TC_BLOCKDATA = 0x77;
+    private static final byte TC_ENDBLOCKDATA = 0x78;
+    private static final byte TC_RESET = 0x79;
+    private static final byte TC_BLOCKDATALONG = 0x7A;
+    private static final byte TC_LONGSTRING = 0x7C;
+    private static final byte TC_ENUM = 0x7E;
+    private static final int BASE_HANDLE = 0x7E0000;
+
+    private static final byte SC_WRITE_METHOD = 0x01;
+    private static final byte SC_SERIALIZABLE = 0x02;
+
+    private static final Object END_BLOCK = new Object();
+
+    public final FSDirectory root;
+    public final long generation;
+    /** Content of files from images that kept it in the tree, by file. */
+    public final Map<FSFile, byte[]> contents;
+
+    private LegacyImage(FSDirectory root, long generation, Map<FSFile, byte[]> contents) {
+        this.root = root;
+        this.generation = generation;
+        this.contents = contents;
+    }
+
+    private static class ClassDesc {
+        String name;
+        byte flags;
+        char[] types;
+        String[] names;
+        ClassDesc superDesc;
+    }
+
+    private static class Instance {
+        ClassDesc desc;
+        final Map<String, Object> fields = new HashMap<>();
+        // Block data (as byte[]) and objects written by custom writeObject
+        // methods, in stream order.
+        final List<Object> annotations = new ArrayList<>();
+    }
+
+    public static LegacyImage read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readShort() != STREAM_MAGIC)
+            throw new IOException("Not a serialized image.");
+        in.readShort(); // stream version
+
+        Parser parser = new Parser(in);
+        Object root = parser.readContent();
+        if (!(root instanceof Instance) || !((Instance) root).desc.name.equals("FSDirectory"))
+            throw new IOException("Serialized image holds no root directory.");
+
+        // Images written since the operation log was added end with its
+        // generation; older ones stop after the tree.
+        long generation = -1;
+        try {
+            Object trailer = parser.readContent();
+            if (trailer instanceof byte[] && ((byte[]) trailer).length == Long.BYTES)
+                generation = ByteBuffer.wrap((byte[]) trailer).getLong();
+        } catch (EOFException e) {
+        }
+
+        Map<FSFile, byte[]> contents = new IdentityHashMap<>();
+        FSDirectory tree = build((Instance) root, contents);
+        return new LegacyImage(tree, generation, contents);
+    }
+
+    /** Rebuilds the tree iteratively from the parsed objects. */
+    private static FSDirectory build(Instance rootInstance, Map<FSFile, byte[]> contents) throws IOException {
+        Map<Instance, FSDirectory> directories = new IdentityHashMap<>();
+        List<Instance> copies = new ArrayList<>();
+        FSDirectory root = null;
+
+        Deque<Object[]> pending = new ArrayDeque<>();
+        pending.push(new Object[] { rootInstance, null });
+        while (!pending.isEmpty()) {
+            Object[] entry = pending.pop();
+            Instance instance = (Instance) entry[0];
+            FSDirectory parent = (FSDirectory) entry[1];
+            String name = (String) instance.fields.get("name");
+
+            FSNode node;
+            if (instance.desc.name.equals("FSFile")) {
+                FSFile file = new FSFile(name, parent);
+                Object inode = instance.fields.get("inode");
+                if (inode != null)
+                    file.setInode((Integer) inode);
+                Object content = instance.fields.get("content");
+                if (content instanceof String && !((String) content).isEmpty())
+                    contents.put(file, ((String) content).getBytes(StandardCharsets.UTF_8));
+                node = file;
+            } else if (instance.desc.name.equals("FSDirectory")) {
+                FSDirectory dir = new FSDirectory(name, parent);
+                directories.put(instance, dir);
+                if (instance.fields.get("source") instanceof Instance)
+                    copies.add(instance);
+                List<Instance> children = children(instance);
+                for (int i = children.size() - 1; i >= 0; i--) {
+                    pending.push(new Object[] { children.get(i), dir });
+                }
+                node = dir;
+            } else {
+                throw new IOException("Unexpected class " + instance.desc.name + " in serialized image.");
+            }
+
+            node.setTimes(time(instance.fields.get("createdAt")), time(instance.fields.get("updatedAt")));
+            if (parent == null) {
+                root = (FSDirectory) node;
+            } else {
+                parent.addChild(node);
+            }
+        }
+
+        for (Instance copy : copies) {
+            FSDirectory source = directories.get((Instance) copy.fields.get("source"));
+            if (source == null)
+                throw new IOException("Source of copy '" + copy.fields.get("name") + "' is not in the tree.");
+            directories.get(copy).restoreLazyCopy(source);
+        }
+        return root;
+    }
+
+    private static List<Instance> children(Instance dir) throws IOException {
+        List<Instance> children = new ArrayList<>();
+        Object list = dir.fields.get("children");
+        Object index = dir.fields.get("index");
+        Object inline = dir.fields.get("inline");
+        if (list instanceof Instance) {
+            // ArrayList: its elements follow the size in the annotations.
+            for (Object o : ((Instance) list).annotations) {
+                if (o instanceof Instance)
+                    children.add((Instance) o);
+            }
+        } else if (index instanceof Instance) {
+            // LinkedHashMap: keys and values alternate after the sizes.
+            boolean value = false;
+            for (Object o : ((Instance) index).annotations) {
+                if (o instanceof byte[])
+                    continue;
+                if (value)
+                    children.add((Instance) o);
+                value = !value;
+            }
+        } else if (inline instanceof Object[]) {
+            Object[] array = (Object[]) inline;
+            int count = (Integer) dir.fields.getOrDefault("inlineCount", 0);
+            for (int i = 0; i < count && i < array.length; i++) {
+                children.add((Instance) array[i]);
+            }
+        }
+        return children;
+    }
+
+    private static long time(Object date) {
+        if (!(date instanceof Instance))
+            return System.currentTimeMillis();
+        // java.util.Date writes its time as a long of block data.
+        for (Object o : ((Instance) date).annotations) {
+            if (o instanceof byte[] && ((byte[]) o).length >= Long.BYTES)
+                return ByteBuffer.wrap((byte[]) o).getLong();
+        }
+        return System.currentTimeMillis();
+    }
+
+    /** Parses serialization stream elements into generic objects. */
+    private static class Parser {
+        private final DataInputStream in;
+        private final List<Object> handles = new ArrayList<>();
+
+        Parser(DataInputStream in) {
+            this.in = in;
+        }
+
+        private Object readContent() throws IOException {
+            byte tc = in.readByte();
+            switch (tc) {
+                case TC_NULL:
+                    return null;
+                case TC_REFERENCE: {
+                    int handle = in.readInt() - BASE_HANDLE;
+                    if (handle < 0 || handle >= handles.size())
+                        throw new IOException("Bad handle in serialized image.");
+                    return handles.get(handle);
+                }
+                case TC_CLASSDESC:
+                    return readClassDesc();
+                case TC_OBJECT:
+                    return readObject();
+                case TC_STRING: {
+                    String s = in.readUTF();
+                    handle(s);
+                    return s;
+                }
+                case TC_LONGSTRING: {
+                    long length = in.readLong();
+                    if (length > Integer.MAX_VALUE)
+                        throw new IOException("String too long in serialized image.");
+                    byte[] bytes = new byte[(int) length];
+                    in.readFully(bytes);
+                    String s = decodeModifiedUtf8(bytes);
+                    handle(s);
+                    return s;
+                }
+                case TC_ARRAY:
+                    return readArray();
+                case TC_CLASS: {
+                    Object desc = readContent();
+                    handle(desc);
+                    return desc;
+                }
+                case TC_ENUM: {
+                    readContent();
+                    int slot = handle(null);
+                    String constant = (String) readContent();
+                    handles.set(slot, constant);
+                    return constant;
+                }
+                case TC_BLOCKDATA: {
+                    byte[] data = new byte[in.readUnsignedByte()];
+                    in.readFully(data);
+                    return data;
+                }
+                case TC_BLOCKDATALONG: {
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    return data;
+                }
+                case TC_ENDBLOCKDATA:
+                    return END_BLOCK;
+                case TC_RESET:
+                    handles.clear();
+                    return readContent();
+                default:
+                    throw new IOException(String.format("Unsupported element 0x%02X in serialized image.", tc));
+            }
+        }
+
+        private ClassDesc readClassDesc() throws IOException {
+            ClassDesc desc = new ClassDesc();
+            desc.name = in.readUTF();
+            in.readLong(); // serialVersionUID
+            handle(desc);
+            desc.flags = in.readByte();
+
+            int count = in.readShort();
+            desc.types = new char[count];
+            desc.names = new String[count];
+            for (int i = 0; i < count; i++) {
+                desc.types[i] = (char) in.readByte();
+                desc.names[i] = in.readUTF();
+                if (desc.types[i] == 'L' || desc.types[i] == '[')
+                    readContent(); // field class name
+            }
+            readAnnotations(null);
+
+            Object superDesc = readContent();
+            desc.superDesc = superDesc instanceof ClassDesc ? (ClassDesc) superDesc : null;
+            return desc;
+        }
+
+        private Instance readObject() throws IOException {
+            Object desc = readContent();
+            if (!(desc instanceof ClassDesc))
+                throw new IOException("Object without class in serialized image.");
+
+            Instance instance = new Instance();
+            instance.desc = (ClassDesc) desc;
+            handle(instance);
+
+            // Class data runs from the topmost serializable superclass down.
+            Deque<ClassDesc> hierarchy = new ArrayDeque<>();
+            for (ClassDesc d = instance.desc; d != null; d = d.superDesc) {
+                hierarchy.push(d);
+            }
+            for (ClassDesc d : hierarchy) {
+                if ((d.flags & SC_SERIALIZABLE) == 0)
+                    throw new IOException("Unsupported class " + d.name + " in serialized image.");
+                for (int i = 0; i < d.names.length; i++) {
+                    instance.fields.put(d.names[i], readValue(d.types[i]));
+                }
+                if ((d.flags & SC_WRITE_METHOD) != 0)
+                    readAnnotations(instance.annotations);
+            }
+            return instance;
+        }
+
+        private Object readArray() throws IOException {
+            Object desc = readContent();
+            if (!(desc instanceof ClassDesc))
+                throw new IOException("Array without class in serialized image.");
+            int slot = handle(null);
+            int length = in.readInt();
+            char type = ((ClassDesc) desc).name.charAt(1);
+
+            Object[] array = new Object[length];
+            handles.set(slot, array);
+            for (int i = 0; i < length; i++) {
+                array[i] = readValue(type);
+            }
+            return array;
+        }
+
+        private Object readValue(char type) throws IOException {
+            switch (type) {
+                case 'B':
+                    return in.readByte();
+                case 'C':
+                    return in.readChar();
+                case 'D':
+                    return in.readDouble();
+                case 'F':
+                    return in.readFloat();
+                case 'I':
+                    return in.readInt();
+                case 'J':
+                    return in.readLong();
+                case 'S':
+                    return in.readShort();
+                case 'Z':
+                    return in.readBoolean();
+                case 'L':
+                case '[':
+                    return readContent();
+                default:
+                    throw new IOException("Unknown field type '" + type + "' in serialized image.");
+            }
+        }
+
+        private void readAnnotations(List<Object> into) throws IOException {
+            for (Object o = readContent(); o != END_BLOCK; o = readContent()) {
+                if (into != null)
+                    into.add(o);
+            }
+        }
+
+        private int handle(Object value) {
+            handles.add(value);
+            return handles.size() - 1;
+        }
+    }
+
+    private static String decodeModifiedUtf8(byte[] bytes) throws IOException {
+        StringBuilder s = new StringBuilder(bytes.length);
+        for (int i = 0; i < bytes.length; ) {
+            int a = bytes[i++] & 0xFF;
+            if (a < 0x80) {
+                s.append((char) a);
+            } else if ((a & 0xE0) == 0xC0 && i < bytes.length) {
+                s.append((char) (((a & 0x1F) << 6) | (bytes[i++] & 0x3F)));
+            } else if ((a & 0xF0) == 0xE0 && i + 1 < bytes.length) {
+                s.append((char) (((a & 0x0F) << 12) | ((bytes[i++] & 0x3F) << 6) | (bytes[i++] & 0x3F)));
+            } else {
+                throw new IOException("Malformed string in serialized image.");
+            }
+        }
+        return s.toString();
+    }
+}
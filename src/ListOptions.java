@@ -0,0 +1,52 @@
+/**
+ * How {@code ls} orders a directory and which page of it it shows. A page
+ * starts just past the entry named by {@code after} (from the start when it
+ * is null) and holds at most {@code limit} entries (all of them when it is 0).
+ */
+public class ListOptions {
+    public enum Sort { NONE, NAME, MTIME, SIZE }
+
+    public static final ListOptions ALL = new ListOptions(Sort.NONE, false, 0, null, false);
+
+    private final Sort sort;
+    private final boolean reverse;
+    private final int limit;
+    private final String after;
+    private final boolean color;
+
+    /**
+     * @param sort    {@link Sort#NONE} keeps the order entries were created in;
+     *                ties in the other orders are broken by name
+     * @param reverse whether to list in the opposite order
+     * @param color   whether the header is colored for a terminal
+     */
+    public ListOptions(Sort sort, boolean reverse, int limit, String after, boolean color) {
+        if (limit < 0)
+            throw new IllegalArgumentException("limit < 0");
+        this.sort = sort;
+        this.reverse = reverse;
+        this.limit = limit;
+        this.after = after;
+        this.color = color;
+    }
+
+    public Sort sort() {
+        return sort;
+    }
+
+    public boolean reverse() {
+        return reverse;
+    }
+
+    public int limit() {
+        return limit;
+    }
+
+    public String after() {
+        return after;
+    }
+
+    public boolean color() {
+        return color;
+    }
+}
@@ -0,0 +1,81 @@
+import java.util.List;
+
+/** A shard in this process: a simulator of its own. */
+public class LocalShard implements Shard {
+    private final FileSystemSimulator fs;
+
+    public LocalShard(FileSystemSimulator fs) {
+        this.fs = fs;
+    }
+
+    @Override
+    public void createDirectory(String path) throws FSException {
+        fs.createDirectory(path);
+    }
+
+    @Override
+    public void createFile(String path) throws FSException {
+        fs.createFile(path);
+    }
+
+    @Override
+    public void delete(String path) throws FSException {
+        fs.delete(path);
+    }
+
+    @Override
+    public void rename(String from, String to) throws FSException {
+        fs.rename(from, to);
+    }
+
+    @Override
+    public void copy(String from, String to, boolean recursive) throws FSException {
+        fs.copy(from, to, recursive);
+    }
+
+    @Override
+    public String type(String path) {
+        return fs.typeOf(path);
+    }
+
+    @Override
+    public byte[] read(String path) throws FSException {
+        FileHandle file = fs.open(path, false);
+        long size = file.size();
+        if (size > Integer.MAX_VALUE)
+            throw new FSException(String.format("'%s' is too large to read whole.", path));
+        return file.read(0, (int) size);
+    }
+
+    @Override
+    public void write(String path, byte[] content) throws FSException {
+        fs.beginBatch();
+        try {
+            FileHandle file = fs.open(path, true);
+            file.truncate(0);
+            file.write(0, content);
+        } finally {
+            fs.endBatch();
+        }
+    }
+
+    @Override
+    public List<Entry> list(String path) throws FSException {
+        return fs.list(path, Entry::of);
+    }
+
+    @Override
+    public long diskUsage(String path) throws FSException {
+        return fs.diskUsage(path);
+    }
+
+    @Override
+    public List<String> find(String path, boolean directories) throws FSException {
+        return fs.find(path, node -> node instanceof FSDirectory == directories);
+    }
+
+    @Override
+    public void close() {
+        fs.shutdown();
+    }
+}
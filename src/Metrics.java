@@ -0,0 +1,251 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts and latency histograms for every operation of a simulator, the bytes
+ * it wrote, and gauges read from it when asked. Recording an operation is a
+ * clock read and a few atomic adds, cheap enough to leave on. Published over
+ * JMX and printed by the shell's stats command.
+ */
+public class Metrics implements FileSystemMetricsMXBean {
+    public enum Operation {
+        MKDIR("mkdir"),
+        TOUCH("touch"),
+        OPEN("open"),
+        READ("read"),
+        WRITE("write"),
+        TRUNCATE("truncate"),
+        LIST("ls"),
+        CHANGE_DIRECTORY("cd"),
+        RENAME("mv"),
+        COPY("cp"),
+        DELETE("rm"),
+        DISK_USAGE("du"),
+        FIND("find"),
+        TREE("tree"),
+        SNAPSHOT("snapshot"),
+        RESTORE("restore"),
+        DIFF("diff"),
+        SEARCH("search"),
+        IMPORT("import"),
+        EXPORT("export"),
+        CHECKPOINT("checkpoint"),
+        CHECKPOINT_WRITE("checkpoint write"),
+        JOURNAL_SYNC("journal sync");
+
+        private final String label;
+
+        Operation(String label) {
+            this.label = label;
+        }
+
+        public String label() {
+            return label;
+        }
+    }
+
+    /** Sizes of the simulator, read when the metrics are. */
+    interface Gauges {
+        long residentNodes();
+
+        long residentDirectories();
+
+        long journalBytes();
+
+        long checkpointBytes();
+
+        long pathCacheHits();
+
+        long pathCacheMisses();
+
+        long contentBytes();
+
+        long storedContentBytes();
+    }
+
+    /** One operation's count and latencies, in microseconds. */
+    public static class OperationStats {
+        private final String name;
+        private final long count;
+        private final double mean;
+        private final double p50;
+        private final double p99;
+        private final double p999;
+        private final double max;
+
+        OperationStats(String name, LatencyHistogram latency) {
+            this.name = name;
+            this.count = latency.count();
+            this.mean = latency.mean() / 1000;
+            this.p50 = latency.percentile(50) / 1000.0;
+            this.p99 = latency.percentile(99) / 1000.0;
+            this.p999 = latency.percentile(99.9) / 1000.0;
+            this.max = latency.max() / 1000.0;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getP50() {
+            return p50;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        public double getP999() {
+            return p999;
+        }
+
+        public double getMax() {
+            return max;
+        }
+    }
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    private final LatencyHistogram resolveDepth = new LatencyHistogram();
+    private final LongAdder contentBytes = new LongAdder();
+    private final LongAdder journalBytes = new LongAdder();
+    private volatile Gauges gauges;
+
+    public Metrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    void setGauges(Gauges gauges) {
+        this.gauges = gauges;
+    }
+
+    /** The start time to pass to {@link #record}. */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    public void record(Operation operation, long start) {
+        latencies[operation.ordinal()].record(System.nanoTime() - start);
+    }
+
+    public void resolved(int segments) {
+        resolveDepth.record(segments);
+    }
+
+    public void wroteContent(long bytes) {
+        contentBytes.add(bytes);
+    }
+
+    public void wroteJournal(long bytes) {
+        journalBytes.add(bytes);
+    }
+
+    @Override
+    public List<OperationStats> getOperations() {
+        List<OperationStats> stats = new ArrayList<>();
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram latency = latencies[operation.ordinal()];
+            if (latency.count() > 0)
+                stats.add(new OperationStats(operation.label(), latency));
+        }
+        return stats;
+    }
+
+    @Override
+    public long getResidentNodes() {
+        return gauges == null ? 0 : gauges.residentNodes();
+    }
+
+    @Override
+    public long getResidentDirectories() {
+        return gauges == null ? 0 : gauges.residentDirectories();
+    }
+
+    @Override
+    public long getJournalBytes() {
+        return gauges == null ? 0 : gauges.journalBytes();
+    }
+
+    @Override
+    public long getCheckpointBytes() {
+        return gauges == null ? 0 : gauges.checkpointBytes();
+    }
+
+    @Override
+    public long getContentBytesWritten() {
+        return contentBytes.sum();
+    }
+
+    @Override
+    public long getJournalBytesWritten() {
+        return journalBytes.sum();
+    }
+
+    @Override
+    public long getPathCacheHits() {
+        return gauges == null ? 0 : gauges.pathCacheHits();
+    }
+
+    @Override
+    public long getPathCacheMisses() {
+        return gauges == null ? 0 : gauges.pathCacheMisses();
+    }
+
+    @Override
+    public long getContentBytes() {
+        return gauges == null ? 0 : gauges.contentBytes();
+    }
+
+    @Override
+    public long getStoredContentBytes() {
+        return gauges == null ? 0 : gauges.storedContentBytes();
+    }
+
+    @Override
+    public double getDedupRatio() {
+        long stored = getStoredContentBytes();
+        return stored == 0 ? 1 : (double) getContentBytes() / stored;
+    }
+
+    @Override
+    public long getResolveDepthP99() {
+        return resolveDepth.percentile(99);
+    }
+
+    /**
+     * A table of the operations run so far and the gauges, for the shell.
+     *
+     * @param color whether the header is colored for a terminal
+     */
+    public String format(boolean color) {
+        StringBuilder s = new StringBuilder();
+        String header = "Operation             Count    Mean us     p50 us     p99 us   p99.9 us     Max us\n";
+        s.append(color ? Color.GREEN + header + Color.RESET : header);
+        for (OperationStats op : getOperations()) {
+            s.append(String.format("%-16s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n", op.getName(), op.getCount(),
+                    op.getMean(), op.getP50(), op.getP99(), op.getP999(), op.getMax()));
+        }
+        s.append('\n');
+        s.append(String.format("Resident nodes        %d in %d directories%n", getResidentNodes(),
+                getResidentDirectories()));
+        s.append(String.format("Journal               %d bytes, %d written%n", getJournalBytes(),
+                getJournalBytesWritten()));
+        s.append(String.format("Last checkpoint       %d bytes%n", getCheckpointBytes()));
+        s.append(String.format("File content written  %d bytes%n", getContentBytesWritten()));
+        s.append(String.format("File content stored   %d bytes in %d (%.2fx deduplicated)%n", getContentBytes(),
+                getStoredContentBytes(), getDedupRatio()));
+        s.append(String.format("Path cache            %d hits, %d misses%n", getPathCacheHits(), getPathCacheMisses()));
+        s.append(String.format("Path walk depth       %.1f mean, %d p99%n", resolveDepth.mean(), getResolveDepthP99()));
+        return s.toString();
+    }
+}
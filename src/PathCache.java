@@ -0,0 +1,110 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of resolved absolute paths. Lookups don't lock: a hit only
+ * sets the entry's reference bit, and eviction runs a CLOCK hand over the
+ * entries, skipping (and clearing) recently referenced ones.
+ *
+ * Entries for a moved or deleted node and everything below it must be dropped
+ * with {@link #invalidate(String)} once the change is visible in the tree. A
+ * lookup that walked the tree concurrently passes the generation it started
+ * from to {@link #put}, which then refuses to publish a result that an
+ * invalidation may have made stale.
+ */
+public class PathCache {
+    private static class Entry {
+        final FSNode node;
+        volatile boolean referenced;
+
+        Entry(FSNode node) {
+            this.node = node;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final int capacity;
+    private final AtomicLong generation = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private Iterator<Map.Entry<String, Entry>> hand;
+
+    public PathCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public FSNode get(String path) {
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        entry.referenced = true;
+        hits.increment();
+        return entry.node;
+    }
+
+    /** Looks up an entry without counting it as a hit or miss. */
+    public FSNode peek(String path) {
+        Entry entry = entries.get(path);
+        return entry == null ? null : entry.node;
+    }
+
+    /** Current invalidation generation, to be read before walking the tree. */
+    public long generation() {
+        return generation.get();
+    }
+
+    public void put(String path, FSNode node, long observedGeneration) {
+        Entry entry = new Entry(node);
+        entries.put(path, entry);
+        if (generation.get() != observedGeneration) {
+            entries.remove(path, entry);
+            return;
+        }
+        if (entries.size() > capacity)
+            evict();
+    }
+
+    /** Drops the entry for the given path and every path below it. */
+    public void invalidate(String path) {
+        generation.incrementAndGet();
+        String prefix = path.endsWith("/") ? path : path + "/";
+        entries.keySet().removeIf(key -> key.equals(path) || key.startsWith(prefix));
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private synchronized void evict() {
+        boolean wrapped = false;
+        while (entries.size() > capacity) {
+            if (hand == null || !hand.hasNext()) {
+                if (wrapped && entries.isEmpty())
+                    return;
+                hand = entries.entrySet().iterator();
+                wrapped = true;
+                continue;
+            }
+
+            Entry entry = hand.next().getValue();
+            if (entry.referenced) {
+                entry.referenced = false;
+            } else {
+                hand.remove();
+            }
+        }
+    }
+}
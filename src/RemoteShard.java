@@ -0,0 +1,231 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A shard served by a {@link Server} in another process, such as one started
+ * with "-p <port>" in the shard's own directory. Requests go over a pool of
+ * connections, opened as concurrent callers need them; a connection that
+ * fails is dropped and the request reported as an {@link FSException}, so the
+ * caller decides whether to retry.
+ *
+ * Everything but stat, list, read and write is sent as a shell command, whose
+ * arguments are separated by whitespace, so paths on a remote shard can't
+ * contain any.
+ */
+public class RemoteShard implements Shard {
+    private static final int BUFFER_SIZE = 8192;
+    private static final String ERROR = "Error: ";
+
+    private final InetSocketAddress address;
+    private final Queue<Connection> idle = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    public RemoteShard(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    /** The shard served on {@code port} of this machine. */
+    public RemoteShard(int port) {
+        this(new InetSocketAddress("localhost", port));
+    }
+
+    @Override
+    public void createDirectory(String path) throws FSException {
+        mutate("mkdir " + checked(path));
+    }
+
+    @Override
+    public void createFile(String path) throws FSException {
+        mutate("touch " + checked(path));
+    }
+
+    @Override
+    public void delete(String path) throws FSException {
+        mutate("rm -r " + checked(path));
+    }
+
+    @Override
+    public void rename(String from, String to) throws FSException {
+        mutate("mv " + checked(from) + " " + checked(to));
+    }
+
+    @Override
+    public void copy(String from, String to, boolean recursive) throws FSException {
+        mutate((recursive ? "cp -r " : "cp ") + checked(from) + " " + checked(to));
+    }
+
+    @Override
+    public String type(String path) throws FSException {
+        byte[] type = request("stat " + checked(path), null);
+        return type.length == 0 ? null : new String(type, StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public byte[] read(String path) throws FSException {
+        return request("read " + checked(path), null);
+    }
+
+    @Override
+    public void write(String path, byte[] content) throws FSException {
+        request("write " + checked(path) + " " + content.length, content);
+    }
+
+    @Override
+    public List<Entry> list(String path) throws FSException {
+        String[] fields = new String(request("list " + checked(path), null), StandardCharsets.UTF_8).split("/");
+        List<Entry> entries = new ArrayList<>();
+        try {
+            for (int i = 0; i + 2 < fields.length; i += 3) {
+                entries.add(new Entry(fields[i], Long.parseLong(fields[i + 1]), fields[i + 2]));
+            }
+        } catch (NumberFormatException e) {
+            throw new FSException(String.format("Unexpected response from shard %s.", address));
+        }
+        return entries;
+    }
+
+    @Override
+    public long diskUsage(String path) throws FSException {
+        String usage = query("du " + checked(path));
+        try {
+            return Long.parseLong(usage.substring(0, usage.indexOf('\t')));
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            throw new FSException(String.format("Unexpected response from shard %s: '%s'.", address, usage.trim()));
+        }
+    }
+
+    @Override
+    public List<String> find(String path, boolean directories) throws FSException {
+        String found = query("find " + checked(path) + (directories ? " -type d" : " -type f"));
+        List<String> paths = new ArrayList<>();
+        for (String line : found.split("\n")) {
+            if (!line.isEmpty())
+                paths.add(line);
+        }
+        return paths;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    private static String checked(String path) throws FSException {
+        if (path.isEmpty() || path.chars().anyMatch(Character::isWhitespace))
+            throw new FSException(String.format("'%s' is not a valid path on a remote shard.", path));
+        return path;
+    }
+
+    /** Runs a shell command that prints nothing unless it fails. */
+    private void mutate(String command) throws FSException {
+        String output = new String(call(command, null), StandardCharsets.UTF_8);
+        if (!output.isEmpty())
+            throw new FSException(message(output));
+    }
+
+    /** Runs a shell command and returns its output, unless it printed an error. */
+    private String query(String command) throws FSException {
+        String output = new String(call(command, null), StandardCharsets.UTF_8);
+        if (output.startsWith(ERROR))
+            throw new FSException(message(output));
+        return output;
+    }
+
+    private static String message(String output) {
+        output = output.trim();
+        return output.startsWith(ERROR) ? output.substring(ERROR.length()) : output;
+    }
+
+    /** Sends one of the server's stat, read and write requests; returns the result. */
+    private byte[] request(String request, byte[] content) throws FSException {
+        byte[] response = call(request, content);
+        if (response.length > 0 && response[0] == '+')
+            return Arrays.copyOfRange(response, 1, response.length);
+        if (response.length > 0 && response[0] == '-')
+            throw new FSException(new String(response, 1, response.length - 1, StandardCharsets.UTF_8));
+        throw new FSException(String.format("Unexpected response from shard %s.", address));
+    }
+
+    private byte[] call(String request, byte[] content) throws FSException {
+        if (closed)
+            throw new FSException(String.format("Shard %s is closed.", address));
+
+        Connection connection = idle.poll();
+        try {
+            if (connection == null)
+                connection = new Connection(address);
+            byte[] response = connection.call(request, content);
+            idle.add(connection);
+            if (closed)
+                close();
+            return response;
+        } catch (IOException e) {
+            if (connection != null)
+                connection.close();
+            throw new FSException(String.format("Shard %s is unreachable. %s", address, e.getMessage()));
+        }
+    }
+
+    private static class Connection {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+
+        Connection(InetSocketAddress address) throws IOException {
+            socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(address);
+                in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+                out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /** Sends a request line and its content, if any; reads the response. */
+        byte[] call(String request, byte[] content) throws IOException {
+            out.write((request + "\n").getBytes(StandardCharsets.UTF_8));
+            if (content != null)
+                out.write(content);
+            out.flush();
+
+            int length = 0;
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b == -1)
+                    throw new SocketException("Connection closed.");
+                length = length * 10 + (b - '0');
+            }
+            byte[] response = in.readNBytes(length);
+            if (response.length < length)
+                throw new SocketException("Connection closed.");
+            return response;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway.
+            }
+        }
+    }
+}
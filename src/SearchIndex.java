@@ -0,0 +1,578 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted index of the words in file contents, with secondary indexes on
+ * file name, extension and modification time, so a search is answered from
+ * the indexes without walking the tree.
+ *
+ * Files are keyed by absolute path in a sorted map rather than by node, since
+ * nodes are replaced when their directory is paged out. Moving, copying or
+ * deleting a directory then re-keys, duplicates or drops the range of paths
+ * under it without reading the tree.
+ *
+ * The words are indexed per content rather than per file: a copy shares the
+ * original's content entry, as it shares its blocks, until either is written.
+ * Each content has a number, and each word lists the numbers of the contents
+ * holding it in ascending order, so a search intersects sorted arrays. A
+ * content no file holds any more is left in the lists and skipped, until
+ * there are more of those than live ones and the lists are compacted.
+ *
+ * A write doesn't read the file back: it marks it stale, and stale files are
+ * indexed again before the next search, once however many writes they took.
+ * Only the first {@link #MAX_INDEXED_BYTES} of a file are indexed.
+ *
+ * The index is kept only once built, which the simulator does on the first
+ * search; until then the change notifications return straight away.
+ */
+public class SearchIndex {
+    public static final int MAX_INDEXED_BYTES = 4 * 1024 * 1024;
+    // Longer runs of letters and digits are hashes or encoded data, not words.
+    private static final int MAX_WORD_LENGTH = 64;
+    private static final int MIN_COMPACTION = 4096;
+
+    private final Function<FSNode, String> paths;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean built;
+
+    private final NavigableMap<String, Doc> byPath = new TreeMap<>();
+    // Lower-case names and extensions.
+    private final NavigableMap<String, Set<Doc>> byName = new TreeMap<>();
+    private final Map<String, Set<Doc>> byExtension = new HashMap<>();
+    private final NavigableMap<Long, Set<Doc>> byTime = new TreeMap<>();
+    private final Map<String, Posting> postings = new HashMap<>();
+    // By number; null once no file holds it.
+    private Content[] contents = new Content[1024];
+    private int nextContent;
+    private int liveContents;
+    // Files written since they were indexed, with the node written if known.
+    private final Map<Doc, FSFile> stale = new HashMap<>();
+
+    /**
+     * @param paths the absolute path of a node; the change notifications take
+     *              it under the index's lock, so a path and the re-keying of
+     *              a concurrent move of an ancestor are seen in one order
+     */
+    public SearchIndex(Function<FSNode, String> paths) {
+        this.paths = paths;
+    }
+
+    private static final class Doc {
+        String path;
+        String name;
+        String extension;
+        long updatedAt;
+        // Null while the file has no words.
+        Content content;
+        boolean removed;
+
+        Doc(String path, String name, String extension, long updatedAt) {
+            this.path = path;
+            this.name = lower(name);
+            this.extension = lower(extension);
+            this.updatedAt = updatedAt;
+        }
+    }
+
+    private static final class Content {
+        int number;
+        // The files holding it: one, unless it was copied.
+        final List<Doc> docs = new ArrayList<>(1);
+
+        Content(int number) {
+            this.number = number;
+        }
+    }
+
+    /** The numbers of the contents holding a word, ascending. */
+    private static final class Posting {
+        int[] numbers = new int[2];
+        int size;
+
+        void add(int number) {
+            if (size == numbers.length)
+                numbers = Arrays.copyOf(numbers, size * 2);
+            numbers[size++] = number;
+        }
+
+        boolean contains(int number) {
+            return Arrays.binarySearch(numbers, 0, size, number) >= 0;
+        }
+    }
+
+    /** A file written since it was last indexed. */
+    public static final class Stale {
+        private final Doc doc;
+        private final String path;
+        private final FSFile file;
+
+        private Stale(Doc doc, FSFile file) {
+            this.doc = doc;
+            this.path = doc.path;
+            this.file = file;
+        }
+
+        /** Where the file was when it was taken. */
+        public String path() {
+            return path;
+        }
+
+        /** The node written, or null when only the path is known. */
+        public FSFile file() {
+            return file;
+        }
+    }
+
+    public boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * Starts keeping the index up to date. The caller has added every file
+     * of the tree, with mutations held off.
+     */
+    public void setBuilt() {
+        built = true;
+    }
+
+    /** Adds a file at {@code path} found by a walk, with its words. */
+    public void add(String path, FSFile file, Collection<String> words) {
+        lock.writeLock().lock();
+        try {
+            Doc old = byPath.get(path);
+            if (old != null)
+                drop(old);
+            Doc doc = new Doc(path, file.name(), file.getExtension(), file.lastModified());
+            link(doc);
+            setContent(doc, words);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** A file was created; it is empty. */
+    public void created(FSFile file) {
+        if (!built)
+            return;
+        lock.writeLock().lock();
+        try {
+            link(new Doc(paths.apply(file), file.name(), file.getExtension(), file.lastModified()));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** A file was written or truncated; it is read again before the next search. */
+    public void changed(FSFile file) {
+        if (!built)
+            return;
+        lock.writeLock().lock();
+        try {
+            Doc doc = byPath.get(paths.apply(file));
+            if (doc != null)
+                stale.put(doc, file);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** The file or directory that was at {@code from} is now {@code node}. */
+    public void moved(String from, FSNode node) {
+        if (!built)
+            return;
+        lock.writeLock().lock();
+        try {
+            String to = paths.apply(node);
+            Doc doc = byPath.remove(from);
+            if (doc != null) {
+                unlinkName(doc);
+                doc.path = to;
+                doc.name = lower(node.name());
+                doc.extension = lower(((FSFile) node).getExtension());
+                byPath.put(to, doc);
+                linkName(doc);
+            }
+
+            Map<String, Doc> below = under(from);
+            List<Doc> moved = new ArrayList<>(below.values());
+            below.clear();
+            for (Doc d : moved) {
+                d.path = to + d.path.substring(from.length());
+                byPath.put(d.path, d);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** The file at {@code from} was copied to {@code copy}, which shares its words. */
+    public void copied(String from, FSFile copy) {
+        if (!built)
+            return;
+        lock.writeLock().lock();
+        try {
+            Doc source = byPath.get(from);
+            Doc doc = new Doc(paths.apply(copy), copy.name(), copy.getExtension(), copy.lastModified());
+            link(doc);
+            if (source != null)
+                share(doc, source.content);
+            if (source == null || stale.containsKey(source))
+                stale.put(doc, copy);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The directory at {@code from} was copied to {@code copy}. Its files share
+     * the originals' words and times, as the copy shares their nodes.
+     */
+    public void copiedTree(String from, FSDirectory copy) {
+        if (!built)
+            return;
+        lock.writeLock().lock();
+        try {
+            String to = paths.apply(copy);
+            for (Doc source : new ArrayList<>(under(from).values())) {
+                Doc doc = new Doc(to + source.path.substring(from.length()), source.name, source.extension,
+                        source.updatedAt);
+                link(doc);
+                share(doc, source.content);
+                if (stale.containsKey(source))
+                    stale.put(doc, null);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** The file or directory at {@code path} was deleted. */
+    public void removed(String path) {
+        if (!built)
+            return;
+        lock.writeLock().lock();
+        try {
+            Doc doc = byPath.remove(path);
+            if (doc != null)
+                drop(doc);
+            Map<String, Doc> below = under(path);
+            List<Doc> dropped = new ArrayList<>(below.values());
+            below.clear();
+            dropped.forEach(this::drop);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Takes the files written since they were last indexed. */
+    public List<Stale> takeStale() {
+        lock.writeLock().lock();
+        try {
+            List<Stale> taken = new ArrayList<>(stale.size());
+            stale.forEach((doc, file) -> taken.add(new Stale(doc, file)));
+            stale.clear();
+            return taken;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Indexes a stale file's words again, unless it was deleted meanwhile. */
+    public void reindexed(Stale file, Collection<String> words, long updatedAt) {
+        lock.writeLock().lock();
+        try {
+            Doc doc = file.doc;
+            if (doc.removed)
+                return;
+            unlinkTime(doc);
+            doc.updatedAt = updatedAt;
+            linkTime(doc);
+            setContent(doc, words);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The paths of the files matching {@code query}, sorted. Starts from the
+     * postings of its words, or else from the most selective secondary
+     * index it names, and checks the other criteria on each candidate.
+     */
+    public List<String> search(SearchQuery query) {
+        lock.readLock().lock();
+        try {
+            Pattern name = query.name() == null ? null : Pattern.compile(globToRegex(lower(query.name())));
+            String extension = lower(query.extension());
+            Collection<Doc> candidates = query.words().isEmpty()
+                    ? candidates(query, name, extension)
+                    : holding(query.words());
+
+            List<String> found = new ArrayList<>();
+            for (Doc doc : candidates) {
+                if (name != null && !name.matcher(doc.name).matches())
+                    continue;
+                if (extension != null && !extension.equals(doc.extension))
+                    continue;
+                if (doc.updatedAt < query.since() || doc.updatedAt >= query.before())
+                    continue;
+                found.add(doc.path);
+            }
+            Collections.sort(found);
+            return found;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Files whose content holds all of {@code words}. */
+    private List<Doc> holding(List<String> words) {
+        List<Posting> lists = new ArrayList<>(words.size());
+        for (String word : words) {
+            Posting posting = postings.get(word);
+            if (posting == null)
+                return List.of();
+            lists.add(posting);
+        }
+        lists.sort(Comparator.comparingInt(posting -> posting.size));
+
+        List<Doc> docs = new ArrayList<>();
+        Posting shortest = lists.get(0);
+        next:
+        for (int i = 0; i < shortest.size; i++) {
+            int number = shortest.numbers[i];
+            Content content = contents[number];
+            if (content == null)
+                continue;
+            for (int k = 1; k < lists.size(); k++) {
+                if (!lists.get(k).contains(number))
+                    continue next;
+            }
+            docs.addAll(content.docs);
+        }
+        return docs;
+    }
+
+    /**
+     * Candidates for a query without words: by name when the glob starts with
+     * a literal prefix, else by extension, else by any name, else by time.
+     */
+    private Collection<Doc> candidates(SearchQuery query, Pattern name, String extension) {
+        String prefix = name == null ? "" : literalPrefix(lower(query.name()));
+        if (extension != null && prefix.isEmpty())
+            return byExtension.getOrDefault(extension, Set.of());
+
+        List<Doc> docs = new ArrayList<>();
+        if (name != null) {
+            Map<String, Set<Doc>> names = prefix.isEmpty() ? byName
+                    : byName.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+            // A glob of a prefix and '*' matches the whole range.
+            boolean all = query.name().length() == prefix.length() + 1 && query.name().endsWith("*");
+            names.forEach((key, named) -> {
+                if (all || name.matcher(key).matches())
+                    docs.addAll(named);
+            });
+            return docs;
+        }
+        if (query.since() > 0 || query.before() < Long.MAX_VALUE) {
+            byTime.subMap(query.since(), true, query.before(), false).values().forEach(docs::addAll);
+            return docs;
+        }
+        return byPath.values();
+    }
+
+    /** Files at paths below {@code path}, as a view. */
+    private Map<String, Doc> under(String path) {
+        // '0' follows '/', so the range holds exactly the paths starting "path/".
+        return byPath.subMap(path + "/", true, path + "0", false);
+    }
+
+    private void link(Doc doc) {
+        byPath.put(doc.path, doc);
+        linkName(doc);
+        linkTime(doc);
+    }
+
+    private void drop(Doc doc) {
+        unlinkName(doc);
+        unlinkTime(doc);
+        setContent(doc, List.of());
+        stale.remove(doc);
+        doc.removed = true;
+    }
+
+    private void linkName(Doc doc) {
+        byName.computeIfAbsent(doc.name, key -> new HashSet<>()).add(doc);
+        if (doc.extension != null)
+            byExtension.computeIfAbsent(doc.extension, key -> new HashSet<>()).add(doc);
+    }
+
+    private void unlinkName(Doc doc) {
+        unlink(byName, doc.name, doc);
+        if (doc.extension != null)
+            unlink(byExtension, doc.extension, doc);
+    }
+
+    private void linkTime(Doc doc) {
+        byTime.computeIfAbsent(doc.updatedAt, key -> new HashSet<>()).add(doc);
+    }
+
+    private void unlinkTime(Doc doc) {
+        unlink(byTime, doc.updatedAt, doc);
+    }
+
+    private static <K> void unlink(Map<K, Set<Doc>> index, K key, Doc doc) {
+        Set<Doc> docs = index.get(key);
+        if (docs != null && docs.remove(doc) && docs.isEmpty())
+            index.remove(key);
+    }
+
+    /** Gives {@code doc} a content entry of its own holding {@code words}. */
+    private void setContent(Doc doc, Collection<String> words) {
+        Content old = doc.content;
+        if (old != null) {
+            old.docs.remove(doc);
+            doc.content = null;
+            if (old.docs.isEmpty()) {
+                contents[old.number] = null;
+                liveContents--;
+            }
+        }
+
+        if (!words.isEmpty()) {
+            if (nextContent == contents.length)
+                contents = Arrays.copyOf(contents, nextContent * 2);
+            Content content = new Content(nextContent++);
+            contents[content.number] = content;
+            liveContents++;
+            for (String word : words) {
+                postings.computeIfAbsent(word, key -> new Posting()).add(content.number);
+            }
+            share(doc, content);
+        }
+
+        int dead = nextContent - liveContents;
+        if (dead >= MIN_COMPACTION && dead > liveContents)
+            compact();
+    }
+
+    private static void share(Doc doc, Content content) {
+        doc.content = content;
+        if (content != null)
+            content.docs.add(doc);
+    }
+
+    /**
+     * Numbers the live contents again from 0, in the same order, and drops
+     * the dead ones from the postings.
+     */
+    private void compact() {
+        int[] renumbered = new int[nextContent];
+        int live = 0;
+        for (int number = 0; number < nextContent; number++) {
+            Content content = contents[number];
+            if (content == null) {
+                renumbered[number] = -1;
+                continue;
+            }
+            renumbered[number] = live;
+            content.number = live;
+            contents[live++] = content;
+        }
+        Arrays.fill(contents, live, nextContent, null);
+        nextContent = live;
+
+        for (Iterator<Posting> it = postings.values().iterator(); it.hasNext(); ) {
+            Posting posting = it.next();
+            int size = 0;
+            for (int i = 0; i < posting.size; i++) {
+                int number = renumbered[posting.numbers[i]];
+                if (number >= 0)
+                    posting.numbers[size++] = number;
+            }
+            posting.size = size;
+            if (size == 0) {
+                it.remove();
+            } else if (size < posting.numbers.length / 4) {
+                posting.numbers = Arrays.copyOf(posting.numbers, size * 2);
+            }
+        }
+    }
+
+    /** The distinct words of {@code text}: runs of letters and digits, in lower case. */
+    public static List<String> words(CharSequence text) {
+        Set<String> words = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                if (i - start <= MAX_WORD_LENGTH)
+                    words.add(text.subSequence(start, i).toString().toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return new ArrayList<>(words);
+    }
+
+    /** The distinct words of content read as UTF-8. */
+    public static List<String> words(List<ByteBuffer> content) {
+        int length = 0;
+        for (ByteBuffer view : content) {
+            length += view.remaining();
+        }
+        byte[] bytes = new byte[length];
+        int at = 0;
+        for (ByteBuffer view : content) {
+            int n = view.remaining();
+            view.duplicate().get(bytes, at, n);
+            at += n;
+        }
+        return words(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    /** A glob ('*' any run of characters, '?' any one) as a regular expression. */
+    public static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return regex.toString();
+    }
+
+    private static String literalPrefix(String glob) {
+        int end = 0;
+        while (end < glob.length() && glob.charAt(end) != '*' && glob.charAt(end) != '?') {
+            end++;
+        }
+        return glob.substring(0, end);
+    }
+
+    private static String lower(String text) {
+        return text == null ? null : text.toLowerCase(Locale.ROOT);
+    }
+}
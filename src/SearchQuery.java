@@ -0,0 +1,50 @@
+import java.util.List;
+
+/**
+ * What {@code search} looks for. A file matches when its content holds every
+ * word of {@code text}, its name matches the {@code name} glob ('*' and '?'),
+ * its extension is {@code extension}, and it was last modified at or after
+ * {@code since} and before {@code before}. Words, names and extensions are
+ * compared ignoring case; a null or empty criterion matches every file.
+ */
+public class SearchQuery {
+    private final List<String> words;
+    private final String name;
+    private final String extension;
+    private final long since;
+    private final long before;
+
+    /**
+     * @param since  milliseconds since the epoch; 0 for no lower bound
+     * @param before milliseconds since the epoch; Long.MAX_VALUE for no
+     *               upper bound
+     */
+    public SearchQuery(String text, String name, String extension, long since, long before) {
+        this.words = text == null ? List.of() : SearchIndex.words(text);
+        this.name = name == null || name.isEmpty() ? null : name;
+        this.extension = extension == null || extension.isEmpty() ? null : extension;
+        this.since = since;
+        this.before = before;
+    }
+
+    /** The distinct words of the text, in lower case. */
+    public List<String> words() {
+        return words;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public String extension() {
+        return extension;
+    }
+
+    public long since() {
+        return since;
+    }
+
+    public long before() {
+        return before;
+    }
+}
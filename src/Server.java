@@ -0,0 +1,322 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves a {@link FileSystemSimulator} over TCP. Each connection gets its own
+ * {@link Session}, so clients keep separate working directories, and its own
+ * thread running the same commands as the shell.
+ *
+ * The protocol is line based. A request is one shell command line, ended by
+ * '\n'. Each response is its output length in bytes as a decimal line,
+ * followed by that many bytes of UTF-8 text without colors. Requests can be
+ * pipelined: responses come back in order, and are flushed together once no
+ * further request is waiting to be read. "exit" closes the connection; the
+ * server stops with the process, and never at a client's request. Commands
+ * that act on the process or the host are refused, and a command that fails
+ * unexpectedly answers with an "Error: " line.
+ *
+ * Four more requests are meant for programs, such as a {@link RemoteShard},
+ * and carry bytes unchanged: "stat <path>", "list <path>", "read <path>",
+ * and "write <path> <length>" followed by that many bytes of content, which
+ * replace the file's. Their responses start with '+' and the result (the
+ * node's type, empty when there is none; the entries; the content; nothing),
+ * or with '-' and an error message. Each entry of a list is its type, its
+ * modification time in milliseconds and its name, each followed by '/',
+ * which names can't hold.
+ *
+ * Connections run on virtual threads when the runtime has them, and on
+ * platform threads with small stacks otherwise.
+ */
+public class Server implements AutoCloseable {
+    private static final int MAX_LINE = 64 * 1024;
+    // Kept small: there is one of each per connection.
+    private static final int BUFFER_SIZE = 2048;
+    private static final int BACKLOG = 4096;
+    // Enough for the shell's commands; platform threads would reserve 1 MB.
+    private static final long STACK_SIZE = 256 * 1024;
+
+    private final FileSystemSimulator fs;
+    private final ServerSocket socket;
+    private final ExecutorService connections = connectionExecutor();
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    /** Listens on {@code port} of the loopback interface; 0 picks a free port. */
+    public Server(FileSystemSimulator fs, int port) throws IOException {
+        this(fs, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public Server(FileSystemSimulator fs, InetSocketAddress address) throws IOException {
+        this.fs = fs;
+        this.socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(address, BACKLOG);
+    }
+
+    /**
+     * Serves a simulator in the working directory, on the loopback interface,
+     * until the process ends.
+     */
+    static void serve(String port) {
+        int number;
+        try {
+            number = Integer.parseInt(port);
+        } catch (NumberFormatException e) {
+            System.out.printf("'%s' is not a valid port.", port);
+            System.out.println();
+            return;
+        }
+
+        FileSystemSimulator fs = new FileSystemSimulator();
+        Runtime.getRuntime().addShutdownHook(new Thread(fs::shutdown));
+        try (Server server = new Server(fs, number)) {
+            System.out.println("Listening on port " + server.port() + ".");
+            server.run();
+        } catch (IOException e) {
+            System.err.println("Error while starting server." + e.getMessage());
+        }
+    }
+
+    public int port() {
+        return socket.getLocalPort();
+    }
+
+    /** Accepts connections until {@link #close} is called. */
+    public void run() {
+        while (!closed) {
+            Socket client;
+            try {
+                client = socket.accept();
+            } catch (IOException e) {
+                if (closed || socket.isClosed())
+                    return;
+                System.err.println("Error while accepting connection." + e.getMessage());
+                continue;
+            }
+            open.add(client);
+            connections.execute(() -> {
+                try {
+                    serve(client);
+                } finally {
+                    open.remove(client);
+                }
+            });
+        }
+    }
+
+    /** Starts accepting on a thread of its own and returns. */
+    public void start() {
+        Thread acceptor = new Thread(this::run, "fs-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void serve(Socket client) {
+        Session session = fs.openSession();
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(response, false, StandardCharsets.UTF_8);
+        try (Socket c = client) {
+            c.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(c.getInputStream(), BUFFER_SIZE);
+            OutputStream replies = new BufferedOutputStream(c.getOutputStream(), BUFFER_SIZE);
+            WritableByteChannel channel = Channels.newChannel(c.getOutputStream());
+            String line;
+            while ((line = readLine(in)) != null) {
+                String input = line.trim();
+                if (input.split("\\s+", 2)[0].equals("exit"))
+                    break;
+                FileHandle file = null;
+                try {
+                    if (input.isEmpty() || !request(session, input, in, response))
+                        Shell.execute(fs, session, out, input, Shell.Mode.REMOTE);
+                    else if (response.size() == 0)
+                        file = session.open(input.substring("read ".length()), false);
+                    out.flush();
+                } catch (FSException e) {
+                    response.write('-');
+                    response.write(message(e).getBytes(StandardCharsets.UTF_8));
+                } catch (RuntimeException e) {
+                    // Whatever the command printed before failing is dropped.
+                    out.flush();
+                    response.reset();
+                    out.println("Error: " + message(e));
+                    out.flush();
+                }
+
+                if (file != null) {
+                    send(file, replies, channel);
+                } else {
+                    replies.write((response.size() + "\n").getBytes(StandardCharsets.US_ASCII));
+                    response.writeTo(replies);
+                    response.reset();
+                }
+                if (in.available() == 0)
+                    replies.flush();
+            }
+            replies.flush();
+        } catch (SocketException e) {
+            // The client went away.
+        } catch (IOException e) {
+            System.err.println("Error while serving connection." + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends a file's content straight from its blocks to the socket, behind
+     * a length taken from its size. Should the file shrink meanwhile, the
+     * rest is sent as zeros, so the response still has the length announced.
+     */
+    private static void send(FileHandle file, OutputStream replies, WritableByteChannel channel) throws IOException {
+        long size = file.size();
+        replies.write(((size + 1) + "\n+").getBytes(StandardCharsets.US_ASCII));
+        replies.flush();
+        long sent = file.transferTo(0, size, channel);
+        byte[] zeros = new byte[BUFFER_SIZE];
+        while (sent < size) {
+            int n = (int) Math.min(zeros.length, size - sent);
+            replies.write(zeros, 0, n);
+            sent += n;
+        }
+    }
+
+    /**
+     * Serves a stat, list, read or write request; returns false for anything
+     * else. A read is only recognized here and leaves the response empty: its
+     * content is sent by {@link #send}.
+     */
+    private boolean request(Session session, String input, InputStream in, ByteArrayOutputStream response)
+            throws IOException {
+        String[] parts = input.split(" ");
+        boolean path = parts.length == 2
+                && (parts[0].equals("stat") || parts[0].equals("list") || parts[0].equals("read"));
+        if (!path && !(parts.length == 3 && parts[0].equals("write")))
+            return false;
+
+        try {
+            switch (parts[0]) {
+                case "stat": {
+                    String type = session.typeOf(parts[1]);
+                    response.write('+');
+                    if (type != null)
+                        response.write(type.getBytes(StandardCharsets.US_ASCII));
+                    break;
+                }
+                case "list": {
+                    StringBuilder entries = new StringBuilder();
+                    for (String entry : session.list(parts[1], node -> node.getType() + "/" + node.lastModified() + "/"
+                            + node.name() + "/")) {
+                        entries.append(entry);
+                    }
+                    response.write('+');
+                    response.write(entries.toString().getBytes(StandardCharsets.UTF_8));
+                    break;
+                }
+                case "read":
+                    break;
+                default: {
+                    int length;
+                    try {
+                        length = Integer.parseInt(parts[2]);
+                    } catch (NumberFormatException e) {
+                        length = -1;
+                    }
+                    if (length < 0)
+                        throw new FSException(String.format("'%s' is not a valid length.", parts[2]));
+                    byte[] content = in.readNBytes(length);
+                    if (content.length < length)
+                        throw new SocketException("Connection closed.");
+                    fs.beginBatch();
+                    try {
+                        FileHandle file = session.open(parts[1], true);
+                        file.truncate(0);
+                        file.write(0, content);
+                    } finally {
+                        fs.endBatch();
+                    }
+                    response.write('+');
+                    break;
+                }
+            }
+        } catch (FSException | RuntimeException e) {
+            response.reset();
+            response.write('-');
+            response.write(message(e).getBytes(StandardCharsets.UTF_8));
+        }
+        return true;
+    }
+
+    private static String message(Exception e) {
+        return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+    }
+
+    /** Reads up to '\n' as UTF-8, dropping a '\r' before it; null at the end. */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1)
+                return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+            if (line.size() == MAX_LINE)
+                throw new IOException("Request line too long.");
+            line.write(b);
+        }
+        int length = line.size();
+        byte[] bytes = line.toByteArray();
+        if (length > 0 && bytes[length - 1] == '\r')
+            length--;
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+        for (Socket client : open) {
+            try {
+                client.close();
+            } catch (IOException e) {
+            }
+        }
+        connections.shutdown();
+    }
+
+    /**
+     * A virtual thread per task where the runtime has them (Java 21 and up),
+     * looked up reflectively so the simulator still builds for Java 17.
+     */
+    private static ExecutorService connectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            ThreadFactory threads = r -> {
+                Thread t = new Thread(null, r, "fs-connection-" + count.incrementAndGet(), STACK_SIZE);
+                t.setDaemon(true);
+                return t;
+            };
+            return Executors.newCachedThreadPool(threads);
+        }
+    }
+}
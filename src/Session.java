@@ -0,0 +1,90 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * One client's view of a shared {@link FileSystemSimulator}: the operations
+ * resolve relative paths against this session's own working directory.
+ * Separate sessions can be used from separate threads; a single session is
+ * meant to be driven by one thread at a time.
+ */
+public class Session {
+    private final FileSystemSimulator fs;
+    FSDirectory directory;
+    String path;
+    long pathGeneration;
+
+    Session(FileSystemSimulator fs, FSDirectory directory) {
+        this.fs = fs;
+        this.directory = directory;
+    }
+
+    public void createDirectory(String path) throws FSException {
+        fs.createDirectory(this, path);
+    }
+
+    public void createFile(String path) throws FSException {
+        fs.createFile(this, path);
+    }
+
+    public FileHandle open(String path, boolean create) throws FSException {
+        return fs.open(this, path, create);
+    }
+
+    public String listDirectory() {
+        return fs.listDirectory(this);
+    }
+
+    public String listDirectory(String path) {
+        return fs.listDirectory(this, path);
+    }
+
+    public String listDirectory(String path, ListOptions options, Appendable out) throws FSException, IOException {
+        return fs.listDirectory(this, path, options, out);
+    }
+
+    public <T> List<T> list(String path, Function<FSNode, T> entry) throws FSException {
+        return fs.list(this, path, entry);
+    }
+
+    public long diskUsage(String path) throws FSException {
+        return fs.diskUsage(this, path);
+    }
+
+    public List<String> find(String path, Predicate<FSNode> filter) throws FSException {
+        return fs.find(this, path, filter);
+    }
+
+    public String typeOf(String path) {
+        return fs.typeOf(this, path);
+    }
+
+    public String tree(String path) throws FSException {
+        return fs.tree(this, path);
+    }
+
+    public void changeDirectory(String path) throws FSException {
+        fs.changeDirectory(this, path);
+    }
+
+    public void rename(String oldName, String newName) throws FSException {
+        fs.rename(this, oldName, newName);
+    }
+
+    public void copy(String srcPath, String dstPath) throws FSException {
+        fs.copy(this, srcPath, dstPath, false);
+    }
+
+    public void copy(String srcPath, String dstPath, boolean recursive) throws FSException {
+        fs.copy(this, srcPath, dstPath, recursive);
+    }
+
+    public void delete(String path) throws FSException {
+        fs.delete(this, path);
+    }
+
+    public String currentPath() {
+        return fs.currentPath(this);
+    }
+}
@@ -0,0 +1,61 @@
+import java.util.List;
+
+/**
+ * One partition of a {@link ShardRouter}'s namespace: a whole file system of
+ * its own, with its own image and journal, in this process
+ * ({@link LocalShard}) or served by another one ({@link RemoteShard}). Paths
+ * are absolute.
+ */
+public interface Shard extends AutoCloseable {
+    void createDirectory(String path) throws FSException;
+
+    void createFile(String path) throws FSException;
+
+    void delete(String path) throws FSException;
+
+    void rename(String from, String to) throws FSException;
+
+    void copy(String from, String to, boolean recursive) throws FSException;
+
+    /** "FILE" or "DIR" for the node at {@code path}, or null when there is none. */
+    String type(String path) throws FSException;
+
+    byte[] read(String path) throws FSException;
+
+    /** Replaces the content of a file, creating it if missing, in one transaction. */
+    void write(String path, byte[] content) throws FSException;
+
+    /**
+     * The entries of the directory at {@code path}, in the order they were
+     * created, or the file at {@code path} as the only one.
+     */
+    List<Entry> list(String path) throws FSException;
+
+    long diskUsage(String path) throws FSException;
+
+    /**
+     * Paths of the directories, or of the files, under {@code path}, itself
+     * included; a directory comes before what is in it.
+     */
+    List<String> find(String path, boolean directories) throws FSException;
+
+    @Override
+    void close();
+
+    /** A node as a listing shows it. */
+    final class Entry {
+        public final String type;
+        public final long lastModified;
+        public final String name;
+
+        public Entry(String type, long lastModified, String name) {
+            this.type = type;
+            this.lastModified = lastModified;
+            this.name = name;
+        }
+
+        static Entry of(FSNode node) {
+            return new Entry(node.getType(), node.lastModified(), node.name());
+        }
+    }
+}
@@ -0,0 +1,474 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * One namespace spread over several {@link Shard}s, each a file system with
+ * its own image and journal. Every top-level name belongs to one shard,
+ * picked by a {@link Partitioner}, and the whole subtree under it lives
+ * there, so an operation inside one subtree is served by that shard alone and
+ * operations on different shards run in parallel. The root itself is
+ * virtual: listing it merges the shards' roots. Paths are taken from the
+ * root; there is no working directory.
+ *
+ * Moving or copying between shards takes two phases. The source is first
+ * copied into a staging directory on the destination shard, under the
+ * reserved top-level name ".2pc"; once all of it is there, the decision is
+ * logged, and the staged copy is renamed into place and, for a move, the
+ * source deleted. The coordinator's log is synced at each step, so after a
+ * crash the next router over the same directory finishes an operation that
+ * was decided and undoes one that wasn't. Operations between shards are
+ * serialized with all others, so none sees one half done.
+ */
+public class ShardRouter implements AutoCloseable {
+    /** The top-level name on each shard under which moves between shards are staged. */
+    public static final String STAGING = ".2pc";
+    private static final String LOG = ".router-log";
+
+    private final List<Shard> shards;
+    private final Partitioner partitioner;
+    private final FileChannel log;
+    // Read side: operations on one shard. Write side: operations between shards.
+    private final ReentrantReadWriteLock order = new ReentrantReadWriteLock();
+    private long transactions = System.currentTimeMillis();
+
+    /** Picks the shard for a top-level name. */
+    public interface Partitioner {
+        /** Spreads names evenly, by their hash code. */
+        Partitioner HASH = (name, shards) -> Math.floorMod(name.hashCode(), shards);
+
+        /** @return a shard number from 0 to {@code shards - 1} */
+        int shard(String name, int shards);
+
+        /**
+         * Keeps names in ranges: names before {@code splits[0]} on shard 0,
+         * then up to {@code splits[1]} on shard 1, and so on, with the rest
+         * on the last shard. Needs one split fewer than there are shards.
+         */
+        static Partitioner ranges(String... splits) {
+            String[] sorted = splits.clone();
+            Arrays.sort(sorted);
+            return (name, shards) -> {
+                int at = Arrays.binarySearch(sorted, name);
+                int shard = at >= 0 ? at + 1 : -at - 1;
+                return Math.min(shard, shards - 1);
+            };
+        }
+    }
+
+    /**
+     * Routes over {@code shards}, finishing or undoing whatever move between
+     * them was under way when the last router over {@code directory} stopped.
+     * The shards must be the same, in the same order, as that router's.
+     *
+     * @param directory where the coordinator's log is kept
+     */
+    public ShardRouter(Path directory, List<Shard> shards, Partitioner partitioner) throws FSException {
+        if (shards.isEmpty())
+            throw new IllegalArgumentException("A router needs at least one shard.");
+        this.shards = List.copyOf(shards);
+        this.partitioner = partitioner;
+        try {
+            Files.createDirectories(directory);
+            this.log = FileChannel.open(directory.resolve(LOG), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't open the router log.", e);
+        }
+        recover();
+    }
+
+    /**
+     * Routes over {@code count} simulators in this process, kept in
+     * "shard-0", "shard-1" and so on under {@code directory}.
+     */
+    public static ShardRouter local(Path directory, int count, Partitioner partitioner) throws FSException {
+        List<Shard> shards = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Path shard = directory.resolve("shard-" + i);
+            try {
+                Files.createDirectories(shard);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Couldn't create the shard directory.", e);
+            }
+            shards.add(new LocalShard(new FileSystemSimulator(shard, 0)));
+        }
+        return new ShardRouter(directory, shards, partitioner);
+    }
+
+    public int shards() {
+        return shards.size();
+    }
+
+    /** The number of the shard holding {@code path}, or -1 for the root. */
+    public int shardOf(String path) throws FSException {
+        String normalized = normalize(path);
+        return normalized.equals("/") ? -1 : index(normalized);
+    }
+
+    public void createDirectory(String path) throws FSException {
+        String p = nonRoot(path, "The root directory already exists.");
+        order.readLock().lock();
+        try {
+            shard(p).createDirectory(p);
+        } finally {
+            order.readLock().unlock();
+        }
+    }
+
+    public void createFile(String path) throws FSException {
+        String p = nonRoot(path, "The root directory already exists.");
+        order.readLock().lock();
+        try {
+            shard(p).createFile(p);
+        } finally {
+            order.readLock().unlock();
+        }
+    }
+
+    public void delete(String path) throws FSException {
+        String p = nonRoot(path, "Couldn't delete the root directory.");
+        order.readLock().lock();
+        try {
+            shard(p).delete(p);
+        } finally {
+            order.readLock().unlock();
+        }
+    }
+
+    public byte[] read(String path) throws FSException {
+        String p = nonRoot(path, "'/' is a directory.");
+        order.readLock().lock();
+        try {
+            return shard(p).read(p);
+        } finally {
+            order.readLock().unlock();
+        }
+    }
+
+    /** Replaces the content of a file, creating it if missing. */
+    public void write(String path, byte[] content) throws FSException {
+        String p = nonRoot(path, "'/' is a directory.");
+        order.readLock().lock();
+        try {
+            shard(p).write(p, content);
+        } finally {
+            order.readLock().unlock();
+        }
+    }
+
+    public String listDirectory(String path) throws FSException {
+        String p = normalize(path);
+        order.readLock().lock();
+        try {
+            List<Shard.Entry> entries = new ArrayList<>();
+            boolean file = false;
+            if (p.equals("/")) {
+                for (Shard shard : shards) {
+                    for (Shard.Entry entry : shard.list("/")) {
+                        if (!entry.name.equals(STAGING))
+                            entries.add(entry);
+                    }
+                }
+            } else {
+                entries = shard(p).list(p);
+                file = entries.size() == 1 && entries.get(0).name.equals(name(p))
+                        && "FILE".equals(shard(p).type(p));
+            }
+            if (entries.isEmpty())
+                return "";
+
+            StringBuilder listing = new StringBuilder();
+            listing.append(file ? "\nFile: " : "\nDirectory: ").append(p).append("\n\n");
+            listing.append("Type   LastWriteTime         Name\n");
+            listing.append("----   -------------------   ----\n");
+            for (Shard.Entry entry : entries) {
+                listing.append(String.format("%-4s   %-19s   %s\n", entry.type, FSNode.formatTime(entry.lastModified),
+                        entry.name));
+            }
+            return listing.toString();
+        } finally {
+            order.readLock().unlock();
+        }
+    }
+
+    /** Total bytes of file content under {@code path}; under the root, on all shards. */
+    public long diskUsage(String path) throws FSException {
+        String p = normalize(path);
+        order.readLock().lock();
+        try {
+            if (!p.equals("/"))
+                return shard(p).diskUsage(p);
+            long total = 0;
+            for (Shard shard : shards) {
+                total += shard.diskUsage("/");
+            }
+            return total;
+        } finally {
+            order.readLock().unlock();
+        }
+    }
+
+    /** Moves or renames, into {@code to} when it is a directory, as "mv" does. */
+    public void rename(String from, String to) throws FSException {
+        transfer(true, from, to, true);
+    }
+
+    /** Copies a file, or with {@code recursive} set a whole directory, as "cp" does. */
+    public void copy(String from, String to, boolean recursive) throws FSException {
+        transfer(false, from, to, recursive);
+    }
+
+    private void transfer(boolean move, String from, String to, boolean recursive) throws FSException {
+        String src = nonRoot(from, move ? "Couldn't move the root directory." : "Couldn't copy the root directory.");
+        String dst = normalize(to);
+        if (!dst.equals("/") && index(src) == index(dst)) {
+            order.readLock().lock();
+            try {
+                forward(move, src, dst, recursive);
+            } finally {
+                order.readLock().unlock();
+            }
+            return;
+        }
+
+        order.writeLock().lock();
+        try {
+            // Finish whatever a shard failing left undone, before starting anew.
+            recover();
+
+            Shard source = shard(src);
+            String type = source.type(src);
+            if (type == null)
+                throw new FSException(String.format("File or directory '%s' not found.", src));
+            if (!recursive && type.equals("DIR"))
+                throw new FSException(String.format("'%s' is a directory. Use cp -r to copy it.", name(src)));
+
+            String target = dst.equals("/") ? "/" + name(src)
+                    : "DIR".equals(shard(dst).type(dst)) ? dst + "/" + name(src) : dst;
+            Shard destination = shard(target);
+            if (destination == source) {
+                forward(move, src, target, recursive);
+                return;
+            }
+
+            String parent = parent(target);
+            if (!parent.equals("/") && !"DIR".equals(destination.type(parent)))
+                throw new FSException(String.format("Destination path '%s' not found.", parent));
+            if (destination.type(target) != null)
+                throw new FSException(String.format("File or directory '%s' already exists.", name(target)));
+
+            String tx = Long.toString(++transactions);
+            String staging = "/" + STAGING + "/" + tx;
+            record("BEGIN", tx, move ? "mv" : "cp", src, target);
+            try {
+                stage(source, src, type, destination, staging);
+            } catch (FSException e) {
+                try {
+                    if (destination.type(staging) != null)
+                        destination.delete(staging);
+                    record("ABORT", tx);
+                    clearLog();
+                } catch (FSException ignored) {
+                    // Left to recovery, which undoes it as well.
+                }
+                throw e;
+            }
+            record("COMMIT", tx);
+            complete(move, src, target, staging);
+            record("END", tx);
+            clearLog();
+        } finally {
+            order.writeLock().unlock();
+        }
+    }
+
+    private void forward(boolean move, String src, String dst, boolean recursive) throws FSException {
+        if (move) {
+            shard(src).rename(src, dst);
+        } else {
+            shard(src).copy(src, dst, recursive);
+        }
+    }
+
+    /** First phase: copies {@code src} to {@code staging} on the destination. */
+    private static void stage(Shard source, String src, String type, Shard destination, String staging)
+            throws FSException {
+        if (destination.type("/" + STAGING) == null)
+            destination.createDirectory("/" + STAGING);
+        if (type.equals("FILE")) {
+            destination.write(staging, source.read(src));
+            return;
+        }
+
+        // Sorted, a directory comes before those in it.
+        List<String> directories = new ArrayList<>(source.find(src, true));
+        Collections.sort(directories);
+        for (String dir : directories) {
+            destination.createDirectory(staging + dir.substring(src.length()));
+        }
+        for (String file : source.find(src, false)) {
+            destination.write(staging + file.substring(src.length()), source.read(file));
+        }
+    }
+
+    /** Second phase: can be repeated until it succeeds once. */
+    private void complete(boolean move, String src, String target, String staging) throws FSException {
+        Shard destination = shard(target);
+        if (destination.type(staging) != null)
+            destination.rename(staging, target);
+        if (move && shard(src).type(src) != null)
+            shard(src).delete(src);
+    }
+
+    /**
+     * Finishes a logged operation that was decided, or undoes one that
+     * wasn't, then empties the log. Only one is ever under way.
+     */
+    private void recover() throws FSException {
+        List<String[]> records = new ArrayList<>();
+        try {
+            if (log.size() == 0)
+                return;
+            ByteBuffer content = ByteBuffer.allocate((int) log.size());
+            while (content.hasRemaining()) {
+                if (log.read(content, content.position()) < 0)
+                    break;
+            }
+            // A record torn by a crash has no line end, and didn't happen.
+            String text = new String(content.array(), 0, content.position(), StandardCharsets.UTF_8);
+            int end = text.lastIndexOf('\n');
+            for (String line : text.substring(0, end + 1).split("\n")) {
+                if (!line.isEmpty())
+                    records.add(line.split("\t"));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't read the router log.", e);
+        }
+
+        String[] begun = null;
+        boolean committed = false;
+        for (String[] record : records) {
+            switch (record[0]) {
+                case "BEGIN":
+                    begun = record;
+                    committed = false;
+                    break;
+                case "COMMIT":
+                    committed = true;
+                    break;
+                default:
+                    begun = null;
+                    break;
+            }
+        }
+
+        if (begun != null) {
+            String staging = "/" + STAGING + "/" + begun[1];
+            String src = begun[3];
+            String target = begun[4];
+            if (committed) {
+                complete(begun[2].equals("mv"), src, target, staging);
+            } else if (shard(target).type(staging) != null) {
+                shard(target).delete(staging);
+            }
+            record(committed ? "END" : "ABORT", begun[1]);
+        }
+        clearLog();
+    }
+
+    private void record(String... fields) {
+        ByteBuffer line = ByteBuffer.wrap((String.join("\t", fields) + "\n").getBytes(StandardCharsets.UTF_8));
+        try {
+            long at = log.size();
+            while (line.hasRemaining()) {
+                at += log.write(line, at);
+            }
+            log.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't write the router log.", e);
+        }
+    }
+
+    private void clearLog() {
+        try {
+            log.truncate(0);
+            log.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't write the router log.", e);
+        }
+    }
+
+    /** Closes the log and every shard. */
+    @Override
+    public void close() {
+        order.writeLock().lock();
+        try {
+            for (Shard shard : shards) {
+                shard.close();
+            }
+            log.close();
+        } catch (IOException e) {
+            System.err.println("Error while closing router log." + e.getMessage());
+        } finally {
+            order.writeLock().unlock();
+        }
+    }
+
+    private Shard shard(String normalized) throws FSException {
+        return shards.get(index(normalized));
+    }
+
+    private int index(String normalized) throws FSException {
+        int slash = normalized.indexOf('/', 1);
+        String top = slash == -1 ? normalized.substring(1) : normalized.substring(1, slash);
+        if (top.equals(STAGING))
+            throw new FSException(String.format("'%s' is reserved for moves between shards.", STAGING));
+        return partitioner.shard(top, shards.size());
+    }
+
+    private static String nonRoot(String path, String message) throws FSException {
+        String normalized = normalize(path);
+        if (normalized.equals("/"))
+            throw new FSException(message);
+        return normalized;
+    }
+
+    /** An absolute path without "." or ".." in it, or empty names. */
+    static String normalize(String path) throws FSException {
+        if (path == null || path.isEmpty())
+            return "/";
+        List<String> names = new ArrayList<>();
+        for (String name : path.split("/")) {
+            if (name.isEmpty() || name.equals("."))
+                continue;
+            if (name.equals("..")) {
+                if (names.isEmpty())
+                    throw new FSException(String.format("'%s' goes above the root directory.", path));
+                names.remove(names.size() - 1);
+            } else {
+                names.add(name);
+            }
+        }
+        return "/" + String.join("/", names);
+    }
+
+    private static String name(String normalized) {
+        return normalized.substring(normalized.lastIndexOf('/') + 1);
+    }
+
+    private static String parent(String normalized) {
+        int slash = normalized.lastIndexOf('/');
+        return slash == 0 ? "/" : normalized.substring(0, slash);
+    }
+}
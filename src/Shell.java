@@ -1,6 +1,49 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class Shell {
+    private static final Pattern ECHO = Pattern.compile("echo\\s+(.*?)\\s*(>>?)\\s*(\\S+)");
+    private static final int DEFAULT_LINES = 10;
+    // Commands a script batches together, and how many go in one commit.
+    private static final Set<String> MUTATIONS = new HashSet<>(Arrays.asList("mkdir", "touch", "rm", "mv", "cp", "echo"));
+    private static final int BATCH_LIMIT = 10_000;
+    // Commands that act on the process or the host, which a network client
+    // must not reach.
+    private static final Set<String> LOCAL_ONLY = new HashSet<>(Arrays.asList("clear", "exit", "import", "export"));
+
+    /** Where a command line comes from, which decides what it may do and how its output looks. */
+    enum Mode {
+        /** Typed at the console, with colored output. */
+        INTERACTIVE,
+        /** Read from a script, with plain output. */
+        SCRIPT,
+        /** Sent by a network client, with plain output and none of {@link #LOCAL_ONLY}. */
+        REMOTE
+    }
 
     static void clear() {
         try {
@@ -18,7 +61,19 @@ public class Shell {
     }
 
     public static void main(String[] args) throws FSException {
+        if (args.length == 2 && args[0].equals("-f")) {
+            batch(args[1]);
+            return;
+        } else if (args.length == 2 && args[0].equals("-p")) {
+            Server.serve(args[1]);
+            return;
+        } else if (args.length > 0) {
+            System.out.println("Use: Shell [-f <script>|-] [-p <port>]");
+            return;
+        }
+
         FileSystemSimulator fs = new FileSystemSimulator();
+        Session session = fs.openSession();
         Scanner in = new Scanner(System.in);
         boolean running = true;
 
@@ -28,111 +83,601 @@ public class Shell {
 
         while (running) {
             System.out.print(Color.CYAN + "root@FileSystemSimulator: " + Color.RESET);
-            System.out.println(Color.YELLOW + fs.currentPath() + Color.RESET);
+            System.out.println(Color.YELLOW + session.currentPath() + Color.RESET);
             System.out.print("$ ");
 
             String input = in.nextLine().trim();
             if (input.isEmpty())
                 continue;
 
-            String[] parts = input.split("\\s+");
-            String command = parts[0];
-            String arg1 = parts.length > 1 ? parts[1] : null;
-            String arg2 = parts.length > 2 ? parts[2] : null;
+            running = execute(fs, session, System.out, input, Mode.INTERACTIVE);
+        }
+
+        in.close();
+    }
 
+    /**
+     * Runs a script, one command per line, from a file or from stdin when the
+     * path is "-". Nothing is echoed back and no colors are printed. Runs of
+     * consecutive mutations are committed together, up to BATCH_LIMIT at a
+     * time, instead of one journal sync per command; a command that only reads
+     * commits the run before it. Blank lines and lines starting with '#' are
+     * skipped.
+     */
+    static void batch(String script) throws FSException {
+        BufferedReader in;
+        try {
+            in = script.equals("-")
+                    ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                    : Files.newBufferedReader(Paths.get(script), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("Error while opening script." + e.getMessage());
+            return;
+        }
+
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16),
+                false);
+        FileSystemSimulator fs = new FileSystemSimulator();
+        try {
+            batch(fs, in, out);
+        } catch (IOException e) {
+            System.err.println("Error while reading script." + e.getMessage());
+        } finally {
+            fs.shutdown();
+            out.flush();
             try {
-                switch (command) {
-                    case "clear":
-                        clear();
-                        break;
-                    case "exit":
-                        running = false;
-                        fs.shutdown();
-                        System.out.println("Shutting down.");
-                        break;
-
-                    case "ls":
-                        if (arg1 != null && arg2 == null) {
-                            System.out.println(fs.listDirectory(arg1));
-                        } else if (arg1 == null) {
-                            System.out.println(fs.listDirectory());
-                        } else {
-                            System.out.println("Use: ls [path]");
-                        }
-                        break;
-
-                    case "mkdir":
-                        if (arg1 != null && arg2 == null) {
-                            fs.createDirectory(arg1);
-                        } else {
-                            System.out.println("Use: mkdir <path>");
-                        }
-                        break;
-
-                    case "touch":
-                        if (arg1 != null && arg2 == null) {
-                            fs.createFile(arg1);
-                        } else {
-                            System.out.println("Use: touch <path>");
-                        }
-                        break;
-
-                    case "cd":
-                        if (arg1 != null && arg2 == null) {
-                            fs.changeDirectory(arg1);
-                        } else {
-                            System.out.println("Use: 'cd <path>'");
-                        }
-                        break;
-
-                    case "rm":
-                        if (arg1 != null && arg2 == null) {
-                            fs.delete(arg1);
-                        } else {
-                            System.out.println("Use: 'rm <path>'");
-                        }
-                        break;
-
-                    case "mv":
-                        if (arg1 != null && arg2 != null) {
-                            fs.rename(arg1, arg2);
-                        } else {
-                            System.out.println("Use: mv <oldname> <newname>");
-                        }
-                        break;
-
-                    case "cp":
-                        if (arg1 != null && arg2 != null) {
-                            fs.copy(arg1, arg2);
-                        } else {
-                            System.out.println("Use: cp <src> <dst>");
-                        }
-                        break;
-
-                    case "help":
-                        System.out.println("Commands:");
-                        System.out.println("ls <path>      - List directory");
-                        System.out.println("mkdir <path>   - Create directory");
-                        System.out.println("touch <path>   - Create file");
-                        System.out.println("cd <path>      - Change directory");
-                        System.out.println("rm <path>      - Remove file or directory");
-                        System.out.println("mv <old> <new> - Rename file or directory");
-                        System.out.println("cp <src> <dst> - Copy file");
-                        System.out.println("clear          - Clear screen");
-                        System.out.println("exit           - Exit shell");
-                        break;
-
-                    default:
-                        System.out.printf("'%s' is not a valid command.", command);
-                        System.out.println();
-                        break;
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /** Runs a script in a session of its own on {@code fs}, writing the output to {@code out}. */
+    static void batch(FileSystemSimulator fs, BufferedReader in, PrintStream out) throws IOException {
+        Session session = fs.openSession();
+        int batched = 0;
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String input = line.trim();
+                if (input.isEmpty() || input.startsWith("#") || input.equals("clear"))
+                    continue;
+
+                String command = input.split("\\s+", 2)[0];
+                boolean mutation = MUTATIONS.contains(command);
+                if (batched > 0 && (!mutation && !command.equals("cd") || batched == BATCH_LIMIT)) {
+                    batched = 0;
+                    commit(fs, out);
                 }
-            } catch (FSException e) {
-                System.out.println(Color.RED + "Error: " + e.getMessage() + Color.RESET);
+                if (command.equals("exit"))
+                    break;
+                if (mutation) {
+                    if (batched == 0)
+                        fs.beginBatch();
+                    batched++;
+                }
+                execute(fs, session, out, input, Mode.SCRIPT);
             }
+        } finally {
+            if (batched > 0)
+                commit(fs, out);
+        }
+    }
 
+    /** Ends a script's batch, reporting a journal that couldn't commit it. */
+    private static void commit(FileSystemSimulator fs, PrintStream out) {
+        try {
+            fs.endBatch();
+        } catch (FSException e) {
+            out.println("Error: " + e.getMessage());
         }
+    }
 
-        in.close();
+    /**
+     * Runs one command line in {@code session}, printing its output to
+     * {@code out}; returns false once the shell should stop.
+     */
+    static boolean execute(FileSystemSimulator fs, Session session, PrintStream out, String input, Mode mode) {
+        String[] parts = input.split("\\s+");
+        String command = parts[0];
+        String arg1 = parts.length > 1 ? parts[1] : null;
+        String arg2 = parts.length > 2 ? parts[2] : null;
+        boolean color = mode == Mode.INTERACTIVE;
+
+        if (mode == Mode.REMOTE && LOCAL_ONLY.contains(command)) {
+            out.printf("'%s' is not available over the network.", command);
+            out.println();
+            return true;
+        }
+
+        try {
+            switch (command) {
+                case "clear":
+                    clear();
+                    break;
+                case "exit":
+                    fs.shutdown();
+                    out.println("Shutting down.");
+                    return false;
+
+                case "ls":
+                    ls(session, out, parts, color);
+                    break;
+
+                case "mkdir":
+                    if (arg1 != null && arg2 == null) {
+                        session.createDirectory(arg1);
+                    } else {
+                        out.println("Use: mkdir <path>");
+                    }
+                    break;
+
+                case "touch":
+                    if (arg1 != null && arg2 == null) {
+                        session.createFile(arg1);
+                    } else {
+                        out.println("Use: touch <path>");
+                    }
+                    break;
+
+                case "cd":
+                    if (arg1 != null && arg2 == null) {
+                        session.changeDirectory(arg1);
+                    } else {
+                        out.println("Use: 'cd <path>'");
+                    }
+                    break;
+
+                case "rm":
+                    if ("-r".equals(arg1) && arg2 != null && parts.length == 3) {
+                        session.delete(arg2);
+                    } else if (arg1 != null && arg2 == null) {
+                        session.delete(arg1);
+                    } else {
+                        out.println("Use: 'rm [-r] <path>'");
+                    }
+                    break;
+
+                case "du":
+                    if (arg2 == null) {
+                        out.println(session.diskUsage(arg1) + "\t" + (arg1 != null ? arg1 : "."));
+                    } else {
+                        out.println("Use: du [path]");
+                    }
+                    break;
+
+                case "tree":
+                    if (arg2 == null) {
+                        out.print(session.tree(arg1));
+                    } else {
+                        out.println("Use: tree [path]");
+                    }
+                    break;
+
+                case "find":
+                    find(session, out, parts);
+                    break;
+
+                case "mv":
+                    if (arg1 != null && arg2 != null) {
+                        session.rename(arg1, arg2);
+                    } else {
+                        out.println("Use: mv <oldname> <newname>");
+                    }
+                    break;
+
+                case "cp":
+                    if ("-r".equals(arg1) && arg2 != null && parts.length == 4) {
+                        session.copy(arg2, parts[3], true);
+                    } else if (arg1 != null && arg2 != null && parts.length == 3) {
+                        session.copy(arg1, arg2);
+                    } else {
+                        out.println("Use: cp [-r] <src> <dst>");
+                    }
+                    break;
+
+                case "cat":
+                    if (arg1 != null && arg2 == null) {
+                        cat(session, out, arg1);
+                    } else {
+                        out.println("Use: cat <path>");
+                    }
+                    break;
+
+                case "echo":
+                    echo(session, out, input);
+                    break;
+
+                case "head":
+                case "tail":
+                    int lines = DEFAULT_LINES;
+                    String path = arg1;
+                    if ("-n".equals(arg1) && arg2 != null && parts.length == 4) {
+                        lines = parseLines(arg2);
+                        path = parts[3];
+                    } else if (arg2 != null) {
+                        path = null;
+                    }
+
+                    if (path == null || lines < 0) {
+                        out.printf("Use: %s [-n <lines>] <path>", command);
+                        out.println();
+                    } else if (command.equals("head")) {
+                        head(session, out, path, lines);
+                    } else {
+                        tail(session, out, path, lines);
+                    }
+                    break;
+
+                case "sync":
+                    if (arg1 == null) {
+                        fs.sync();
+                    } else {
+                        out.println("Use: sync");
+                    }
+                    break;
+
+                case "snapshot":
+                    snapshot(fs, out, parts);
+                    break;
+
+                case "search":
+                    search(fs, out, parts);
+                    break;
+
+                case "import":
+                    if (arg1 != null && arg2 != null && parts.length == 3) {
+                        transfer(fs, session, out, true, arg1, arg2);
+                    } else {
+                        out.println("Use: import <host dir> <path>");
+                    }
+                    break;
+
+                case "export":
+                    if (arg1 != null && arg2 != null && parts.length == 3) {
+                        transfer(fs, session, out, false, arg1, arg2);
+                    } else {
+                        out.println("Use: export <path> <host dir>");
+                    }
+                    break;
+
+                case "stats":
+                    if (arg1 == null) {
+                        out.print(fs.metrics().format(color));
+                    } else {
+                        out.println("Use: stats");
+                    }
+                    break;
+
+                case "help":
+                    out.println("Commands:");
+                    out.println("ls [path] [--sort name|mtime|size] [-r]");
+                    out.println("   [--limit <n>] [--after <name>] - List directory");
+                    out.println("mkdir <path>   - Create directory");
+                    out.println("touch <path>   - Create file");
+                    out.println("cd <path>      - Change directory");
+                    out.println("rm [-r] <path> - Remove file or directory");
+                    out.println("du [path]      - Show total size of files");
+                    out.println("tree [path]    - Show directory tree");
+                    out.println("find [path] [-name <glob>] [-ext <ext>] [-type f|d]");
+                    out.println("     [-newer <yyyy-MM-dd>] [-older <yyyy-MM-dd>] - Search files");
+                    out.println("mv <old> <new> - Rename file or directory");
+                    out.println("cp <src> <dst> - Copy file");
+                    out.println("cp -r <src> <dst>     - Copy directory");
+                    out.println("cat <path>     - Print file content");
+                    out.println("echo <text> > <path>  - Write text to file");
+                    out.println("echo <text> >> <path> - Append text to file");
+                    out.println("head [-n N] <path>    - Print first lines of file");
+                    out.println("tail [-n N] <path>    - Print last lines of file");
+                    out.println("snapshot create|restore|delete <name> - Manage snapshots of the tree");
+                    out.println("snapshot list  - List snapshots");
+                    out.println("snapshot diff <name> [<other>] - Show changes since a snapshot");
+                    out.println("search [<words>] [--name <glob>] [--ext <ext>]");
+                    out.println("       [--since <yyyy-MM-dd>] [--before <yyyy-MM-dd>] - Search file contents and names");
+                    out.println("import <host dir> <path> - Copy a host directory into the tree");
+                    out.println("export <path> <host dir> - Copy a directory out to the host");
+                    out.println("sync           - Wait until all changes are on disk");
+                    out.println("stats          - Show operation latencies and sizes");
+                    out.println("clear          - Clear screen");
+                    out.println("exit           - Exit shell");
+                    break;
+
+                default:
+                    out.printf("'%s' is not a valid command.", command);
+                    out.println();
+                    break;
+            }
+        } catch (FSException | IllegalArgumentException e) {
+            error(out, color, e.getMessage());
+        } catch (UncheckedIOException e) {
+            error(out, color, e.getMessage() + " " + e.getCause().getMessage());
+        }
+        return true;
+    }
+
+    private static void error(PrintStream out, boolean color, String message) {
+        out.println(color ? Color.RED + "Error: " + message + Color.RESET : "Error: " + message);
+    }
+
+    static void cat(Session session, PrintStream out, String path) throws FSException {
+        FileHandle file = session.open(path, false);
+        try {
+            WritableByteChannel channel = Channels.newChannel(out);
+            file.transferTo(0, file.size(), channel);
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Error while reading file." + e.getMessage());
+        }
+    }
+
+    static void echo(Session session, PrintStream out, String input) throws FSException {
+        Matcher m = ECHO.matcher(input);
+        if (!m.matches()) {
+            out.println(unquote(input.substring(4).trim()));
+            return;
+        }
+
+        byte[] text = (unquote(m.group(1)) + "\n").getBytes(StandardCharsets.UTF_8);
+        FileHandle file = session.open(m.group(3), true);
+        if (m.group(2).equals(">>")) {
+            file.append(text);
+        } else {
+            file.truncate(0);
+            file.write(0, text);
+        }
+    }
+
+    /** Writes the file's bytes as they are, up to the end of the given line. */
+    static void head(Session session, PrintStream out, String path, int lines) throws FSException {
+        FileHandle file = session.open(path, false);
+        long size = file.size();
+        long end = 0;
+        int newlines = 0;
+        while (end < size && newlines < lines) {
+            byte[] chunk = file.read(end, (int) Math.min(4096, size - end));
+            int i = 0;
+            while (i < chunk.length && newlines < lines) {
+                if (chunk[i++] == '\n')
+                    newlines++;
+            }
+            out.write(chunk, 0, i);
+            end += i;
+        }
+        out.flush();
+    }
+
+    /** Reads backwards from the end of the file until enough lines are seen. */
+    static void tail(Session session, PrintStream out, String path, int lines) throws FSException {
+        FileHandle file = session.open(path, false);
+        long size = file.size();
+        long start = size;
+        // A trailing newline ends the last line rather than starting a new one.
+        int newlines = size > 0 && file.read(size - 1, 1)[0] == '\n' ? -1 : 0;
+
+        while (start > 0 && newlines < lines) {
+            int length = (int) Math.min(4096, start);
+            byte[] chunk = file.read(start - length, length);
+            int i = chunk.length;
+            while (i > 0 && newlines < lines) {
+                if (chunk[--i] == '\n')
+                    newlines++;
+            }
+            start -= length - i;
+            if (newlines == lines)
+                start++;
+        }
+
+        byte[] last = file.read(start, (int) (size - start));
+        out.write(last, 0, last.length);
+        out.flush();
+    }
+
+    static void ls(Session session, PrintStream out, String[] parts, boolean color) throws FSException {
+        String path = null;
+        ListOptions.Sort sort = ListOptions.Sort.NONE;
+        boolean reverse = false;
+        int limit = 0;
+        String after = null;
+        for (int i = 1; i < parts.length; i++) {
+            String option = parts[i];
+            String value = i + 1 < parts.length ? parts[i + 1] : null;
+            if (option.equals("-r")) {
+                reverse = true;
+            } else if (option.equals("--sort") && value != null) {
+                try {
+                    sort = ListOptions.Sort.valueOf(value.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    out.printf("'%s' is not a sort order (name, mtime, size).", value);
+                    out.println();
+                    return;
+                }
+                i++;
+            } else if (option.equals("--limit") && value != null) {
+                try {
+                    limit = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    limit = -1;
+                }
+                if (limit < 0) {
+                    out.printf("'%s' is not a valid limit.", value);
+                    out.println();
+                    return;
+                }
+                i++;
+            } else if (option.equals("--after") && value != null) {
+                after = value;
+                i++;
+            } else if (path == null && !option.startsWith("-")) {
+                path = option;
+            } else {
+                out.println("Use: ls [path] [--sort name|mtime|size] [-r] [--limit <n>] [--after <name>]");
+                return;
+            }
+        }
+
+        try {
+            String next = session.listDirectory(path, new ListOptions(sort, reverse, limit, after, color), out);
+            out.println();
+            if (next != null)
+                out.println("More entries: continue with --after " + next);
+        } catch (IOException e) {
+            System.err.println("Error while listing directory." + e.getMessage());
+        }
+    }
+
+    static void transfer(FileSystemSimulator fs, Session session, PrintStream out, boolean in, String from, String to)
+            throws FSException {
+        HostTransfer transfer = new HostTransfer(fs, session);
+        long started = System.nanoTime();
+        try {
+            long files = in ? transfer.importTree(Paths.get(from), to) : transfer.exportTree(from, Paths.get(to));
+            out.printf("%s %d files in %.1f s.", in ? "Imported" : "Exported", files,
+                    (System.nanoTime() - started) / 1e9);
+            out.println();
+        } catch (IOException | InvalidPathException e) {
+            System.err.println((in ? "Error while importing." : "Error while exporting.") + e.getMessage());
+        }
+    }
+
+    static void find(Session session, PrintStream out, String[] parts) throws FSException {
+        String path = null;
+        Predicate<FSNode> filter = node -> true;
+        int i = 1;
+        if (i < parts.length && !parts[i].startsWith("-"))
+            path = parts[i++];
+
+        for (; i < parts.length; i += 2) {
+            if (i + 1 >= parts.length) {
+                out.println("Use: find [path] [-name <glob>] [-ext <ext>] [-type f|d] "
+                        + "[-newer <yyyy-MM-dd>] [-older <yyyy-MM-dd>]");
+                return;
+            }
+            String value = parts[i + 1];
+            switch (parts[i]) {
+                case "-name":
+                    Pattern glob = Pattern.compile(SearchIndex.globToRegex(value));
+                    filter = filter.and(node -> glob.matcher(node.name()).matches());
+                    break;
+                case "-ext":
+                    filter = filter.and(node -> node instanceof FSFile
+                            && value.equalsIgnoreCase(((FSFile) node).getExtension()));
+                    break;
+                case "-type":
+                    String type = value.equals("d") ? "DIR" : "FILE";
+                    filter = filter.and(node -> node.getType().equals(type));
+                    break;
+                case "-newer":
+                case "-older":
+                    long time;
+                    try {
+                        time = startOfDay(value);
+                    } catch (DateTimeParseException e) {
+                        out.printf("'%s' is not a date (yyyy-MM-dd).", value);
+                        out.println();
+                        return;
+                    }
+                    filter = filter.and(parts[i].equals("-newer")
+                            ? node -> node.lastModified() >= time
+                            : node -> node.lastModified() < time);
+                    break;
+                default:
+                    out.printf("'%s' is not a valid option.", parts[i]);
+                    out.println();
+                    return;
+            }
+        }
+
+        session.find(path, filter).forEach(out::println);
+    }
+
+    /** Midnight, local time, starting a date given as yyyy-MM-dd, as {@code find} and {@code search} take it. */
+    private static long startOfDay(String date) {
+        return LocalDate.parse(date).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    static void snapshot(FileSystemSimulator fs, PrintStream out, String[] parts) throws FSException {
+        String action = parts.length > 1 ? parts[1] : "";
+        String name = parts.length > 2 ? parts[2] : null;
+        if (action.equals("list") && parts.length == 2) {
+            for (Map.Entry<String, Long> snapshot : fs.listSnapshots().entrySet()) {
+                out.println(FSNode.formatTime(snapshot.getValue()) + "   " + snapshot.getKey());
+            }
+        } else if (action.equals("create") && parts.length == 3) {
+            fs.createSnapshot(name);
+        } else if (action.equals("restore") && parts.length == 3) {
+            fs.restoreSnapshot(name);
+        } else if (action.equals("delete") && parts.length == 3) {
+            fs.deleteSnapshot(name);
+        } else if (action.equals("diff") && (parts.length == 3 || parts.length == 4)) {
+            fs.diffSnapshots(name, parts.length == 4 ? parts[3] : null).forEach(out::println);
+        } else {
+            out.println("Use: snapshot create|restore|delete <name>, snapshot list, snapshot diff <name> [<other>]");
+        }
+    }
+
+    static void search(FileSystemSimulator fs, PrintStream out, String[] parts) {
+        StringBuilder text = new StringBuilder();
+        String name = null;
+        String extension = null;
+        long since = 0;
+        long before = Long.MAX_VALUE;
+        for (int i = 1; i < parts.length; i++) {
+            String option = parts[i];
+            if (!option.startsWith("--")) {
+                text.append(option).append(' ');
+                continue;
+            }
+            if (i + 1 >= parts.length) {
+                out.println("Use: search [<words>] [--name <glob>] [--ext <ext>] "
+                        + "[--since <yyyy-MM-dd>] [--before <yyyy-MM-dd>]");
+                return;
+            }
+            String value = parts[++i];
+            switch (option) {
+                case "--name":
+                    name = unquote(value);
+                    break;
+                case "--ext":
+                    extension = value.startsWith(".") ? value.substring(1) : value;
+                    break;
+                case "--since":
+                case "--before":
+                    long time;
+                    try {
+                        time = startOfDay(value);
+                    } catch (DateTimeParseException e) {
+                        out.printf("'%s' is not a date (yyyy-MM-dd).", value);
+                        out.println();
+                        return;
+                    }
+                    if (option.equals("--since")) {
+                        since = time;
+                    } else {
+                        before = time;
+                    }
+                    break;
+                default:
+                    out.printf("'%s' is not a valid option.", option);
+                    out.println();
+                    return;
+            }
+        }
+
+        fs.search(new SearchQuery(text.toString(), name, extension, since, before)).forEach(out::println);
+    }
+
+    private static int parseLines(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String unquote(String text) {
+        if (text.length() >= 2 && (text.startsWith("\"") && text.endsWith("\"")
+                || text.startsWith("'") && text.endsWith("'")))
+            return text.substring(1, text.length() - 1);
+        return text;
     }
 }
@@ -0,0 +1,305 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Walks a subtree on a {@link ForkJoinPool}, one task per directory. Each task
+ * gathers its results into a container of its own; containers are merged back
+ * in listing order, so the outcome is the same as a sequential depth-first
+ * walk.
+ *
+ * A walk lists each directory as it is when reached, without locking, so it
+ * runs alongside mutations and is not a snapshot of the tree. Lazy copies
+ * are read through to their source rather than expanded, so a walk never
+ * copies anything. Inside a snapshot that means reading the live tree: each
+ * node read there is checked afterwards against the lazy copies it was
+ * reached through, and read again from the snapshot if one of them was
+ * expanded meanwhile, so the walk sees the tree as it was when the snapshot
+ * was taken however the live tree changes.
+ */
+public class TreeWalker {
+    // A join runs a subtask nobody stole on the joining thread's own stack, so
+    // a chain of directories nests one task per level. Below this many nested
+    // tasks the rest of a subtree is walked with an explicit stack instead.
+    private static final int MAX_NESTED_TASKS = 128;
+
+    private final ForkJoinPool pool;
+
+    public interface Visitor<A> {
+        A newContainer();
+
+        /**
+         * Visits a node before its children. Returns whether to descend into
+         * it; the result is ignored for files.
+         */
+        boolean visit(A into, FSNode node, String path, int depth);
+
+        /** Appends {@code part}, gathered after {@code into}, to it. */
+        void merge(A into, A part);
+    }
+
+    public TreeWalker(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public <A> A walk(FSNode start, String path, Visitor<A> visitor) {
+        Through through = start instanceof FSDirectory && ((FSDirectory) start).snapshotRoot() != null
+                ? new Through((FSDirectory) start)
+                : null;
+        return pool.invoke(new Walk<>(start, through, path, 0, 0, visitor));
+    }
+
+    static String childPath(String parent, String name) {
+        return parent.equals("/") ? "/" + name : parent + "/" + name;
+    }
+
+    private static class Walk<A> extends RecursiveTask<A> {
+        private static final long serialVersionUID = 1L;
+
+        private final FSNode node;
+        // Set inside a snapshot; the node is then read again through it.
+        private final Through through;
+        private final String path;
+        private final int depth;
+        private final int nesting;
+        private final Visitor<A> visitor;
+
+        Walk(FSNode node, Through through, String path, int depth, int nesting, Visitor<A> visitor) {
+            this.node = node;
+            this.through = through;
+            this.path = path;
+            this.depth = depth;
+            this.nesting = nesting;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected A compute() {
+            A result = visitor.newContainer();
+            Through at = through;
+            boolean descend = visitor.visit(result, node, path, depth);
+            while (at != null && !at.holds()) {
+                at = at.resolve();
+                result = visitor.newContainer();
+                if (at == null)
+                    return result;
+                descend = visitor.visit(result, at.node, path, depth);
+            }
+            FSNode dir = at == null ? node : at.node;
+            if (!descend || !(dir instanceof FSDirectory))
+                return result;
+            if (nesting >= MAX_NESTED_TASKS) {
+                walkSequentially(result, new Level(dir, at, path, depth));
+                return result;
+            }
+
+            // Files are visited in place. Each subdirectory is forked, and the
+            // files after it go into a fresh container so the order survives.
+            List<Walk<A>> forked = new ArrayList<>();
+            List<A> after = new ArrayList<>();
+            A current = result;
+            Level level = new Level(dir, at, path, depth);
+            while (level.next < level.children.size()) {
+                FSNode child = level.children.get(level.next);
+                String childPath = TreeWalker.childPath(path, child.name());
+                if (child instanceof FSFile) {
+                    visit(current, level, childPath);
+                    continue;
+                }
+                level.next++;
+                Through childThrough = level.through == null ? null : level.through.child(child);
+                Walk<A> task = new Walk<>(child, childThrough, childPath, depth + 1, nesting + 1, visitor);
+                task.fork();
+                forked.add(task);
+                current = visitor.newContainer();
+                after.add(current);
+            }
+
+            for (int i = 0; i < forked.size(); i++) {
+                visitor.merge(result, forked.get(i).join());
+                visitor.merge(result, after.get(i));
+            }
+            return result;
+        }
+
+        /** Walks below a directory depth first, on this thread. */
+        private void walkSequentially(A result, Level start) {
+            Deque<Level> stack = new ArrayDeque<>();
+            stack.push(start);
+            while (!stack.isEmpty()) {
+                Level level = stack.peek();
+                if (level.next >= level.children.size()) {
+                    stack.pop();
+                    continue;
+                }
+                String childPath = TreeWalker.childPath(level.path, level.children.get(level.next).name());
+                FSNode child = visit(result, level, childPath);
+                if (child != null)
+                    stack.push(new Level(child, level.through == null ? null : level.through.child(child), childPath,
+                            level.depth + 1));
+            }
+        }
+
+        /**
+         * Visits the next child of a level and moves past it; returns the
+         * child if the walk descends into it. Inside a snapshot the visit
+         * goes into a container of its own, kept only if what the child was
+         * read through still holds; if not, the level is listed again from
+         * the snapshot and the child visited again.
+         */
+        private FSNode visit(A into, Level level, String childPath) {
+            while (level.next < level.children.size()) {
+                FSNode child = level.children.get(level.next);
+                if (level.through == null) {
+                    level.next++;
+                    boolean descend = visitor.visit(into, child, childPath, level.depth + 1);
+                    return descend && child instanceof FSDirectory ? child : null;
+                }
+                A part = visitor.newContainer();
+                boolean descend = visitor.visit(part, child, childPath, level.depth + 1);
+                if (level.through.holds()) {
+                    level.next++;
+                    visitor.merge(into, part);
+                    return descend && child instanceof FSDirectory ? child : null;
+                }
+                level.relist();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A directory inside a snapshot as a walk reached it: the names leading
+     * to it from the directory the walk started at, and each lazy copy on the
+     * way with the source it was read through. The directory holds the
+     * snapshot's content for as long as every one of them is still a copy of
+     * that source: a source expands its copies before anything under it
+     * changes.
+     */
+    private static final class Through {
+        final FSDirectory top;
+        final List<String> names;
+        final List<FSDirectory[]> copies;
+        final FSNode node;
+
+        Through(FSDirectory top) {
+            this(top, List.of(), List.of(), top);
+        }
+
+        private Through(FSDirectory top, List<String> names, List<FSDirectory[]> copies, FSNode node) {
+            this.top = top;
+            this.names = names;
+            this.copies = copies;
+            this.node = node;
+        }
+
+        boolean holds() {
+            for (FSDirectory[] copy : copies) {
+                if (copy[0].contentSource() != copy[1])
+                    return false;
+            }
+            return true;
+        }
+
+        /** Where a child listed by {@link #list} is reached. */
+        Through child(FSNode child) {
+            List<String> childNames = new ArrayList<>(names.size() + 1);
+            childNames.addAll(names);
+            childNames.add(child.name());
+            return new Through(top, childNames, copies, child);
+        }
+
+        /** This directory's children, read from the source of a lazy copy. */
+        List<FSNode> list() {
+            return ((FSDirectory) node).contentSource().children();
+        }
+
+        /** Notes the source {@link #list} reads if this directory is a lazy copy. */
+        Through listed() {
+            FSDirectory dir = (FSDirectory) node;
+            FSDirectory source = dir.contentSource();
+            if (source == dir)
+                return this;
+            List<FSDirectory[]> passed = new ArrayList<>(copies);
+            passed.add(new FSDirectory[] { dir, source });
+            return new Through(top, names, passed, node);
+        }
+
+        /**
+         * The same node, found again by its names from where the walk started;
+         * null if it is gone, because the snapshot was deleted.
+         */
+        Through resolve() {
+            while (true) {
+                List<FSDirectory[]> passed = new ArrayList<>();
+                FSNode at = top;
+                for (String name : names) {
+                    if (!(at instanceof FSDirectory))
+                        break;
+                    FSDirectory dir = (FSDirectory) at;
+                    FSDirectory source = dir.contentSource();
+                    if (source != dir)
+                        passed.add(new FSDirectory[] { dir, source });
+                    at = source.getChildByName(name);
+                }
+                Through found = new Through(top, names, passed, at);
+                // A name missing, or a file where a directory was, means the
+                // live tree changed while it was read; the copies have been
+                // expanded since, so the next try reads the snapshot's own.
+                if (!found.holds())
+                    continue;
+                return at != null && at.getType().equals(node.getType()) ? found : null;
+            }
+        }
+    }
+
+    /** A directory being listed by a walk, and how far it got. */
+    private static class Level {
+        List<FSNode> children;
+        Through through;
+        final String path;
+        final int depth;
+        int next;
+
+        Level(FSNode dir, Through through, String path, int depth) {
+            this.path = path;
+            this.depth = depth;
+            if (through == null) {
+                children = children((FSDirectory) dir);
+            } else {
+                this.through = through.listed();
+                children = this.through.list();
+            }
+        }
+
+        /**
+         * Lists the directory again from the snapshot, after something it was
+         * read through was expanded. The snapshot doesn't change, so its
+         * children come in the same order and the walk carries on where it was.
+         */
+        void relist() {
+            Through found = through.resolve();
+            if (found == null) {
+                children = List.of();
+                return;
+            }
+            through = found.listed();
+            children = through.list();
+        }
+
+        private static List<FSNode> children(FSDirectory dir) {
+            while (true) {
+                FSDirectory content = dir.contentSource();
+                List<FSNode> children = content.children();
+                // A source expands its copies before it changes. If this one
+                // was expanded meanwhile, the source may have changed since,
+                // so list the copy itself instead.
+                if (dir.contentSource() == content)
+                    return children;
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The block device on its own: growing past its first size and its inode
+ * table, and sharing blocks between copies and identical content.
+ */
+class BlockDeviceTest {
+    private static final int BLOCK = BlockDevice.BLOCK_SIZE;
+    // Room for a few dozen data blocks and 16 inodes once formatted.
+    private static final long SMALL = 64 * BLOCK;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void growsAsFilesNeedRoom() throws Exception {
+        Path image = directory.resolve("blocks.img");
+        List<Integer> inodes = new ArrayList<>();
+        byte[] large = blocks(1, 300);
+        try (BlockDevice disk = new BlockDevice(image, SMALL)) {
+            int big = disk.allocateInode();
+            disk.write(big, 0, ByteBuffer.wrap(large));
+            inodes.add(big);
+            // More files than the first inode table holds.
+            for (int i = 0; i < 100; i++) {
+                int inode = disk.allocateInode();
+                disk.write(inode, 0, ByteBuffer.wrap(blocks(1000 + i, 1)));
+                inodes.add(inode);
+            }
+            assertTrue(disk.capacity() > SMALL);
+            check(disk, inodes, large);
+        }
+
+        try (BlockDevice disk = new BlockDevice(image, SMALL)) {
+            check(disk, inodes, large);
+        }
+    }
+
+    @Test
+    void storesIdenticalBlocksOnce() throws Exception {
+        try (BlockDevice disk = new BlockDevice(directory.resolve("blocks.img"), SMALL)) {
+            byte[] content = blocks(1, 4);
+            int a = disk.allocateInode();
+            int b = disk.allocateInode();
+            disk.write(a, 0, ByteBuffer.wrap(content));
+            disk.write(b, 0, ByteBuffer.wrap(content));
+            assertEquals(8 * BLOCK, disk.logicalBytes());
+            assertEquals(4 * BLOCK, disk.storedBytes());
+            assertTrue(disk.sameContent(a, b));
+
+            // Writing one of them leaves the other as it was.
+            disk.write(b, BLOCK + 10, ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+            assertEquals(5 * BLOCK, disk.storedBytes());
+            assertArrayEquals(content, read(disk, a));
+            assertFalse(disk.sameContent(a, b));
+
+            // Writing the same bytes back shares the block again.
+            disk.write(b, BLOCK, ByteBuffer.wrap(content, BLOCK, BLOCK));
+            assertEquals(4 * BLOCK, disk.storedBytes());
+            assertArrayEquals(content, read(disk, b));
+
+            disk.freeInode(a);
+            assertArrayEquals(content, read(disk, b));
+            assertEquals(4 * BLOCK, disk.storedBytes());
+        }
+    }
+
+    @Test
+    void copiesShareBlocksUntilWritten() throws Exception {
+        try (BlockDevice disk = new BlockDevice(directory.resolve("blocks.img"), SMALL)) {
+            byte[] content = blocks(1, 3);
+            int original = disk.allocateInode();
+            disk.write(original, 0, ByteBuffer.wrap(content));
+            int copy = disk.copy(original);
+            assertEquals(3 * BLOCK, disk.storedBytes());
+            assertTrue(disk.sameContent(original, copy));
+
+            byte[] changed = content.clone();
+            changed[2 * BLOCK] = (byte) ~changed[2 * BLOCK];
+            disk.write(copy, 2 * BLOCK, ByteBuffer.wrap(changed, 2 * BLOCK, 1));
+            assertEquals(4 * BLOCK, disk.storedBytes());
+            assertArrayEquals(content, read(disk, original));
+            assertArrayEquals(changed, read(disk, copy));
+
+            // Cutting a shared block clears its tail in the copy only.
+            disk.truncate(copy, BLOCK / 2);
+            assertArrayEquals(content, read(disk, original));
+            disk.truncate(copy, BLOCK);
+            byte[] cut = new byte[BLOCK];
+            System.arraycopy(content, 0, cut, 0, BLOCK / 2);
+            assertArrayEquals(cut, read(disk, copy));
+        }
+    }
+
+    private static void check(BlockDevice disk, List<Integer> inodes, byte[] large) {
+        assertArrayEquals(large, read(disk, inodes.get(0)));
+        for (int i = 1; i < inodes.size(); i++) {
+            assertArrayEquals(blocks(1000 + i - 1, 1), read(disk, inodes.get(i)));
+        }
+    }
+
+    /** {@code count} blocks, each filled with bytes no other block of the tests has. */
+    static byte[] blocks(int first, int count) {
+        ByteBuffer bytes = ByteBuffer.allocate(count * BLOCK);
+        for (int block = first; block < first + count; block++) {
+            for (int i = 0; i < BLOCK / Integer.BYTES; i++) {
+                bytes.putInt(block * 31 + i);
+            }
+        }
+        return bytes.array();
+    }
+
+    static byte[] read(BlockDevice disk, int inode) {
+        ByteBuffer content = ByteBuffer.allocate((int) disk.size(inode));
+        for (ByteBuffer view : disk.read(inode, 0, content.capacity())) {
+            content.put(view);
+        }
+        return content.array();
+    }
+}
@@ -0,0 +1,91 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Child maps checked against a LinkedHashMap through random adds, renames in
+ * place and removals, across the switch between the array and the trie, and
+ * with names whose hashes collide.
+ */
+class ChildMapTest {
+    // "Aa" and "BB" hash alike, so all of these do too.
+    private static final List<String> COLLIDING = List.of("AaAa", "AaBB", "BBAa", "BBBB");
+
+    @Test
+    void matchesALinkedHashMap() {
+        Random random = new Random(42);
+        Map<String, FSNode> expected = new LinkedHashMap<>();
+        ChildMap map = ChildMap.EMPTY;
+        for (int step = 0; step < 20_000; step++) {
+            // Grows to a few hundred children, then drains now and again.
+            boolean drain = step % 5000 >= 4000 && !expected.isEmpty();
+            String name = drain
+                    ? new ArrayList<>(expected.keySet()).get(random.nextInt(expected.size()))
+                    : random.nextInt(10) == 0
+                            ? COLLIDING.get(random.nextInt(COLLIDING.size()))
+                            : "n" + random.nextInt(400);
+            FSNode present = expected.get(name);
+            if (present != null && (drain || random.nextBoolean())) {
+                expected.remove(name);
+                map = map.without(present);
+            } else {
+                FSNode node = new FSFile(name, null);
+                expected.put(name, node);
+                map = map.with(node);
+            }
+            if (step % 97 == 0 || expected.size() < 10)
+                check(expected, map);
+        }
+        check(expected, map);
+    }
+
+    @Test
+    void leavesOldVersionsAsTheyWere() {
+        ChildMap map = ChildMap.EMPTY;
+        List<ChildMap> versions = new ArrayList<>();
+        List<FSNode> nodes = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            versions.add(map);
+            FSNode node = new FSFile("n" + i, null);
+            nodes.add(node);
+            map = map.with(node);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(nodes.subList(0, i), versions.get(i).list());
+        }
+
+        ChildMap full = map;
+        for (FSNode node : nodes) {
+            map = map.without(node);
+        }
+        assertEquals(0, map.size());
+        assertEquals(List.of(), map.list());
+        assertEquals(nodes, full.list());
+        assertSame(full, full.without(new FSFile("n0", null)));
+    }
+
+    private static void check(Map<String, FSNode> expected, ChildMap map) {
+        List<FSNode> ordered = new ArrayList<>(expected.values());
+        assertEquals(expected.size(), map.size());
+        assertEquals(ordered, map.list());
+        for (int i = 0; i < ordered.size(); i++) {
+            FSNode node = ordered.get(i);
+            assertSame(node, map.get(node.name()));
+            assertEquals(i, map.indexOf(node.name()));
+        }
+        assertNull(map.get("missing"));
+        assertEquals(-1, map.indexOf("missing"));
+
+        List<FSNode> sorted = new ArrayList<>(ordered);
+        sorted.sort((a, b) -> a.name().compareTo(b.name()));
+        assertEquals(sorted, map.byName());
+    }
+}
@@ -0,0 +1,127 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Many sessions mutating the tree at once, each in a directory of its own
+ * and all in one shared directory, while readers list and walk the tree.
+ * Afterwards, and again after a remount, every session's work must be there
+ * exactly as it left it.
+ */
+class ConcurrencyStressTest {
+    private static final int WRITERS = 16;
+    private static final int READERS = 4;
+    private static final int OPERATIONS = 200;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void concurrentSessionsKeepTheirWork() throws Exception {
+        FileSystemSimulator fs = new FileSystemSimulator(directory, 1);
+        fs.createDirectory("/shared");
+        List<Map<String, byte[]>> expected = new ArrayList<>();
+        for (int i = 0; i < WRITERS; i++) {
+            expected.add(new HashMap<>());
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(WRITERS + READERS);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        List<Future<?>> writers = new ArrayList<>();
+        List<Future<?>> readers = new ArrayList<>();
+        try {
+            for (int i = 0; i < WRITERS; i++) {
+                int writer = i;
+                writers.add(pool.submit(() -> {
+                    write(fs.openSession(), writer, expected.get(writer));
+                    return null;
+                }));
+            }
+            for (int i = 0; i < READERS; i++) {
+                readers.add(pool.submit(() -> {
+                    Session session = fs.openSession();
+                    while (writing.get()) {
+                        session.listDirectory("/shared");
+                        session.find("/", node -> node instanceof FSFile);
+                        session.diskUsage("/");
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+        } finally {
+            writing.set(false);
+            pool.shutdown();
+        }
+        for (Future<?> reader : readers) {
+            reader.get();
+        }
+
+        check(fs, expected);
+        fs.shutdown();
+
+        FileSystemSimulator remounted = new FileSystemSimulator(directory, 0);
+        try {
+            check(remounted, expected);
+        } finally {
+            remounted.shutdown();
+        }
+    }
+
+    /** One session's work: files and directories in its own directory, and files in the shared one. */
+    private static void write(Session session, int writer, Map<String, byte[]> expected) throws FSException {
+        String home = "/w" + writer;
+        session.createDirectory(home);
+        session.changeDirectory(home);
+        for (int k = 0; k < OPERATIONS; k++) {
+            byte[] content = TestFiles.bytes("writer " + writer + " file " + k);
+            session.createFile("f" + k);
+            session.open("f" + k, false).write(0, content);
+            String name = "f" + k;
+            if (k % 5 == 0) {
+                session.rename(name, "r" + k);
+                name = "r" + k;
+            }
+            if (k % 7 == 0) {
+                session.delete(name);
+            } else {
+                expected.put(home + "/" + name, content);
+            }
+            if (k % 3 == 0) {
+                session.createDirectory("d" + k);
+                session.createFile("d" + k + "/g");
+                expected.put(home + "/d" + k + "/g", new byte[0]);
+            }
+            session.createFile("/shared/w" + writer + "-" + k);
+        }
+        assertEquals(home, session.currentPath());
+    }
+
+    private static void check(FileSystemSimulator fs, List<Map<String, byte[]>> expected) throws FSException {
+        Session session = fs.openSession();
+        for (int i = 0; i < WRITERS; i++) {
+            Map<String, byte[]> files = expected.get(i);
+            List<String> found = session.find("/w" + i, node -> node instanceof FSFile);
+            assertEquals(files.keySet(), new HashSet<>(found));
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                assertArrayEquals(file.getValue(), TestFiles.read(session, file.getKey()), file.getKey());
+            }
+        }
+        assertEquals(WRITERS * OPERATIONS, session.find("/shared", node -> node instanceof FSFile).size());
+    }
+}
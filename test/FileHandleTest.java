@@ -0,0 +1,34 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Opening files, and creating them on open. */
+class FileHandleTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void createsOnOpenOrSaysWhyItCant() throws Exception {
+        FileSystemSimulator fs = new FileSystemSimulator(directory, 0);
+        try {
+            TestFiles.write(fs, "/kept", "content");
+            fs.createSnapshot("s");
+
+            // A file that is there already is opened, not created again.
+            assertArrayEquals(TestFiles.bytes("content"), fs.open("/kept", true).read(0, 100));
+            assertEquals(0, fs.open("/new", true).size());
+
+            FSException name = assertThrows(FSException.class, () -> fs.open("/a?b", true));
+            assertEquals("'a?b' is not a valid name.", name.getMessage());
+            FSException snapshot = assertThrows(FSException.class, () -> fs.open(":s/new", true));
+            assertEquals("Snapshot 's' is read-only.", snapshot.getMessage());
+        } finally {
+            fs.shutdown();
+        }
+    }
+}
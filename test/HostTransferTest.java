@@ -0,0 +1,72 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Trees imported from the host, kept across a restart, and exported back. */
+class HostTransferTest {
+    private static final int SMALL_FILES = 150;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void importsAndExportsATree() throws Exception {
+        Path host = directory.resolve("host");
+        Files.createDirectories(host.resolve("sub/nested"));
+        Files.write(host.resolve("a.txt"), TestFiles.bytes("alpha"));
+        // Large enough to be mapped rather than read.
+        byte[] large = new byte[200 * 1024];
+        new Random(7).nextBytes(large);
+        Files.write(host.resolve("sub/large.bin"), large);
+        Files.write(host.resolve("sub/empty"), new byte[0]);
+        for (int i = 0; i < SMALL_FILES; i++) {
+            Files.write(host.resolve("sub/small-" + i), TestFiles.bytes("small " + i));
+        }
+        long files = 3 + SMALL_FILES;
+
+        Path data = Files.createDirectories(directory.resolve("fs"));
+        FileSystemSimulator fs = new FileSystemSimulator(data, 0);
+        try {
+            HostTransfer transfer = new HostTransfer(fs, fs.openSession());
+            assertEquals(files, transfer.importTree(host, "/in"));
+            // Names already there stop a second import.
+            assertThrows(FSException.class, () -> transfer.importTree(host, "/in"));
+        } finally {
+            fs.shutdown();
+        }
+
+        FileSystemSimulator mounted = new FileSystemSimulator(data, 0);
+        try {
+            assertArrayEquals(TestFiles.bytes("alpha"), TestFiles.read(mounted, "/in/a.txt"));
+            assertArrayEquals(large, TestFiles.read(mounted, "/in/sub/large.bin"));
+            assertEquals("DIR", mounted.typeOf("/in/sub/nested"));
+
+            Path out = directory.resolve("out");
+            HostTransfer transfer = new HostTransfer(mounted, mounted.openSession());
+            assertEquals(files, transfer.exportTree("/in", out));
+            assertArrayEquals(TestFiles.bytes("alpha"), Files.readAllBytes(out.resolve("a.txt")));
+            assertArrayEquals(large, Files.readAllBytes(out.resolve("sub/large.bin")));
+            assertEquals(0, Files.size(out.resolve("sub/empty")));
+            assertTrue(Files.isDirectory(out.resolve("sub/nested")));
+            for (int i = 0; i < SMALL_FILES; i++) {
+                assertArrayEquals(TestFiles.bytes("small " + i), Files.readAllBytes(out.resolve("sub/small-" + i)));
+            }
+
+            // A single file goes by itself, into the directory named.
+            assertEquals(1, transfer.exportTree("/in/a.txt", directory.resolve("one")));
+            assertArrayEquals(TestFiles.bytes("alpha"), Files.readAllBytes(directory.resolve("one/a.txt")));
+            assertEquals(1, transfer.importTree(host.resolve("a.txt"), "/single"));
+            assertArrayEquals(TestFiles.bytes("alpha"), TestFiles.read(mounted, "/single/a.txt"));
+        } finally {
+            mounted.shutdown();
+        }
+    }
+}
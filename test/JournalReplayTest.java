@@ -0,0 +1,206 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A file system stopped without a shutdown comes back, from its last
+ * checkpoint and its journal, with every mutation that returned. The crash
+ * is simulated by copying the files of a live simulator and mounting the
+ * copy.
+ */
+class JournalReplayTest {
+    @TempDir
+    Path directory;
+
+    @TempDir
+    Path crashed;
+
+    @Test
+    void replaysMutationsAfterTheCheckpoint() throws Exception {
+        FileSystemSimulator fs = new FileSystemSimulator(directory, 0);
+        try {
+            mutate(fs);
+            fs.sync();
+            TestFiles.copy(directory, crashed);
+        } finally {
+            fs.shutdown();
+        }
+
+        FileSystemSimulator replayed = new FileSystemSimulator(crashed, 0);
+        try {
+            check(replayed);
+        } finally {
+            replayed.shutdown();
+        }
+    }
+
+    @Test
+    void ignoresATornRecordAtTheEnd() throws Exception {
+        FileSystemSimulator fs = new FileSystemSimulator(directory, 0);
+        try {
+            mutate(fs);
+            fs.sync();
+            TestFiles.copy(directory, crashed);
+        } finally {
+            fs.shutdown();
+        }
+        // Half a frame, as a crash in the middle of an append leaves it.
+        Files.write(crashed.resolve(".journal"), new byte[] { 0, 0, 0, 42, 1, 2, 3 }, StandardOpenOption.APPEND);
+
+        FileSystemSimulator replayed = new FileSystemSimulator(crashed, 0);
+        try {
+            check(replayed);
+        } finally {
+            replayed.shutdown();
+        }
+    }
+
+    @Test
+    void failsOnACorruptSealedSegment() throws Exception {
+        FileSystemSimulator fs = new FileSystemSimulator(directory, 0);
+        try {
+            mutate(fs);
+            fs.sync();
+            TestFiles.copy(directory, crashed);
+        } finally {
+            fs.shutdown();
+        }
+        // Sealed as a checkpoint does, and then damaged in the middle.
+        Path active = crashed.resolve(".journal");
+        long generation = ByteBuffer.wrap(Files.readAllBytes(active), Integer.BYTES, Long.BYTES).getLong();
+        Path sealed = crashed.resolve(".journal." + generation);
+        Files.move(active, sealed);
+        byte[] log = Files.readAllBytes(sealed);
+        log[log.length / 2] ^= 1;
+        Files.write(sealed, log);
+
+        assertThrows(UncheckedIOException.class, () -> new FileSystemSimulator(crashed, 0));
+    }
+
+    @Test
+    void replaysAnOpenBatchOthersBuiltOn() throws Exception {
+        FileSystemSimulator fs = new FileSystemSimulator(directory, 0);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread batch = null;
+        try {
+            batch = openBatch(fs, "/imported", done);
+            fs.openSession().createFile("/imported/x");
+            fs.sync();
+            TestFiles.copy(directory, crashed);
+        } finally {
+            done.countDown();
+            if (batch != null)
+                batch.join();
+            fs.shutdown();
+        }
+
+        FileSystemSimulator replayed = new FileSystemSimulator(crashed, 0);
+        try {
+            assertEquals("DIR", replayed.typeOf("/imported"));
+            assertEquals("FILE", replayed.typeOf("/imported/x"));
+        } finally {
+            replayed.shutdown();
+        }
+    }
+
+    @Test
+    void cutsOffWhatFollowsTheLastCommit(@TempDir Path again) throws Exception {
+        FileSystemSimulator fs = new FileSystemSimulator(directory, 0);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread batch = null;
+        try {
+            fs.createDirectory("/kept");
+            batch = openBatch(fs, "/pending", done);
+            // On disk, but not committed.
+            fs.sync();
+            TestFiles.copy(directory, crashed);
+        } finally {
+            done.countDown();
+            if (batch != null)
+                batch.join();
+            fs.shutdown();
+        }
+
+        FileSystemSimulator replayed = new FileSystemSimulator(crashed, 0);
+        try {
+            assertEquals("DIR", replayed.typeOf("/kept"));
+            assertNull(replayed.typeOf("/pending"));
+            // A commit after the cut must not bring it back.
+            replayed.createDirectory("/later");
+            TestFiles.copy(crashed, again);
+        } finally {
+            replayed.shutdown();
+        }
+
+        FileSystemSimulator remounted = new FileSystemSimulator(again, 0);
+        try {
+            assertEquals("DIR", remounted.typeOf("/later"));
+            assertNull(remounted.typeOf("/pending"));
+        } finally {
+            remounted.shutdown();
+        }
+    }
+
+    /**
+     * Creates {@code path} in a batch on another thread, and keeps the batch
+     * open until {@code done} is counted down.
+     */
+    private static Thread openBatch(FileSystemSimulator fs, String path, CountDownLatch done) throws Exception {
+        CountDownLatch created = new CountDownLatch(1);
+        Thread batch = new Thread(() -> {
+            fs.beginBatch();
+            try {
+                fs.createDirectory(path);
+                created.countDown();
+                done.await();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            } finally {
+                try {
+                    fs.endBatch();
+                } catch (FSException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        batch.start();
+        created.await();
+        return batch;
+    }
+
+    private static void mutate(FileSystemSimulator fs) throws FSException {
+        fs.createDirectory("/docs");
+        fs.createDirectory("/docs/old");
+        fs.createFile("/docs/a.txt");
+        fs.open("/docs/a.txt", false).write(0, TestFiles.bytes("first version"));
+        fs.open("/docs/a.txt", false).write(6, TestFiles.bytes("VERSION"));
+        fs.createFile("/docs/b.txt");
+        fs.open("/docs/b.txt", false).write(0, TestFiles.bytes("to be truncated"));
+        fs.open("/docs/b.txt", false).truncate(5);
+        fs.createFile("/docs/old/c.txt");
+        fs.rename("/docs/old/c.txt", "/docs/c.txt");
+        fs.copy("/docs/a.txt", "/docs/old/a-copy.txt");
+        fs.createFile("/gone.txt");
+        fs.delete("/gone.txt");
+    }
+
+    private static void check(FileSystemSimulator fs) throws FSException {
+        assertArrayEquals(TestFiles.bytes("first VERSION"), TestFiles.read(fs, "/docs/a.txt"));
+        assertArrayEquals(TestFiles.bytes("to be"), TestFiles.read(fs, "/docs/b.txt"));
+        assertArrayEquals(TestFiles.bytes("first VERSION"), TestFiles.read(fs, "/docs/old/a-copy.txt"));
+        assertEquals("FILE", fs.typeOf("/docs/c.txt"));
+        assertNull(fs.typeOf("/docs/old/c.txt"));
+        assertNull(fs.typeOf("/gone.txt"));
+    }
+}
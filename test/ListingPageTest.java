@@ -0,0 +1,87 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Listings read a page at a time, resuming after the last name of each. */
+class ListingPageTest {
+    // The name starts after the type, the time and the spaces between them.
+    private static final int NAME = 4 + 3 + 19 + 3;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void pagesMatchTheWholeListing() throws Exception {
+        FileSystemSimulator fs = new FileSystemSimulator(directory, 0);
+        try {
+            fs.createDirectory("/d");
+            for (int i = 0; i < 50; i++) {
+                // Created out of name order, with sizes that tie.
+                TestFiles.write(fs, "/d/f" + (i * 37 % 50), "x".repeat(i % 5));
+            }
+            for (ListOptions.Sort sort : ListOptions.Sort.values()) {
+                for (boolean reverse : new boolean[] { false, true }) {
+                    List<String> whole = new ArrayList<>();
+                    assertNull(page(fs, new ListOptions(sort, reverse, 0, null, false), whole));
+                    assertEquals(50, whole.size());
+
+                    List<String> paged = new ArrayList<>();
+                    String after = null;
+                    do {
+                        after = page(fs, new ListOptions(sort, reverse, 7, after, false), paged);
+                    } while (after != null);
+                    assertEquals(whole, paged, sort + (reverse ? " reversed" : ""));
+                }
+            }
+        } finally {
+            fs.shutdown();
+        }
+    }
+
+    @Test
+    void resumesByNameAfterTheCursorIsGone() throws Exception {
+        FileSystemSimulator fs = new FileSystemSimulator(directory, 0);
+        try {
+            fs.createDirectory("/d");
+            for (String name : new String[] { "a", "b", "c", "d", "e" }) {
+                fs.createFile("/d/" + name);
+            }
+            List<String> names = new ArrayList<>();
+            String after = page(fs, new ListOptions(ListOptions.Sort.NAME, false, 2, null, false), names);
+            assertEquals("b", after);
+            fs.delete("/d/b");
+            page(fs, new ListOptions(ListOptions.Sort.NAME, false, 2, after, false), names);
+            assertEquals(List.of("a", "b", "c", "d"), names);
+
+            names.clear();
+            page(fs, new ListOptions(ListOptions.Sort.NAME, true, 2, "b", false), names);
+            assertEquals(List.of("a"), names);
+
+            // Insertion order has to find the cursor to know where it was.
+            assertThrows(FSException.class,
+                    () -> page(fs, new ListOptions(ListOptions.Sort.NONE, false, 2, "b", false), new ArrayList<>()));
+        } finally {
+            fs.shutdown();
+        }
+    }
+
+    /** Lists a page of /d into {@code names}; returns where the next one starts. */
+    private static String page(FileSystemSimulator fs, ListOptions options, List<String> names) throws Exception {
+        StringBuilder out = new StringBuilder();
+        String next = fs.listDirectory("/d", options, out);
+        List<String> lines = Arrays.asList(out.toString().split("\n"));
+        // A blank line, the directory, another blank line and the header come first.
+        for (String row : lines.subList(Math.min(lines.size(), 5), lines.size())) {
+            names.add(row.substring(NAME));
+        }
+        return next;
+    }
+}
@@ -0,0 +1,99 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** The server's protocol, as a remote shard and a raw client speak it. */
+class ServerTest {
+    @TempDir
+    Path directory;
+
+    private FileSystemSimulator fs;
+    private Server server;
+
+    @BeforeEach
+    void start() throws Exception {
+        fs = new FileSystemSimulator(directory, 0);
+        server = new Server(fs, 0);
+        server.start();
+    }
+
+    @AfterEach
+    void stop() {
+        server.close();
+        fs.shutdown();
+    }
+
+    @Test
+    void servesAShard() throws Exception {
+        try (RemoteShard shard = new RemoteShard(server.port())) {
+            // Larger than any buffer on the way, and not all text.
+            byte[] content = new byte[3 * 1024 * 1024 + 17];
+            for (int i = 0; i < content.length; i++) {
+                content[i] = (byte) (i * 31);
+            }
+            shard.createDirectory("/d");
+            shard.write("/d/big", content);
+            shard.write("/d/empty", new byte[0]);
+
+            assertArrayEquals(content, shard.read("/d/big"));
+            assertArrayEquals(new byte[0], shard.read("/d/empty"));
+            assertEquals("DIR", shard.type("/d"));
+            assertEquals("FILE", shard.type("/d/big"));
+            assertNull(shard.type("/d/missing"));
+            assertThrows(FSException.class, () -> shard.read("/d/missing"));
+            assertThrows(FSException.class, () -> shard.read("/d"));
+
+            List<Shard.Entry> entries = shard.list("/d");
+            assertEquals(2, entries.size());
+            assertEquals("big", entries.get(0).name);
+            assertEquals("FILE", entries.get(0).type);
+            assertEquals("empty", entries.get(1).name);
+            // The connection is still in step after the errors.
+            assertArrayEquals(content, shard.read("/d/big"));
+        }
+    }
+
+    @Test
+    void answersPipelinedRequestsInOrder() throws Exception {
+        TestFiles.write(fs, "/f", "content");
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.port())) {
+            OutputStream out = socket.getOutputStream();
+            out.write("read /f\nmkdir /d\nread /missing\nstat /d\nexit\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            assertEquals("+content", response(in));
+            assertEquals("", response(in));
+            assertTrue(response(in).startsWith("-"));
+            assertEquals("+DIR", response(in));
+            assertEquals(-1, in.read());
+        }
+        assertEquals("DIR", fs.openSession().typeOf("/d"));
+    }
+
+    /** Reads a length line and that many bytes. */
+    private static String response(InputStream in) throws Exception {
+        StringBuilder length = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            length.append((char) b);
+        }
+        byte[] bytes = in.readNBytes(Integer.parseInt(length.toString()));
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
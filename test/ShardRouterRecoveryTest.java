@@ -0,0 +1,111 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Moves between shards, and a router reopened after a crash in the middle of
+ * one: a move that was decided is finished, one that wasn't is undone. The
+ * crash is set up by staging a copy on the destination shard and writing the
+ * coordinator's log as the router left it.
+ */
+class ShardRouterRecoveryTest {
+    // Names before "m" go to shard 0, the rest to shard 1.
+    private static final ShardRouter.Partitioner SPLIT = ShardRouter.Partitioner.ranges("m");
+    private static final String TX = "7";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void movesBetweenShards() throws Exception {
+        try (ShardRouter router = ShardRouter.local(directory, 2, SPLIT)) {
+            router.createDirectory("/a");
+            router.write("/a/x", TestFiles.bytes("content"));
+            router.rename("/a", "/z");
+
+            assertEquals(1, router.shardOf("/z/x"));
+            assertArrayEquals(TestFiles.bytes("content"), router.read("/z/x"));
+            assertThrows(FSException.class, () -> router.read("/a/x"));
+        }
+        assertNull(staged());
+    }
+
+    @Test
+    void finishesACommittedMove() throws Exception {
+        crashDuringMove("BEGIN\t" + TX + "\tmv\t/a\t/z\nCOMMIT\t" + TX + "\n");
+
+        try (ShardRouter router = ShardRouter.local(directory, 2, SPLIT)) {
+            assertArrayEquals(TestFiles.bytes("content"), router.read("/z/x"));
+            assertThrows(FSException.class, () -> router.read("/a/x"));
+        }
+        assertNull(staged());
+    }
+
+    @Test
+    void undoesAnUncommittedMove() throws Exception {
+        crashDuringMove("BEGIN\t" + TX + "\tmv\t/a\t/z\n");
+
+        try (ShardRouter router = ShardRouter.local(directory, 2, SPLIT)) {
+            assertArrayEquals(TestFiles.bytes("content"), router.read("/a/x"));
+            assertThrows(FSException.class, () -> router.read("/z/x"));
+        }
+        assertNull(staged());
+    }
+
+    @Test
+    void listsTheRootOfEveryShardButTheStaging() throws Exception {
+        try (ShardRouter router = ShardRouter.local(directory, 2, SPLIT)) {
+            router.createDirectory("/a");
+            router.write("/x.2pc", TestFiles.bytes("content"));
+            router.createDirectory("/z");
+            router.write("/z/y", TestFiles.bytes("content"));
+            router.rename("/z/y", "/b");
+
+            String listing = router.listDirectory("/");
+            assertTrue(listing.startsWith("\nDirectory: /\n\nType   LastWriteTime         Name\n"), listing);
+            assertTrue(listing.contains("   a\n"), listing);
+            assertTrue(listing.contains("   x.2pc\n"), listing);
+            assertTrue(listing.contains("   z\n"), listing);
+            assertTrue(listing.contains("   b\n"), listing);
+            assertFalse(listing.contains("   " + ShardRouter.STAGING + "\n"), listing);
+            assertTrue(router.listDirectory("/x.2pc").startsWith("\nFile: /x.2pc\n"));
+        }
+    }
+
+    /** Leaves /a on shard 0, its copy staged on shard 1, and {@code log} as the router's log. */
+    private void crashDuringMove(String log) throws Exception {
+        try (ShardRouter router = ShardRouter.local(directory, 2, SPLIT)) {
+            router.createDirectory("/a");
+            router.write("/a/x", TestFiles.bytes("content"));
+        }
+        FileSystemSimulator destination = new FileSystemSimulator(directory.resolve("shard-1"), 0);
+        try {
+            String staging = "/" + ShardRouter.STAGING;
+            destination.createDirectory(staging);
+            destination.createDirectory(staging + "/" + TX);
+            destination.open(staging + "/" + TX + "/x", true).write(0, TestFiles.bytes("content"));
+        } finally {
+            destination.shutdown();
+        }
+        Files.write(directory.resolve(".router-log"), TestFiles.bytes(log));
+    }
+
+    /** What is left staged on the destination shard, or null. */
+    private String staged() {
+        FileSystemSimulator destination = new FileSystemSimulator(directory.resolve("shard-1"), 0);
+        try {
+            return destination.typeOf("/" + ShardRouter.STAGING + "/" + TX);
+        } finally {
+            destination.shutdown();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Scripts run in batch mode: their output, and what they leave in the tree. */
+class ShellTest {
+    private static final String ESCAPED = "x\u001B[1;32mINSIDE\u001B[0my\n";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void printsNoColorsButKeepsFileContent() throws Exception {
+        FileSystemSimulator fs = new FileSystemSimulator(directory, 0);
+        try {
+            TestFiles.write(fs, "/escaped", ESCAPED + "second\n");
+            String output = run(fs, "mkdir /d", "touch /d/f", "ls /d", "stats", "rm /missing");
+            assertFalse(output.contains("\u001B"), output);
+            assertTrue(output.contains("Error: "), output);
+
+            assertEquals(ESCAPED + "second\n", run(fs, "cat /escaped"));
+            assertEquals(ESCAPED, run(fs, "head -n 1 /escaped"));
+            assertEquals("second\n", run(fs, "tail -n 1 /escaped"));
+        } finally {
+            fs.shutdown();
+        }
+    }
+
+    @Test
+    void keepsWhatTheScriptDid() throws Exception {
+        FileSystemSimulator fs = new FileSystemSimulator(directory, 0);
+        try {
+            run(fs, "# a comment", "mkdir /a", "cd /a", "echo one > f", "echo two >> f", "ls",
+                    "mkdir b", "cp f b/g", "mv f h", "exit", "mkdir /not-run");
+        } finally {
+            fs.shutdown();
+        }
+
+        FileSystemSimulator remounted = new FileSystemSimulator(directory, 0);
+        try {
+            assertEquals("one\ntwo\n", new String(TestFiles.read(remounted, "/a/h"), StandardCharsets.UTF_8));
+            assertEquals("one\ntwo\n", new String(TestFiles.read(remounted, "/a/b/g"), StandardCharsets.UTF_8));
+            assertNull(remounted.typeOf("/a/f"));
+            assertNull(remounted.typeOf("/not-run"));
+        } finally {
+            remounted.shutdown();
+        }
+    }
+
+    @Test
+    void findsByDate() throws Exception {
+        FileSystemSimulator fs = new FileSystemSimulator(directory, 0);
+        try {
+            run(fs, "mkdir /d", "touch /d/f");
+            assertEquals("/d/f\n", run(fs, "find / -type f -newer 2000-01-01"));
+            assertEquals("", run(fs, "find / -type f -newer 2999-01-01"));
+            assertEquals("/d/f\n", run(fs, "find / -type f -older 2999-01-01"));
+            assertEquals("'01-01-2026' is not a date (yyyy-MM-dd).\n", run(fs, "find / -newer 01-01-2026"));
+        } finally {
+            fs.shutdown();
+        }
+    }
+
+    private static String run(FileSystemSimulator fs, String... lines) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(output, false, StandardCharsets.UTF_8);
+        Shell.batch(fs, new BufferedReader(new StringReader(String.join("\n", lines))), out);
+        out.flush();
+        return output.toString(StandardCharsets.UTF_8);
+    }
+}
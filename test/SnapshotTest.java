@@ -0,0 +1,61 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Snapshots diffed against each other and the live tree, and restored. */
+class SnapshotTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void diffsAndRestores() throws Exception {
+        FileSystemSimulator fs = new FileSystemSimulator(directory, 0);
+        try {
+            fs.createDirectory("/src");
+            fs.createDirectory("/src/lib");
+            TestFiles.write(fs, "/src/main.txt", "main");
+            TestFiles.write(fs, "/src/lib/util.txt", "util");
+            TestFiles.write(fs, "/readme.txt", "readme");
+            fs.createSnapshot("before");
+
+            TestFiles.write(fs, "/src/main.txt", "main, changed");
+            fs.delete("/src/lib/util.txt");
+            TestFiles.write(fs, "/src/lib/added.txt", "added");
+            fs.createSnapshot("after");
+
+            List<String> changes = List.of("+ /src/lib/added.txt", "- /src/lib/util.txt", "M /src/main.txt");
+            assertEquals(changes, fs.diffSnapshots("before", null));
+            assertEquals(changes, fs.diffSnapshots("before", "after"));
+            assertEquals(List.of(), fs.diffSnapshots("after", null));
+
+            fs.restoreSnapshot("before");
+            check(fs);
+            assertEquals(List.of(), fs.diffSnapshots("before", null));
+            // The later snapshot keeps what the restore undid.
+            assertEquals(changes, fs.diffSnapshots("before", "after"));
+        } finally {
+            fs.shutdown();
+        }
+
+        FileSystemSimulator remounted = new FileSystemSimulator(directory, 0);
+        try {
+            check(remounted);
+            assertEquals(List.of("before", "after"), List.copyOf(remounted.listSnapshots().keySet()));
+        } finally {
+            remounted.shutdown();
+        }
+    }
+
+    private static void check(FileSystemSimulator fs) throws FSException {
+        assertArrayEquals(TestFiles.bytes("main"), TestFiles.read(fs, "/src/main.txt"));
+        assertArrayEquals(TestFiles.bytes("util"), TestFiles.read(fs, "/src/lib/util.txt"));
+        assertArrayEquals(TestFiles.bytes("readme"), TestFiles.read(fs, "/readme.txt"));
+        assertNull(fs.typeOf("/src/lib/added.txt"));
+    }
+}
@@ -0,0 +1,44 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/** What the tests share for file content, and for copying a simulator's directory. */
+final class TestFiles {
+    private TestFiles() {
+    }
+
+    static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Replaces the content of {@code path}, creating it if missing. */
+    static void write(FileSystemSimulator fs, String path, String content) throws FSException {
+        FileHandle handle = fs.open(path, true);
+        handle.truncate(0);
+        handle.write(0, bytes(content));
+    }
+
+    static byte[] read(FileSystemSimulator fs, String path) throws FSException {
+        return read(fs.openSession(), path);
+    }
+
+    static byte[] read(Session session, String path) throws FSException {
+        FileHandle handle = session.open(path, false);
+        return handle.read(0, (int) handle.size());
+    }
+
+    /**
+     * Copies the files of a simulator's directory as they are, as a crash
+     * would leave them. Call {@link FileSystemSimulator#sync} first, so no
+     * checkpoint is being written meanwhile.
+     */
+    static void copy(Path from, Path to) throws IOException {
+        try (Stream<Path> files = Files.list(from)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.copy(file, to.resolve(file.getFileName()));
+            }
+        }
+    }
+}